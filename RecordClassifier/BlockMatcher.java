@@ -0,0 +1,306 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class decides which records of a block pass any filter group of a
+   collection, the same as calling FieldFilterCollection.passes() on each.
+   Instead of testing records one at a time, the block is turned into a
+   column per field, holding a number for each value the groups filter on,
+   and from those a bitset per value with a bit set for every record holding
+   it. A group then passes for the records set in all the bitsets of its
+   filters, found by ANDing them a word at a time, and a record passes if any
+   group does. Those loops are over long arrays with no branches, so the JIT
+   compiles them very tightly, and each covers 64 records per step.
+
+   Only values that appear in the block get bitsets, and a group with a
+   filter whose value does not appear is skipped without touching memory.
+   Workspace is kept per thread, so one matcher can be used from several
+   threads at once */
+import java.util.*;
+
+public class BlockMatcher
+{
+    // Number of each value filtered on, per field
+    private ArrayList<HashMap<String, Integer> > _valueIds;
+    private int _valueCount;
+
+    // Value numbers of the filters of each group
+    private int[][] _groups;
+
+    // Workspace per thread, sized for the largest block seen
+    private ThreadLocal<Workspace> _workspace;
+
+    private static final class Workspace
+    {
+        long[][] bitsets; // Per value, NULL until it appears in a block
+        int[] used; // Values appearing in the current block
+        int usedCount;
+        int[] stamps; // Block each value last appeared in
+        int stamp;
+        long[] matched; // Records passing some group
+        long[] group; // Records passing the group being tested
+        int words;
+
+        Workspace(int valueCount)
+        {
+            bitsets = new long[valueCount][];
+            used = new int[valueCount];
+            usedCount = 0;
+            stamps = new int[valueCount];
+            stamp = 0;
+            matched = new long[0];
+            group = new long[0];
+            words = 0;
+        }
+
+        // Prepare for a block with the given number of records
+        void start(int recordCount)
+        {
+            int index;
+            for (index = 0; index < usedCount; index++)
+                Arrays.fill(bitsets[used[index]], 0, words, 0L);
+            usedCount = 0;
+            stamp++;
+            if (stamp == 0) {
+                // Stamps wrapped, so old ones could match. Clear them
+                Arrays.fill(stamps, 0);
+                stamp = 1;
+            }
+            words = (recordCount + 63) >>> 6;
+            if (matched.length < words) {
+                matched = new long[words];
+                group = new long[words];
+                for (index = 0; index < bitsets.length; index++)
+                    bitsets[index] = null;
+            }
+            else
+                Arrays.fill(matched, 0, words, 0L);
+        }
+
+        // Mark a record as holding a value
+        void set(int value, int record)
+        {
+            long[] bits = bitsets[value];
+            if (bits == null) {
+                bits = new long[matched.length];
+                bitsets[value] = bits;
+            }
+            // Only values in this block are on the list, to clear afterward
+            if (stamps[value] != stamp) {
+                stamps[value] = stamp;
+                used[usedCount++] = value;
+            }
+            bits[record >>> 6] |= 1L << record;
+        }
+
+        // Returns true if some record of the block holds a value
+        boolean appears(int value)
+        {
+            return stamps[value] == stamp;
+        }
+    }
+
+    // Compile the groups of a collection
+    public BlockMatcher(FieldFilterCollection filters)
+    {
+        if (filters == null)
+            throw new IllegalArgumentException("Filter groups to match passed null");
+        _valueIds = new ArrayList<HashMap<String, Integer> >();
+        _valueCount = 0;
+        _groups = new int[filters.size()][];
+        Iterator<FieldFilterGroup> index = filters.iterator();
+        int group = 0;
+        while (index.hasNext()) {
+            FieldFilterGroup next = index.next();
+            int[] values = new int[next.filterCount()];
+            int filterIndex;
+            for (filterIndex = 0; filterIndex < values.length; filterIndex++) {
+                FieldFilter filter = next.getFilter(filterIndex);
+                while (_valueIds.size() <= filter.getField())
+                    _valueIds.add(new HashMap<String, Integer>());
+                HashMap<String, Integer> ids = _valueIds.get(filter.getField());
+                Integer id = ids.get(filter.getValue());
+                if (id == null) {
+                    id = Integer.valueOf(_valueCount++);
+                    ids.put(filter.getValue(), id);
+                }
+                values[filterIndex] = id.intValue();
+            }
+            _groups[group++] = values;
+        }
+
+        final int valueCount = _valueCount;
+        _workspace = new ThreadLocal<Workspace>() {
+            protected Workspace initialValue()
+            {
+                return new Workspace(valueCount);
+            }
+        };
+    }
+
+    // Number of filter groups compiled
+    public int size()
+    {
+        return _groups.length;
+    }
+
+    /* Decide which records of a block pass any filter group. The result for
+       each record is set in the array passed, which must be at least as long
+       as the block */
+    public void passes(List<? extends List<String> > records, boolean[] results)
+    {
+        if (records == null)
+            throw new IllegalArgumentException("Records to match passed null");
+        if ((results == null) || (results.length < records.size()))
+            throw new IllegalArgumentException("Results for records to match too short");
+        Workspace workspace = _workspace.get();
+        workspace.start(records.size());
+
+        /* Build the bitsets a column at a time, so each field's map is
+           looked up for all records together */
+        int field;
+        for (field = 0; field < _valueIds.size(); field++) {
+            HashMap<String, Integer> ids = _valueIds.get(field);
+            if (ids.size() == 0)
+                continue;
+            int record;
+            for (record = 0; record < records.size(); record++) {
+                List<String> next = records.get(record);
+                if ((next == null) || (field >= next.size()))
+                    continue;
+                Integer id = ids.get(next.get(field));
+                if (id != null)
+                    workspace.set(id.intValue(), record);
+            }
+        }
+
+        long[][] bitsets = workspace.bitsets;
+        long[] matched = workspace.matched;
+        long[] groupBits = workspace.group;
+        int words = workspace.words;
+        int group;
+        for (group = 0; group < _groups.length; group++) {
+            int[] values = _groups[group];
+            int filter;
+            boolean present = true;
+            for (filter = 0; present && (filter < values.length); filter++)
+                present = workspace.appears(values[filter]);
+            if (!present)
+                continue; // Some filter passes no record
+            long[] first = bitsets[values[0]];
+            int word;
+            if (values.length == 1) {
+                for (word = 0; word < words; word++)
+                    matched[word] |= first[word];
+                continue;
+            }
+            System.arraycopy(first, 0, groupBits, 0, words);
+            for (filter = 1; filter < values.length; filter++) {
+                long[] bits = bitsets[values[filter]];
+                for (word = 0; word < words; word++)
+                    groupBits[word] &= bits[word];
+            }
+            for (word = 0; word < words; word++)
+                matched[word] |= groupBits[word];
+        }
+
+        int record;
+        for (record = 0; record < records.size(); record++)
+            results[record] = (matched[record >>> 6] & (1L << record)) != 0L;
+    }
+
+    public String toString()
+    {
+        return "BlockMatcher: " + _groups.length + " filter groups on " + _valueCount + " values";
+    }
+
+    public static void main(String[] args)
+    {
+        // Rules: field 1 is 'a', or field 0 is 'x' and field 2 is 'z'
+        FieldFilterCollection rules = new FieldFilterCollection(new FieldFilterGroup(new FieldFilter(1, "a")));
+        FieldFilterGroup pair = new FieldFilterGroup(new FieldFilter(0, "x"));
+        rules.add(new FieldFilterGroup(pair, new FieldFilter(2, "z")));
+        BlockMatcher test = new BlockMatcher(rules);
+        System.out.println("Matcher: " + test);
+
+        ArrayList<ArrayList<String> > block = new ArrayList<ArrayList<String> >();
+        block.add(new ArrayList<String>(Arrays.asList("x", "b", "z")));
+        block.add(new ArrayList<String>(Arrays.asList("x", "b", "y")));
+        block.add(new ArrayList<String>(Arrays.asList("x", "a")));
+        block.add(new ArrayList<String>(Arrays.asList("y", "b", "z")));
+        boolean[] results = new boolean[block.size()];
+        test.passes(block, results);
+        System.out.println("Block " + block + ", expect pass, fail, pass, fail");
+        if (results[0] && (!results[1]) && results[2] && (!results[3]))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, results " + Arrays.toString(results));
+
+        System.out.println("Results shorter than block, expect exception");
+        try {
+            test.passes(block, new boolean[2]);
+            System.out.println("Test failed");
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("Test passed, caught exception: " + e);
+        }
+
+        /* Random rules and blocks of varying size must give the same result
+           as testing every group in the collection. Blocks shrink and grow,
+           so the workspace is reused with stale bits beyond the block */
+        Random random = new Random(11);
+        FieldFilterCollection randomRules = new FieldFilterCollection();
+        int count;
+        for (count = 0; count < 200; count++) {
+            FieldFilterGroup group = new FieldFilterGroup(new FieldFilter(0, String.valueOf(random.nextInt(8))));
+            int field;
+            for (field = 1; field < 5; field++)
+                if (random.nextInt(3) == 0)
+                    group = new FieldFilterGroup(group, new FieldFilter(field, String.valueOf(random.nextInt(8))));
+            randomRules.add(group);
+        }
+        BlockMatcher randomTest = new BlockMatcher(randomRules);
+        System.out.println("Match random blocks against random rules, expect same results as collection");
+        boolean same = true;
+        int[] sizes = {4096, 1, 130, 4096, 63, 64, 65};
+        for (count = 0; same && (count < sizes.length); count++) {
+            ArrayList<ArrayList<String> > randomBlock = new ArrayList<ArrayList<String> >();
+            int record;
+            for (record = 0; record < sizes[count]; record++) {
+                ArrayList<String> randomRecord = new ArrayList<String>();
+                int field;
+                for (field = 0; field < 5; field++)
+                    randomRecord.add(String.valueOf(random.nextInt(8)));
+                randomBlock.add(randomRecord);
+            }
+            boolean[] randomResults = new boolean[randomBlock.size()];
+            randomTest.passes(randomBlock, randomResults);
+            for (record = 0; same && (record < randomBlock.size()); record++)
+                same = (randomResults[record] == randomRules.passes(randomBlock.get(record)));
+        }
+        if (same)
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed on block " + count);
+    }
+}
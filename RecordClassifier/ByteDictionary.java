@@ -0,0 +1,273 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class numbers the distinct values of a field found in the bytes of a
+   file, looking them up where they are without first making them strings.
+   Each value gets a string too, created once, so records repeating a value
+   share the same string instead of each having a copy.
+
+   Values are kept in a hash table of their bytes, with open addressing. A
+   field where nearly every value differs, such as a tracking number, would
+   only fill the table with values seen once, so it stops adding values when
+   full; those after that are still turned into strings, just not kept */
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+public final class ByteDictionary
+{
+    private Charset _charset;
+    private int _maxEntries;
+
+    // Bytes of every value, one after the other
+    private byte[] _bytes;
+    private int _bytesUsed;
+
+    // Per value number
+    private int[] _offsets;
+    private int[] _lengths;
+    private int[] _hashes;
+    private String[] _values;
+    private int _count;
+
+    // Value numbers plus one by hash, zero if empty
+    private int[] _table;
+
+    // Scratch space to turn values into strings
+    private byte[] _scratch;
+
+    // Create a dictionary for values in the given encoding, keeping up to the given number
+    public ByteDictionary(Charset charset, int maxEntries)
+    {
+        if (charset == null)
+            throw new IllegalArgumentException("Character set for values passed null");
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("Dictionary size " + maxEntries + " invalid");
+        _charset = charset;
+        _maxEntries = maxEntries;
+        _bytes = new byte[256];
+        _bytesUsed = 0;
+        _offsets = new int[16];
+        _lengths = new int[16];
+        _hashes = new int[16];
+        _values = new String[16];
+        _count = 0;
+        _table = new int[32];
+        _scratch = new byte[64];
+    }
+
+    // Returns the number of a value, or -1 if it is not in the dictionary
+    public int lookup(ByteBuffer data, int start, int length)
+    {
+        int hash = hash(data, start, length);
+        int mask = _table.length - 1;
+        int slot = hash & mask;
+        while (_table[slot] != 0) {
+            int value = _table[slot] - 1;
+            if ((_hashes[value] == hash) && matches(value, data, start, length))
+                return value;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /* Returns the string for a value, adding it to the dictionary if it is
+       not there and there is room */
+    public String intern(ByteBuffer data, int start, int length)
+    {
+        int value = lookup(data, start, length);
+        if (value >= 0)
+            return _values[value];
+        if (_scratch.length < length)
+            _scratch = new byte[Math.max(length, _scratch.length * 2)];
+        ByteBuffer source = data.duplicate();
+        source.position(start);
+        source.get(_scratch, 0, length);
+        String result = new String(_scratch, 0, length, _charset);
+        if (_count < _maxEntries)
+            add(_scratch, length, hash(data, start, length), result);
+        return result;
+    }
+
+    /* Add a value given as a string, returning its number. Values already
+       there keep their number. Throws if the dictionary is full */
+    public int add(String value)
+    {
+        if (value == null)
+            throw new IllegalArgumentException("Value to add passed null");
+        byte[] bytes = value.getBytes(_charset);
+        ByteBuffer data = ByteBuffer.wrap(bytes);
+        int result = lookup(data, 0, bytes.length);
+        if (result >= 0)
+            return result;
+        if (_count >= _maxEntries)
+            throw new IllegalStateException("Dictionary full with " + _count + " values");
+        return add(bytes, bytes.length, hash(data, 0, bytes.length), value);
+    }
+
+    // Returns the string of a value by number
+    public String getValue(int value)
+    {
+        if ((value < 0) || (value >= _count))
+            throw new IndexOutOfBoundsException("Value " + value + " requested from dictionary of " + _count);
+        return _values[value];
+    }
+
+    // Number of values in the dictionary
+    public int size()
+    {
+        return _count;
+    }
+
+    // Add a value known not to be in the dictionary, returning its number
+    private int add(byte[] bytes, int length, int hash, String value)
+    {
+        if (_count == _offsets.length) {
+            _offsets = Arrays.copyOf(_offsets, _count * 2);
+            _lengths = Arrays.copyOf(_lengths, _count * 2);
+            _hashes = Arrays.copyOf(_hashes, _count * 2);
+            _values = Arrays.copyOf(_values, _count * 2);
+        }
+        if (_bytes.length - _bytesUsed < length)
+            _bytes = Arrays.copyOf(_bytes, Math.max(_bytesUsed + length, _bytes.length * 2));
+        System.arraycopy(bytes, 0, _bytes, _bytesUsed, length);
+        _offsets[_count] = _bytesUsed;
+        _lengths[_count] = length;
+        _hashes[_count] = hash;
+        _values[_count] = value;
+        _bytesUsed += length;
+        _count++;
+
+        // Keep the table at most half full, so searches stay short
+        if (_count * 2 > _table.length) {
+            _table = new int[_table.length * 2];
+            int index;
+            for (index = 0; index < _count; index++)
+                insert(index);
+        }
+        else
+            insert(_count - 1);
+        return _count - 1;
+    }
+
+    // Put a value number in the table
+    private void insert(int value)
+    {
+        int mask = _table.length - 1;
+        int slot = _hashes[value] & mask;
+        while (_table[slot] != 0)
+            slot = (slot + 1) & mask;
+        _table[slot] = value + 1;
+    }
+
+    // Returns true if a value has the given bytes
+    private boolean matches(int value, ByteBuffer data, int start, int length)
+    {
+        if (_lengths[value] != length)
+            return false;
+        int offset = _offsets[value];
+        int index;
+        for (index = 0; index < length; index++)
+            if (_bytes[offset + index] != data.get(start + index))
+                return false;
+        return true;
+    }
+
+    private static int hash(ByteBuffer data, int start, int length)
+    {
+        long hash = length;
+        int index;
+        for (index = 0; index < length; index++)
+            hash = (hash * 31) + data.get(start + index);
+        return FilterGroupKey.mix(hash);
+    }
+
+    public String toString()
+    {
+        return "ByteDictionary: " + _count + " values of at most " + _maxEntries;
+    }
+
+    public static void main(String[] args)
+    {
+        ByteDictionary test = new ByteDictionary(StandardCharsets.UTF_8, 1000);
+        ByteBuffer data = ByteBuffer.wrap("abc,de,abc,\u00e9t\u00e9".getBytes(StandardCharsets.UTF_8));
+
+        System.out.println("Intern the same value twice, expect the same string");
+        String first = test.intern(data, 0, 3);
+        String second = test.intern(data, 7, 3);
+        if (first.equals("abc") && (first == second) && (test.size() == 1))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, " + test);
+
+        System.out.println("Look up values with and without entries, expect found and not found");
+        if ((test.lookup(data, 7, 3) == 0) && (test.lookup(data, 4, 2) < 0))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        System.out.println("Add string value, expect found by its bytes");
+        int value = test.add("\u00e9t\u00e9");
+        if ((test.lookup(data, 11, data.limit() - 11) == value) &&
+            test.getValue(value).equals("\u00e9t\u00e9") && (test.add("\u00e9t\u00e9") == value))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        // Enough values to grow the table several times, all still found
+        System.out.println("Add many values, expect all found");
+        boolean found = true;
+        int count;
+        for (count = 0; count < 900; count++)
+            test.add("value" + count);
+        for (count = 0; found && (count < 900); count++) {
+            ByteBuffer valueData = ByteBuffer.wrap(("value" + count).getBytes(StandardCharsets.UTF_8));
+            int number = test.lookup(valueData, 0, valueData.limit());
+            found = (number >= 0) && test.getValue(number).equals("value" + count);
+        }
+        if (found)
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed on value" + (count - 1));
+
+        // Once full, values are still made into strings but not kept
+        System.out.println("Intern values past the limit, expect strings returned but not kept");
+        ByteDictionary small = new ByteDictionary(StandardCharsets.UTF_8, 1);
+        small.intern(data, 0, 3);
+        String extra = small.intern(data, 4, 2);
+        if (extra.equals("de") && (small.size() == 1) && (small.lookup(data, 4, 2) < 0))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, " + small);
+
+        System.out.println("Add value to full dictionary, expect exception");
+        try {
+            small.add("new");
+            System.out.println("Test failed");
+        }
+        catch (IllegalStateException e) {
+            System.out.println("Test passed, caught exception: " + e);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class reads the lines of a CSV file of records as bytes, without
+   turning them into strings, for processing that only needs a few fields or
+   writes the lines back out as they are. It finds lines and enforces the
+   same rules as RecordReader: blank lines are skipped, every record must
+   have the same number of fields, checked with checkFieldCount(), and a
+   file with no records at all is an error, reported when the end is reached.
+   Gzip compressed files are inflated as they are read.
+
+   Lines are found by their bytes, which works for the encodings files are
+   normally in; see canRead(). A line is only valid until the next is read */
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+public class ByteLineReader implements Closeable
+{
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    private String _fileName;
+    private InputStream _input;
+    private byte[] _buffer;
+    private ByteBuffer _data; // View of the buffer
+    private int _position; // First byte not yet read as part of a line
+    private int _limit; // End of the data in the buffer
+    private boolean _atEnd; // Of the file
+    private int _lineStart;
+    private int _lineEnd;
+    private int _fieldCount; // Of the first record, -1 until checked
+    private long _recordCount;
+
+    // Open a file to read
+    public ByteLineReader(String fileName) throws IOException, FileNotFoundException
+    {
+        if (fileName == null)
+            throw new IllegalArgumentException("Filename for input records must be specified");
+        _fileName = fileName;
+        _input = CompressedFiles.openInput(fileName);
+        _buffer = new byte[BUFFER_BYTES];
+        _data = ByteBuffer.wrap(_buffer);
+        _position = 0;
+        _limit = 0;
+        _atEnd = false;
+        _lineStart = 0;
+        _lineEnd = 0;
+        _fieldCount = -1;
+        _recordCount = 0;
+    }
+
+    /* Returns true if files in an encoding can be read as bytes: line breaks
+       and commas must be their single ASCII bytes */
+    public static boolean canRead(Charset charset)
+    {
+        return Arrays.equals("\n\r,".getBytes(charset), new byte[] {'\n', '\r', ','});
+    }
+
+    /* Move to the next line with a record on it. Returns false at the end of
+       the file. Throws if the file ends without any records. The field count
+       is NOT checked */
+    public boolean next() throws IOException
+    {
+        while (true) {
+            /* A line ends at a carriage return, line feed, or both, as with
+               BufferedReader.readLine(). Empty lines between the two are
+               skipped with the blank ones */
+            int index;
+            for (index = _position; index < _limit; index++) {
+                byte value = _buffer[index];
+                if ((value == '\n') || (value == '\r'))
+                    break;
+            }
+            if ((index < _limit) || (_atEnd && (_position < _limit))) {
+                _lineStart = _position;
+                _lineEnd = index;
+                _position = Math.min(index + 1, _limit);
+                if (!ByteTokenizer.isBlank(_data, _lineStart, _lineEnd)) {
+                    _recordCount++;
+                    return true;
+                }
+            }
+            else if (_atEnd) {
+                if (_recordCount == 0)
+                    throw RecordReader.noRecordsError(_fileName);
+                return false;
+            }
+            else
+                fill();
+        }
+    }
+
+    /* Read more of the file, keeping the part of a line already read. Grows
+       the buffer for lines longer than it */
+    private void fill() throws IOException
+    {
+        int remaining = _limit - _position;
+        if (remaining == _buffer.length) {
+            _buffer = Arrays.copyOf(_buffer, _buffer.length * 2);
+            _data = ByteBuffer.wrap(_buffer);
+        }
+        else if (_position > 0)
+            System.arraycopy(_buffer, _position, _buffer, 0, remaining);
+        _position = 0;
+        _limit = remaining;
+        int read = _input.read(_buffer, _limit, _buffer.length - _limit);
+        if (read < 0)
+            _atEnd = true;
+        else
+            _limit += read;
+    }
+
+    // Returns the data holding the current line
+    public ByteBuffer getData()
+    {
+        return _data;
+    }
+
+    // Position of the first byte of the current line
+    public int getLineStart()
+    {
+        return _lineStart;
+    }
+
+    // Position just past the last byte of the current line, not including the line break
+    public int getLineEnd()
+    {
+        return _lineEnd;
+    }
+
+    /* Check the field count of a record against the first one in the file,
+       throwing if they differ. The first count passed becomes the one all
+       others must match */
+    public void checkFieldCount(int fieldCount) throws IOException
+    {
+        if (_fieldCount < 0)
+            _fieldCount = fieldCount;
+        else if (fieldCount != _fieldCount)
+            throw RecordReader.fieldCountError(_fileName, _fieldCount, fieldCount);
+    }
+
+    // Records returned so far
+    public long getRecordCount()
+    {
+        return _recordCount;
+    }
+
+    public void close() throws IOException
+    {
+        _input.close();
+    }
+
+    public static void main(String[] args)
+    {
+        /* Lines with both kinds of line ends, blank lines, one longer than
+           the buffer and none at the end must give the same lines as
+           RecordReader */
+        System.out.println("Read lines as bytes, expect same lines as RecordReader");
+        try {
+            PrintWriter outputFile = new PrintWriter(new FileOutputStream("ByteLineReader.testtesttest"));
+            int count;
+            for (count = 0; count < 5000; count++) {
+                outputFile.print("id" + count + ",a" + (count % 7) + ",,c");
+                outputFile.print(((count % 5) == 0) ? "\r\n" : "\n");
+                if ((count % 11) == 0)
+                    outputFile.print("  \r\n\n");
+            }
+            StringBuilder longLine = new StringBuilder();
+            while (longLine.length() <= BUFFER_BYTES * 2)
+                longLine.append("long");
+            outputFile.println(longLine);
+            outputFile.print("last,a,,c"); // No line end
+            outputFile.close();
+
+            RecordReader expected = new RecordReader("ByteLineReader.testtesttest");
+            ByteLineReader test = new ByteLineReader("ByteLineReader.testtesttest");
+            boolean same = true;
+            String line = null;
+            while (same && ((line = expected.nextLine()) != null)) {
+                same = test.next();
+                if (same) {
+                    byte[] bytes = new byte[test.getLineEnd() - test.getLineStart()];
+                    ByteBuffer data = test.getData().duplicate();
+                    data.position(test.getLineStart());
+                    data.get(bytes);
+                    same = new String(bytes).equals(line);
+                }
+            }
+            same = same && (!test.next()) && (test.getRecordCount() == 5002);
+            expected.close();
+            test.close();
+            if (same)
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed at line " + test.getRecordCount());
+        }
+        catch (Exception e) {
+            System.out.println("Test failed, caught " + e);
+        }
+
+        System.out.println("Check inconsistent field counts, expect exception");
+        try {
+            ByteLineReader test = new ByteLineReader("ByteLineReader.testtesttest");
+            test.checkFieldCount(4);
+            test.checkFieldCount(4);
+            test.checkFieldCount(3);
+            System.out.println("Test failed");
+        }
+        catch (IOException e) {
+            System.out.println("Test succeeded, caught " + e);
+        }
+
+        System.out.println("Read file with only blank lines, expect exception");
+        try {
+            PrintWriter outputFile = new PrintWriter(new FileOutputStream("ByteLineReader.testtesttest"));
+            outputFile.println("");
+            outputFile.println(" \t ");
+            outputFile.close();
+            ByteLineReader test = new ByteLineReader("ByteLineReader.testtesttest");
+            test.next();
+            System.out.println("Test failed, line read");
+        }
+        catch (IOException e) {
+            System.out.println("Test succeeded, caught " + e);
+        }
+        new File("ByteLineReader.testtesttest").delete();
+    }
+}
@@ -0,0 +1,193 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class splits a line of a CSV file into fields directly from its
+   bytes, without turning it into a string first. It only finds where each
+   field starts and ends, keeping them in arrays that are reused for every
+   line, so splitting a line allocates nothing. The values can then be
+   looked up or compared where they are, such as with a ByteDictionary.
+
+   Fields are split exactly as RecordReader.parse() does: at every comma,
+   with empty fields at the end of the line dropped. Commas are found by
+   their byte, which works for the encodings files are normally in */
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+public final class ByteTokenizer
+{
+    private int[] _starts;
+    private int[] _ends;
+    private int _count;
+
+    public ByteTokenizer()
+    {
+        _starts = new int[16];
+        _ends = new int[16];
+        _count = 0;
+    }
+
+    /* Split the bytes from start up to end into fields, returning how many
+       there are. The line must not include its line break */
+    public int tokenize(ByteBuffer data, int start, int end)
+    {
+        if (data == null)
+            throw new IllegalArgumentException("Data to split passed null");
+        if ((start < 0) || (end < start) || (end > data.limit()))
+            throw new IllegalArgumentException("Range " + start + " to " + end + " to split invalid");
+        _count = 0;
+        if (start == end) {
+            add(start, end); // One empty field, as String.split() gives
+            return _count;
+        }
+        int fieldCount = 0; // Without empty fields at the end
+        int fieldStart = start;
+        int index;
+        for (index = start; index <= end; index++) {
+            if ((index < end) && (data.get(index) != ','))
+                continue;
+            add(fieldStart, index);
+            if (index > fieldStart)
+                fieldCount = _count;
+            fieldStart = index + 1;
+        }
+        _count = fieldCount;
+        return _count;
+    }
+
+    // Record the next field
+    private void add(int start, int end)
+    {
+        if (_count == _starts.length) {
+            int[] newStarts = new int[_count * 2];
+            int[] newEnds = new int[_count * 2];
+            System.arraycopy(_starts, 0, newStarts, 0, _count);
+            System.arraycopy(_ends, 0, newEnds, 0, _count);
+            _starts = newStarts;
+            _ends = newEnds;
+        }
+        _starts[_count] = start;
+        _ends[_count] = end;
+        _count++;
+    }
+
+    // Number of fields in the last line split
+    public int getFieldCount()
+    {
+        return _count;
+    }
+
+    // Position of the first byte of a field
+    public int getStart(int field)
+    {
+        if ((field < 0) || (field >= _count))
+            throw new IndexOutOfBoundsException("Field " + field + " requested from line with " + _count + " fields");
+        return _starts[field];
+    }
+
+    // Number of bytes in a field
+    public int getLength(int field)
+    {
+        if ((field < 0) || (field >= _count))
+            throw new IndexOutOfBoundsException("Field " + field + " requested from line with " + _count + " fields");
+        return _ends[field] - _starts[field];
+    }
+
+    /* Returns true if a range has nothing but spaces and control characters,
+       which String.trim() would remove, so it holds no record */
+    public static boolean isBlank(ByteBuffer data, int start, int end)
+    {
+        int index;
+        for (index = start; index < end; index++)
+            if ((data.get(index) & 0xff) > ' ')
+                return false;
+        return true;
+    }
+
+    public static void main(String[] args)
+    {
+        /* Lines must split into the same fields as RecordReader.parse(),
+           including empty ones in the middle and at either end */
+        String[] lines = {"a,b,c,d,e", "a,,c", "a,b,,,", ",,,", ",a", "abc", "", "a,b, ", "x,\u00e9t\u00e9,y"};
+        ByteTokenizer test = new ByteTokenizer();
+        boolean same = true;
+        int index;
+        for (index = 0; same && (index < lines.length); index++) {
+            byte[] bytes = lines[index].getBytes(StandardCharsets.UTF_8);
+            // Put the line in the middle of other data, to check the offsets
+            ByteBuffer data = ByteBuffer.allocate(bytes.length + 4);
+            data.put(0, (byte)'q');
+            data.put(1, (byte)',');
+            int byteIndex;
+            for (byteIndex = 0; byteIndex < bytes.length; byteIndex++)
+                data.put(byteIndex + 2, bytes[byteIndex]);
+            data.put(bytes.length + 2, (byte)',');
+            data.put(bytes.length + 3, (byte)'q');
+            int count = test.tokenize(data, 2, bytes.length + 2);
+            ArrayList<String> expected = RecordReader.parse(lines[index]);
+            same = (count == expected.size());
+            int field;
+            for (field = 0; same && (field < count); field++) {
+                byte[] value = new byte[test.getLength(field)];
+                int valueIndex;
+                for (valueIndex = 0; valueIndex < value.length; valueIndex++)
+                    value[valueIndex] = data.get(test.getStart(field) + valueIndex);
+                same = new String(value, StandardCharsets.UTF_8).equals(expected.get(field));
+            }
+        }
+        System.out.println("Lines split from bytes, expect same fields as RecordReader.parse()");
+        if (same)
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed on line '" + lines[index - 1] + "'");
+
+        // More fields than the initial arrays hold
+        StringBuilder longLine = new StringBuilder("0");
+        for (index = 1; index < 100; index++)
+            longLine.append(',').append(index);
+        ByteBuffer longData = ByteBuffer.wrap(longLine.toString().getBytes(StandardCharsets.UTF_8));
+        System.out.println("Line with 100 fields, expect last field '99'");
+        if ((test.tokenize(longData, 0, longData.limit()) == 100) &&
+            (test.getLength(99) == 2) && (longData.get(test.getStart(99)) == '9'))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        System.out.println("Line of spaces and tabs, expect blank");
+        ByteBuffer blank = ByteBuffer.wrap(new byte[] {' ', '\t', ' '});
+        if (isBlank(blank, 0, 3) && (!isBlank(longData, 0, 1)))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        System.out.println("Field past end of line, expect exception");
+        try {
+            test.getStart(100);
+            System.out.println("Test failed");
+        }
+        catch (IndexOutOfBoundsException e) {
+            System.out.println("Test passed, caught exception: " + e);
+        }
+    }
+}
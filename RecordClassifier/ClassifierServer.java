@@ -0,0 +1,215 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class serves a classifier over a TCP socket on the loopback address,
+   so batches can be classified by a process that has already loaded its
+   rules and warmed up, instead of starting a new one for each. Only local
+   connections are possible.
+
+   The protocol is lines of UTF-8 text. A client sends a batch of records, one
+   CSV line each, ended by a blank line. The server answers with one line per
+   record, 'true' if valid and 'false' if not, followed by a blank line.
+   Records in a batch must have the same field count; if one differs, an
+   'ERROR' line with the reason replaces the verdicts of it and every later
+   record of the batch. A connection can send any number of batches, and ends
+   when the client closes it. Verdicts are written as records are read, so a
+   client sending a large batch should read the answers at the same time.
+
+   Each connection is handled on its own virtual thread, so many open
+   connections cost little more than their sockets */
+import java.util.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.concurrent.*;
+
+public class ClassifierServer implements Closeable
+{
+    private RecordClassifier _classifier;
+    private ServerSocket _socket;
+    private ExecutorService _connections;
+
+    /* Create the server for a classifier, listening on a loopback port. Port
+       zero picks any free port */
+    public ClassifierServer(RecordClassifier classifier, int port) throws IOException
+    {
+        if (classifier == null)
+            throw new IllegalArgumentException("Classifier to serve passed null");
+        _classifier = classifier;
+        _socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        _connections = Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    // The port the server listens on
+    public int getPort()
+    {
+        return _socket.getLocalPort();
+    }
+
+    /* Accept connections until the server is closed, handling each on its
+       own thread */
+    public void run() throws IOException
+    {
+        try {
+            while (true) {
+                final Socket connection = _socket.accept();
+                _connections.execute(new Runnable() {
+                        public void run()
+                        {
+                            serve(connection);
+                        }
+                    });
+            }
+        }
+        catch (SocketException e) {
+            // Thrown when the server is closed while waiting
+            if (!_socket.isClosed())
+                throw e;
+        }
+    }
+
+    // Stop accepting connections. Connections already open are finished
+    public void close() throws IOException
+    {
+        _socket.close();
+        _connections.shutdown();
+    }
+
+    // Handle batches from one connection until the client closes it
+    private void serve(Socket connection)
+    {
+        try {
+            BufferedReader input = new BufferedReader(new InputStreamReader(connection.getInputStream(),
+                                                                            StandardCharsets.UTF_8));
+            Writer output = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream(),
+                                                                      StandardCharsets.UTF_8));
+            int fieldCount = -1; // Of the first record of the batch
+            boolean failed = false;
+            String line = null;
+            while ((line = input.readLine()) != null) {
+                if (line.trim().length() == 0) {
+                    // End of batch
+                    output.write('\n');
+                    output.flush();
+                    fieldCount = -1;
+                    failed = false;
+                }
+                else if (!failed) {
+                    ArrayList<String> record = RecordReader.parse(line);
+                    if (fieldCount < 0)
+                        fieldCount = record.size();
+                    if (record.size() != fieldCount) {
+                        output.write("ERROR Record inconsistent, expected " + fieldCount + " fields, got " + record.size() + "\n");
+                        failed = true;
+                    }
+                    else
+                        output.write(_classifier.isValid(record) ? "true\n" : "false\n");
+                }
+            }
+            output.flush();
+        }
+        catch (IOException e) {
+            // The client went away. Nothing to report it to
+        }
+        finally {
+            try {
+                connection.close();
+            }
+            catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    // Code to test the class
+    public static void main(String[] args)
+    {
+        // Records are invalid when the second field is 'bad'
+        ArrayList<String> valid = new ArrayList<String>();
+        valid.add("value1");
+        valid.add("good");
+        valid.add("true");
+        ArrayList<String> invalid = new ArrayList<String>();
+        invalid.add("value1");
+        invalid.add("bad");
+        invalid.add("false");
+        RecordGroup training = new RecordGroup(valid);
+        training.add(invalid);
+
+        try {
+            final ClassifierServer test = new ClassifierServer(new RecordClassifier(training, null), 0);
+            Thread server = new Thread(new Runnable() {
+                    public void run()
+                    {
+                        try {
+                            test.run();
+                        }
+                        catch (IOException e) {
+                            System.out.println("Test failed, server caught " + e);
+                        }
+                    }
+                });
+            server.start();
+
+            Socket client = new Socket(InetAddress.getLoopbackAddress(), test.getPort());
+            PrintWriter request = new PrintWriter(new OutputStreamWriter(client.getOutputStream(),
+                                                                         StandardCharsets.UTF_8));
+            BufferedReader response = new BufferedReader(new InputStreamReader(client.getInputStream(),
+                                                                               StandardCharsets.UTF_8));
+            System.out.println("Send batch of three records, expect verdicts true, false, true");
+            request.print("x,good\ny,bad\nz,other\n\n");
+            request.flush();
+            String verdicts = response.readLine() + "," + response.readLine() + "," + response.readLine();
+            if (verdicts.equals("true,false,true") && (response.readLine().length() == 0))
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed, got " + verdicts);
+
+            System.out.println("Send batch with inconsistent record, expect one verdict then error");
+            request.print("x,bad\ny\nz,good\n\n");
+            request.flush();
+            String first = response.readLine();
+            String second = response.readLine();
+            if (first.equals("false") && second.startsWith("ERROR") &&
+                (response.readLine().length() == 0))
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed, got " + first + " and " + second);
+
+            System.out.println("Send another batch on same connection, expect it still works");
+            request.print("x,good\n\n");
+            request.flush();
+            if (response.readLine().equals("true") && (response.readLine().length() == 0))
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed");
+            client.close();
+            test.close();
+            server.join();
+        }
+        catch (Exception e) {
+            System.out.println("Test failed, caught " + e);
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class saves records to a binary file stored by column, and reads
+   them back, as a faster replacement for CSV when the same records are read
+   many times, such as training sets used for cross-validation. Each column
+   stores its distinct values once, and then a number per record picking the
+   value, using as few bytes as that column's values need. Reading needs no
+   parsing at all, and records share the strings of repeated values. All
+   numbers are big endian, as written by DataOutputStream.
+
+   Layout, version 1:
+   - Magic number 'RVCR' and format version, one int each
+   - Number of fields and number of records, one int each
+   - For each field: the number of distinct values, then each as its length
+     in bytes and its UTF-8 bytes; then the bytes per value number, 1, 2 or
+     4, and the value number of each record in order, unsigned
+
+   RecordParser.readRecords() recognizes these files and reads them with this
+   class, so anything that reads records from CSV files accepts them too. Run
+   this class with 'tobinary' or 'tocsv' to convert files either way. Like
+   other record files, these can be gzip compressed */
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.nio.charset.*;
+
+public class ColumnarRecordFile
+{
+    public static final int MAGIC = 0x52564352; // 'RVCR'
+    public static final int VERSION = 1;
+
+    /* Save records to a file, overwriting any existing file. If the records
+       have inconsistent field counts, this method throws an exception */
+    public static void write(String fileName, RecordGroup records) throws IOException
+    {
+        if (fileName == null)
+            throw new IllegalArgumentException("Filename for output records must be specified");
+        if (records == null)
+            throw new IllegalArgumentException("Records to output passed null");
+        int fieldCount = records.isEmpty() ? 0 : records.getRecords().getFirst().size();
+        Iterator<ArrayList<String> > index = records.getRecords().iterator();
+        while (index.hasNext())
+            if (index.next().size() != fieldCount)
+                throw new IOException("RecordParser, records to output have inconsistent field counts");
+
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(CompressedFiles.openOutput(fileName)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(fieldCount);
+            output.writeInt(records.size());
+            /* One column at a time: number its values in order of first use,
+               write them, then write the number for each record */
+            int field;
+            for (field = 0; field < fieldCount; field++) {
+                HashMap<String, Integer> valueNumbers = new HashMap<String, Integer>();
+                ArrayList<String> values = new ArrayList<String>();
+                index = records.getRecords().iterator();
+                while (index.hasNext()) {
+                    String value = index.next().get(field);
+                    if (!valueNumbers.containsKey(value)) {
+                        valueNumbers.put(value, Integer.valueOf(values.size()));
+                        values.add(value);
+                    }
+                }
+                output.writeInt(values.size());
+                Iterator<String> valueIndex = values.iterator();
+                while (valueIndex.hasNext()) {
+                    byte[] bytes = valueIndex.next().getBytes(StandardCharsets.UTF_8);
+                    output.writeInt(bytes.length);
+                    output.write(bytes);
+                }
+                int width = numberWidth(values.size());
+                output.writeInt(width);
+                index = records.getRecords().iterator();
+                while (index.hasNext()) {
+                    int number = valueNumbers.get(index.next().get(field)).intValue();
+                    if (width == 1)
+                        output.writeByte(number);
+                    else if (width == 2)
+                        output.writeShort(number);
+                    else
+                        output.writeInt(number);
+                }
+            }
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    // Bytes needed for value numbers of a column with the given number of values
+    private static int numberWidth(int valueCount)
+    {
+        if (valueCount <= 0x100)
+            return 1;
+        else if (valueCount <= 0x10000)
+            return 2;
+        else
+            return 4;
+    }
+
+    /* Returns true if a file is in this format. Throws if it can't be read,
+       like any other attempt to read records */
+    public static boolean isColumnar(String fileName) throws IOException, FileNotFoundException
+    {
+        if (fileName == null)
+            throw new IllegalArgumentException("Filename for input records must be specified");
+        DataInputStream input = new DataInputStream(CompressedFiles.openInput(fileName));
+        try {
+            return (input.readInt() == MAGIC) && (input.readInt() == VERSION);
+        }
+        catch (EOFException e) {
+            return false; // Too short to be one, so text
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /* Read the records of a file. If it contains no records, or is not in
+       this format or is damaged, this method throws an exception */
+    public static RecordGroup read(String fileName) throws IOException, FileNotFoundException
+    {
+        if (fileName == null)
+            throw new IllegalArgumentException("Filename for input records must be specified");
+        DataInputStream input = new DataInputStream(new BufferedInputStream(CompressedFiles.openInput(fileName), 1 << 16));
+        try {
+            if (input.readInt() != MAGIC)
+                throw new IOException("Record file " + fileName + " invalid; not a columnar record file");
+            int version = input.readInt();
+            if (version != VERSION)
+                throw new IOException("Record file " + fileName + " has version " + version + ", only version " + VERSION + " supported");
+            int fieldCount = checkCount(input.readInt(), fileName);
+            int recordCount = checkCount(input.readInt(), fileName);
+            if (recordCount == 0)
+                throw RecordReader.noRecordsError(fileName);
+
+            // Records are filled a column at a time, so they need indexing
+            ArrayList<ArrayList<String> > records = new ArrayList<ArrayList<String> >(recordCount);
+            int record;
+            for (record = 0; record < recordCount; record++)
+                // Room for the classification to be added later
+                records.add(new ArrayList<String>(fieldCount + 1));
+            int field;
+            for (field = 0; field < fieldCount; field++) {
+                int valueCount = checkCount(input.readInt(), fileName);
+                String[] values = new String[valueCount];
+                int index;
+                for (index = 0; index < valueCount; index++) {
+                    byte[] bytes = new byte[checkCount(input.readInt(), fileName)];
+                    input.readFully(bytes);
+                    values[index] = new String(bytes, StandardCharsets.UTF_8);
+                }
+                int width = input.readInt();
+                if ((width != 1) && (width != 2) && (width != 4))
+                    throw new IOException("Record file " + fileName + " invalid; value numbers of " + width + " bytes");
+                for (record = 0; record < recordCount; record++) {
+                    int number;
+                    if (width == 1)
+                        number = input.readUnsignedByte();
+                    else if (width == 2)
+                        number = input.readUnsignedShort();
+                    else
+                        number = input.readInt();
+                    if ((number < 0) || (number >= valueCount))
+                        throw new IOException("Record file " + fileName + " invalid; value number " + number + " out of range");
+                    records.get(record).add(values[number]);
+                }
+            }
+            if (input.read() != -1)
+                throw new IOException("Record file " + fileName + " invalid; data after last field");
+            return new RecordGroup(new LinkedList<ArrayList<String> >(records));
+        }
+        catch (EOFException e) {
+            throw new IOException("Record file " + fileName + " invalid; truncated");
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    // Check a count read from a record file is possible
+    private static int checkCount(int count, String fileName) throws IOException
+    {
+        if (count < 0)
+            throw new IOException("Record file " + fileName + " invalid; negative count " + count);
+        return count;
+    }
+
+    // Code to test the class
+    private static void selfTest()
+    {
+        /* Records with a column needing two bytes per value number, empty
+           values and characters past ASCII must come back the same */
+        LinkedList<ArrayList<String> > list = new LinkedList<ArrayList<String> >();
+        int count;
+        for (count = 0; count < 1000; count++) {
+            ArrayList<String> record = new ArrayList<String>();
+            record.add("id" + count);
+            record.add("a\u00e9" + (count % 7));
+            record.add(((count % 3) == 0) ? "" : "x");
+            record.add(String.valueOf((count % 2) == 0));
+            list.add(record);
+        }
+        RecordGroup records = new RecordGroup(list);
+        System.out.println("Save and read records, expect same records in same order");
+        try {
+            write("ColumnarTest.testtesttest", records);
+            RecordGroup loaded = read("ColumnarTest.testtesttest");
+            if (loaded.getRecords().equals(records.getRecords()) &&
+                isColumnar("ColumnarTest.testtesttest"))
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed, records differ");
+        }
+        catch (Exception e) {
+            System.out.println("Test failed, caught " + e);
+        }
+
+        // Anything reading records through RecordParser must accept it
+        System.out.println("Read saved records through RecordParser, expect same records");
+        try {
+            RecordGroup loaded = RecordParser.readRecords("ColumnarTest.testtesttest");
+            if (loaded.getRecords().equals(records.getRecords()))
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed, records differ");
+        }
+        catch (Exception e) {
+            System.out.println("Test failed, caught " + e);
+        }
+
+        System.out.println("Read truncated file, expect exception");
+        try {
+            RandomAccessFile file = new RandomAccessFile("ColumnarTest.testtesttest", "rw");
+            file.setLength(file.length() - 10);
+            file.close();
+            read("ColumnarTest.testtesttest");
+            System.out.println("Test failed, file read");
+        }
+        catch (IOException e) {
+            System.out.println("Test succeeded, caught " + e);
+        }
+
+        System.out.println("Save records with inconsistent field counts, expect exception");
+        try {
+            list.getFirst().add("extra");
+            write("ColumnarTest.testtesttest", records);
+            System.out.println("Test failed, file written");
+        }
+        catch (IOException e) {
+            System.out.println("Test succeeded, caught " + e);
+        }
+
+        System.out.println("Read file with no records, expect exception");
+        try {
+            write("ColumnarTest.testtesttest", new RecordGroup(new LinkedList<ArrayList<String> >()));
+            read("ColumnarTest.testtesttest");
+            System.out.println("Test failed, file read");
+        }
+        catch (IOException e) {
+            System.out.println("Test succeeded, caught " + e);
+        }
+
+        System.out.println("Check CSV file, expect not columnar");
+        try {
+            PrintWriter outputFile = new PrintWriter(new FileOutputStream("ColumnarTest.testtesttest"));
+            outputFile.println("a,b");
+            outputFile.close();
+            if (!isColumnar("ColumnarTest.testtesttest"))
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed");
+        }
+        catch (IOException e) {
+            System.out.println("Test failed, caught " + e);
+        }
+        new File("ColumnarTest.testtesttest").delete();
+    }
+
+    /* Converts record files between CSV and this format. Reading a CSV file
+       checks it the same way as for classifying */
+    public static void main(String[] args)
+    {
+        if ((args.length == 1) && args[0].equals("selftest"))
+            selfTest();
+        else if ((args.length == 3) && args[0].equals("tobinary")) {
+            try {
+                write(args[2], RecordParser.readRecords(args[1], ForkJoinPool.commonPool()));
+            }
+            catch (Exception e) {
+                System.out.println("Conversion failed with exception: " + e);
+                e.printStackTrace();
+            }
+        }
+        else if ((args.length == 3) && args[0].equals("tocsv")) {
+            try {
+                RecordParser.outputRecords(args[2], read(args[1]));
+            }
+            catch (Exception e) {
+                System.out.println("Conversion failed with exception: " + e);
+                e.printStackTrace();
+            }
+        }
+        else {
+            System.out.println("Use: tobinary [CSV records file] [columnar records file]");
+            System.out.println(" or: tocsv [columnar records file] [CSV records file]");
+            System.out.println(" or: selftest");
+            System.exit(1);
+        }
+    }
+}
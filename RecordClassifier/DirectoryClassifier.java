@@ -0,0 +1,415 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class watches a directory for record files and classifies each one as
+   it arrives, with the rules kept in memory, so batches dropped through the
+   day don't each need a new process that loads the rules again. Several files
+   are classified at once, each on its own thread, sharing a pool for the
+   records within them.
+
+   A file is only classified once its size and modification time have stopped
+   changing for a short time, so one still being copied in is not read half
+   written. Files whose names start with '.' are ignored, so producers can
+   write a file under such a name and rename it into place. The results go to
+   a file of the same name in the output directory, which must be a different
+   one. They are written under a hidden name and renamed into place when
+   complete, so a file appears there only once it is whole. A file is
+   classified again when it is modified, but not on restart if its results
+   are already newer than it */
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class DirectoryClassifier implements Closeable
+{
+    // How long a file must be unchanged before it is classified
+    private static final long SETTLE_MILLIS = 1000L;
+
+    private RecordClassifier _classifier;
+    private Path _input;
+    private Path _output;
+    private ForkJoinPool _pool;
+    private long _settleMillis;
+    private WatchService _watcher;
+    private ExecutorService _files;
+    // Files waiting to be classified or being classified
+    private Set<Path> _pending;
+    // Modification time of each file when last classified
+    private ConcurrentHashMap<Path, FileTime> _done;
+    private AtomicLong _classified;
+    private AtomicLong _failed;
+
+    /* Create the classifier for a directory, writing results to another. Up to
+       maxFiles files are classified at once. The records of each are
+       classified using the pool, or on the file's own thread if it is NULL */
+    public DirectoryClassifier(RecordClassifier classifier, String inputDirectory,
+                               String outputDirectory, int maxFiles,
+                               ForkJoinPool pool) throws IOException
+    {
+        this(classifier, inputDirectory, outputDirectory, maxFiles, pool, SETTLE_MILLIS);
+    }
+
+    // As above, with the time files must be unchanged given
+    DirectoryClassifier(RecordClassifier classifier, String inputDirectory,
+                        String outputDirectory, int maxFiles,
+                        ForkJoinPool pool, long settleMillis) throws IOException
+    {
+        if (classifier == null)
+            throw new IllegalArgumentException("Classifier for directory passed null");
+        if (maxFiles < 1)
+            throw new IllegalArgumentException("Files to classify at once " + maxFiles + " invalid");
+        _input = Paths.get(inputDirectory);
+        _output = Paths.get(outputDirectory);
+        if (!Files.isDirectory(_input))
+            throw new IOException("Input directory " + inputDirectory + " does not exist");
+        if (!Files.isDirectory(_output))
+            throw new IOException("Output directory " + outputDirectory + " does not exist");
+        // Results in the input directory would be classified in turn
+        if (Files.isSameFile(_input, _output))
+            throw new IllegalArgumentException("Output directory " + outputDirectory
+                                               + " must differ from input directory");
+        _classifier = classifier;
+        _pool = pool;
+        _settleMillis = settleMillis;
+        _pending = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+        _done = new ConcurrentHashMap<Path, FileTime>();
+        _classified = new AtomicLong();
+        _failed = new AtomicLong();
+        _watcher = _input.getFileSystem().newWatchService();
+        _input.register(_watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+        _files = Executors.newFixedThreadPool(maxFiles, new ThreadFactory() {
+                public Thread newThread(Runnable task)
+                {
+                    Thread result = new Thread(task, "DirectoryClassifier file");
+                    result.setDaemon(true);
+                    return result;
+                }
+            });
+    }
+
+    // Number of files classified so far
+    public long getFilesClassified()
+    {
+        return _classified.get();
+    }
+
+    // Number of files which could not be classified
+    public long getFilesFailed()
+    {
+        return _failed.get();
+    }
+
+    /* Classify the files already in the directory, then those which arrive,
+       until closed */
+    public void run() throws IOException
+    {
+        try {
+            submitAll();
+            while (true) {
+                WatchKey key = _watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                        // Events were lost, so look at everything
+                        submitAll();
+                    else
+                        submit(_input.resolve((Path)event.context()));
+                }
+                if (!key.reset())
+                    throw new IOException("Input directory " + _input + " no longer accessible");
+            }
+        }
+        catch (ClosedWatchServiceException e) {
+            // Thrown when closed while waiting
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* Stop watching for files. Files already found are still classified,
+       unless the process exits first */
+    public void close() throws IOException
+    {
+        _watcher.close();
+        _files.shutdown();
+    }
+
+    // Wait for the files already found to be classified, after closing
+    boolean awaitFiles(long millis) throws InterruptedException
+    {
+        return _files.awaitTermination(millis, TimeUnit.MILLISECONDS);
+    }
+
+    // Queue every file in the input directory to be classified
+    private void submitAll() throws IOException
+    {
+        DirectoryStream<Path> files = Files.newDirectoryStream(_input);
+        try {
+            for (Path file : files)
+                submit(file);
+        }
+        finally {
+            files.close();
+        }
+    }
+
+    /* Queue a file to be classified, unless it is hidden, already queued, or
+       its results are up to date */
+    private void submit(final Path file)
+    {
+        if (file.getFileName().toString().startsWith("."))
+            return;
+        try {
+            if (!Files.isRegularFile(file))
+                return;
+            FileTime modified = Files.getLastModifiedTime(file);
+            if (modified.equals(_done.get(file)))
+                return;
+            Path result = _output.resolve(file.getFileName());
+            if ((!_done.containsKey(file)) && Files.exists(result) &&
+                (Files.getLastModifiedTime(result).compareTo(modified) >= 0))
+                // Classified before a restart
+                return;
+        }
+        catch (IOException e) {
+            // Deleted while looking at it
+            return;
+        }
+        if (!_pending.add(file))
+            return;
+        try {
+            _files.execute(new Runnable() {
+                    public void run()
+                    {
+                        classify(file);
+                    }
+                });
+        }
+        catch (RejectedExecutionException e) {
+            // Closed
+            _pending.remove(file);
+        }
+    }
+
+    /* Wait for a file to stop changing, then classify it. Events for it are
+       ignored while it is pending, so if it changed while being classified it
+       is queued again */
+    private void classify(Path file)
+    {
+        FileTime modified = null;
+        try {
+            modified = awaitSettled(file);
+        }
+        catch (IOException e) {
+            // Deleted before it could be classified
+            _pending.remove(file);
+            return;
+        }
+        catch (InterruptedException e) {
+            _pending.remove(file);
+            return;
+        }
+        Path result = _output.resolve(file.getFileName());
+        Path partial = _output.resolve("." + file.getFileName());
+        try {
+            _classifier.classifyRecords(file.toString(), partial.toString(), _pool);
+            Files.move(partial, result, StandardCopyOption.ATOMIC_MOVE);
+            _classified.incrementAndGet();
+            System.out.println("Classified " + file + " into " + result);
+        }
+        catch (Exception e) {
+            System.out.println("Classifying " + file + " failed with exception: " + e);
+            try {
+                Files.deleteIfExists(partial);
+            }
+            catch (IOException e2) {
+                // Left for the next attempt to overwrite
+            }
+            // Counted only once cleaned up, so a count seen means no partial file
+            _failed.incrementAndGet();
+        }
+        // A failed file is not tried again until it changes
+        _done.put(file, modified);
+        _pending.remove(file);
+        submit(file);
+    }
+
+    /* Wait until a file's size and modification time are the same after the
+       settle time, and return the modification time */
+    private FileTime awaitSettled(Path file) throws IOException, InterruptedException
+    {
+        FileTime modified = Files.getLastModifiedTime(file);
+        long size = Files.size(file);
+        while (true) {
+            Thread.sleep(_settleMillis);
+            FileTime newModified = Files.getLastModifiedTime(file);
+            long newSize = Files.size(file);
+            if (newModified.equals(modified) && (newSize == size))
+                return modified;
+            modified = newModified;
+            size = newSize;
+        }
+    }
+
+    // Write lines to a file, for testing
+    private static void writeLines(Path file, String lines) throws IOException
+    {
+        Writer output = new OutputStreamWriter(new FileOutputStream(file.toFile()));
+        try {
+            output.write(lines);
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    // Wait up to ten seconds for a count of files to be handled, for testing
+    private static boolean awaitCount(AtomicLong count, long expected) throws InterruptedException
+    {
+        int tries;
+        for (tries = 0; (tries < 1000) && (count.get() < expected); tries++)
+            Thread.sleep(10);
+        return count.get() >= expected;
+    }
+
+    // Code to test the class
+    public static void main(String[] args)
+    {
+        // Records are invalid when the second field is 'bad'
+        ArrayList<String> valid = new ArrayList<String>();
+        valid.add("value1");
+        valid.add("good");
+        valid.add("true");
+        ArrayList<String> invalid = new ArrayList<String>();
+        invalid.add("value1");
+        invalid.add("bad");
+        invalid.add("false");
+        RecordGroup training = new RecordGroup(valid);
+        training.add(invalid);
+
+        Path input = null;
+        Path output = null;
+        try {
+            input = Files.createTempDirectory("dirclassify");
+            output = Files.createTempDirectory("dirclassify");
+            RecordClassifier classifier = new RecordClassifier(training, null);
+            writeLines(input.resolve("early.csv"), "x,good\ny,bad\n");
+
+            System.out.println("Create classifier with same input and output directory, expect exception");
+            try {
+                new DirectoryClassifier(classifier, input.toString(), input.toString(), 1, null);
+                System.out.println("Test failed, no exception");
+            }
+            catch (IllegalArgumentException e) {
+                System.out.println("Test succeeded");
+            }
+
+            final DirectoryClassifier test = new DirectoryClassifier(classifier, input.toString(),
+                                                                     output.toString(), 2,
+                                                                     ForkJoinPool.commonPool(), 100L);
+            Thread watcher = new Thread(new Runnable() {
+                    public void run()
+                    {
+                        try {
+                            test.run();
+                        }
+                        catch (IOException e) {
+                            System.out.println("Test failed, watcher caught " + e);
+                        }
+                    }
+                });
+            watcher.start();
+
+            System.out.println("File present before starting, expect it classified");
+            if (awaitCount(test._classified, 1)) {
+                BufferedReader results = new BufferedReader(new FileReader(output.resolve("early.csv").toFile()));
+                String lines = results.readLine() + "|" + results.readLine() + "|" + results.readLine();
+                results.close();
+                if (lines.equals("x,good,true|y,bad,false|null"))
+                    System.out.println("Test succeeded");
+                else
+                    System.out.println("Test failed, got " + lines);
+            }
+            else
+                System.out.println("Test failed, file not classified");
+
+            System.out.println("Drop two files, one hidden, expect only the other classified");
+            writeLines(input.resolve(".hidden.csv"), "x,good\n");
+            writeLines(input.resolve("late.csv"), "z,bad\n");
+            if (awaitCount(test._classified, 2) && Files.exists(output.resolve("late.csv"))
+                && !Files.exists(output.resolve(".hidden.csv")))
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed, classified " + test.getFilesClassified());
+
+            System.out.println("Drop file with inconsistent records, expect it to fail with no results left");
+            writeLines(input.resolve("broken.csv"), "x,good\ny\n");
+            if (awaitCount(test._failed, 1) && !Files.exists(output.resolve("broken.csv"))
+                && !Files.exists(output.resolve(".broken.csv")))
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed, failed " + test.getFilesFailed());
+
+            System.out.println("Restart on same directories, expect nothing classified again");
+            test.close();
+            watcher.join();
+            test.awaitFiles(10000L);
+            DirectoryClassifier restart = new DirectoryClassifier(classifier, input.toString(),
+                                                                  output.toString(), 2, null, 100L);
+            restart.submitAll();
+            restart.close();
+            restart.awaitFiles(10000L);
+            // The broken file has no results so is tried again
+            if ((restart.getFilesClassified() == 0) && (restart.getFilesFailed() == 1))
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed, classified " + restart.getFilesClassified()
+                                   + " failed " + restart.getFilesFailed());
+        }
+        catch (Exception e) {
+            System.out.println("Test failed, caught " + e);
+        }
+        finally {
+            deleteDirectory(input);
+            deleteDirectory(output);
+        }
+    }
+
+    // Delete a test directory and its files
+    private static void deleteDirectory(Path directory)
+    {
+        if (directory == null)
+            return;
+        File[] files = directory.toFile().listFiles();
+        int index;
+        if (files != null)
+            for (index = 0; index < files.length; index++)
+                files[index].delete();
+        directory.toFile().delete();
+    }
+}
@@ -43,7 +43,7 @@ public final class FieldFilterGroup
         /* Need a copy of the filters seperate from the list, which is
            mutable. The shallow copy of an array conversion handles this
            easily */
-        init((FieldFilter[])filters.toArray());
+        init(filters.toArray(new FieldFilter[filters.size()]));
     }
         
     // Construct from a single filter
@@ -154,6 +154,12 @@ public final class FieldFilterGroup
         return _filters.length;
     }
 
+    // Returns the filter at the given position. Filters are sorted by field
+    public FieldFilter getFilter(int index)
+    {
+        return _filters[index];
+    }
+
     // Returns the highest field for which a filter is defined
     public int getLastFilterField()
     {
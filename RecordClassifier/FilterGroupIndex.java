@@ -0,0 +1,846 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class holds every filter group of one size generated from a set of
+   training records, along with the records each one selects. It replaces a
+   hashmap of group objects to record lists, whose per-entry overhead
+   dominates memory once groups have two or three filters and their number
+   explodes. Groups are numbered densely from zero, and everything about them
+   is stored in flat parallel arrays indexed by that number:
+   - The dictionary codes of the filters, in field order
+   - The codes packed into a long, as described in FilterGroupKey
+   - The position within the classification fields of the highest field
+   - The number of records still selected
+   - The offset and length of the list of records it selects
+   Record lists are all stored in one array as sorted record ordinals. A
+   removed record is marked by storing the complement of its ordinal, which
+   keeps the list sorted for binary search and means it never shifts.
+
+   Finding a group from its key uses an open addressing hash table of group
+   numbers, probed linearly on the mixed packed key. Generating the groups
+   never needs it, because every group one size larger has exactly one group
+   it comes from, so the children of each group can be found by looking at
+   that group's records alone. The table is therefore built the first time a
+   lookup happens.
+
+   Since each group's children depend on nothing but that group, expansion
+   can also be split across threads by ranges of groups. Each range produces
+   a partial index of the children, whose record lists are written straight
+   into their final place in a shared array; their sizes are known in advance.
+   Appending the partial indexes in range order then numbers every group
+   exactly as a single thread would have.
+
+   Every array sized by the number of groups or records is created through a
+   StorageBudget, which moves them to memory-mapped files once the index
+   outgrows its share of the heap. Past two filters most groups select only
+   a record or two, so the per group arrays end up far larger than the
+   record lists. Arrays of an index no longer needed should be handed back
+   with release() */
+import java.util.*;
+import java.util.concurrent.*;
+
+public class FilterGroupIndex
+{
+    private int _groupSize; // Filters in every group
+    private int _radix; // For packing codes, the dictionary size
+    private boolean _exact; // True if packed keys are unique
+
+    private int _groupCount; // Groups created, including emptied ones
+    private int _liveGroups; // Groups with at least one record
+
+    private IntStore _codes; // _groupSize entries per group
+    private LongStore _packed;
+    private IntStore _lastPositions;
+    private IntStore _counts;
+    private IntStore _offsets;
+    private IntStore _lengths;
+
+    private IntStore _postings; // Record lists for every group
+    private int _postingsUsed;
+
+    // Hash table of group number plus one, zero marking an empty slot
+    private IntStore _table;
+
+    private StorageBudget _storage; // Creates the arrays
+
+    /* Expansion is only split across threads when each part gets at least
+       this many record entries, since smaller levels finish faster than the
+       tasks can be handed out */
+    private static final int MIN_PARALLEL_POSTINGS = 1 << 16;
+
+    /* Scratch space for generating groups. For each code, the last time it
+       was seen, by pass number, and the group it created on that pass */
+    private static final class Scratch
+    {
+        int[] seen;
+        int[] groups;
+        int pass;
+        int[] ordinals;
+
+        Scratch(int radix)
+        {
+            seen = new int[radix];
+            groups = new int[radix];
+            pass = 0;
+            ordinals = new int[16];
+        }
+    }
+
+    /* Create the index empty, for groups of the given size. The expected
+       group count is only a hint, but the posting count must be large enough
+       for every record list that will be added */
+    private FilterGroupIndex(int groupSize, int radix, int expectedGroups,
+                             int postingCount, StorageBudget storage)
+    {
+        this(groupSize, radix, expectedGroups, storage.allocate(postingCount), 0,
+             storage);
+    }
+
+    /* Create the index empty, with record lists starting at the given offset
+       in an array that may be shared with other indexes */
+    private FilterGroupIndex(int groupSize, int radix, int expectedGroups,
+                             IntStore postings, int postingsStart,
+                             StorageBudget storage)
+    {
+        _groupSize = groupSize;
+        _radix = radix;
+        _exact = true;
+        long limit = 1;
+        int index;
+        for (index = 0; index < groupSize; index++) {
+            if (limit > (Long.MAX_VALUE / radix))
+                _exact = false;
+            else
+                limit *= radix;
+        }
+        if (expectedGroups < 16)
+            expectedGroups = 16;
+        _groupCount = 0;
+        _liveGroups = 0;
+        _storage = storage;
+        _codes = storage.allocate(expectedGroups * groupSize);
+        _packed = storage.allocateLongs(expectedGroups);
+        _lastPositions = storage.allocate(expectedGroups);
+        _counts = storage.allocate(expectedGroups);
+        _offsets = storage.allocate(expectedGroups);
+        _lengths = storage.allocate(expectedGroups);
+        _postings = postings;
+        _postingsUsed = postingsStart;
+        _table = null;
+    }
+
+    /* Create the index of single filter groups for a set of records. The
+       records are given as their dictionary codes, one entry per field used
+       for classification, indexed by record ordinal */
+    public static FilterGroupIndex firstLevel(int[][] recordCodes, int fieldCount,
+                                              int radix)
+    {
+        return firstLevel(recordCodes, fieldCount, radix, new StorageBudget());
+    }
+
+    /* Create the index of single filter groups as above, creating its
+       arrays, and those of every index expanded from it, from a budget */
+    public static FilterGroupIndex firstLevel(int[][] recordCodes, int fieldCount,
+                                              int radix, StorageBudget storage)
+    {
+        if (storage == null)
+            throw new IllegalArgumentException("Storage for filter group index passed null");
+        if (recordCodes == null)
+            throw new IllegalArgumentException("Record codes for filter group index passed null");
+        if (fieldCount <= 0)
+            throw new IllegalArgumentException("Filter group index needs at least one field, got " + fieldCount);
+        if (radix <= 0)
+            throw new IllegalArgumentException("Filter group index needs a positive radix, got " + radix);
+        long postings = (long)recordCodes.length * fieldCount;
+        if (postings > Integer.MAX_VALUE)
+            throw new IllegalStateException("Filter group index too large, " + postings + " record entries needed");
+
+        // Every field of every record, treated as the children of one group
+        FilterGroupIndex result = new FilterGroupIndex(1, radix, fieldCount * 16,
+                                                       (int)postings, storage);
+        Scratch scratch = new Scratch(radix);
+        int[] ordinals = new int[recordCodes.length];
+        int ordinal;
+        for (ordinal = 0; ordinal < ordinals.length; ordinal++)
+            ordinals[ordinal] = ordinal;
+        int position;
+        for (position = 0; position < fieldCount; position++)
+            result.addChildren(null, -1, ordinals, ordinals.length, position,
+                               recordCodes, scratch);
+        return result;
+    }
+
+    /* Create the index of groups one filter larger, for all records remaining
+       in this one. Every group is extended by each field after its highest
+       one. Groups whose highest field is the last field can't be extended and
+       are dropped; if they use every field, that drops records and an
+       exception is thrown */
+    public FilterGroupIndex expand(int[][] recordCodes, int fieldCount)
+    {
+        return expand(recordCodes, fieldCount, null);
+    }
+
+    /* Create the index of groups one filter larger as above, splitting the
+       work across the threads of a pool. A NULL pool, or one with a single
+       thread, does it on the calling thread. The result is the same either
+       way, down to the group numbers */
+    public FilterGroupIndex expand(int[][] recordCodes, int fieldCount,
+                                   ForkJoinPool pool)
+    {
+        return expand(recordCodes, fieldCount, pool, MIN_PARALLEL_POSTINGS);
+    }
+
+    private FilterGroupIndex expand(int[][] recordCodes, int fieldCount,
+                                    ForkJoinPool pool, int minPartPostings)
+    {
+        /* The new record lists have an entry for every record in every group
+           times the number of fields it can be extended by, so their size is
+           known exactly in advance. Each group creates at most one group per
+           record per field, but usually far fewer since records share values.
+           Half the old group count per field is a reasonable starting guess */
+        long postings = 0;
+        int group;
+        for (group = 0; group < _groupCount; group++)
+            postings += childPostings(group, fieldCount);
+        if (postings > Integer.MAX_VALUE)
+            throw new IllegalStateException("Filter group index too large, " + postings + " record entries needed");
+        long estGroups = Math.min(postings, ((long)_liveGroups * fieldCount) / 2);
+
+        /* Several parts per thread, so a thread that draws groups with few
+           children can pick up more work */
+        int parts = 1;
+        if ((pool != null) && (pool.getParallelism() > 1))
+            parts = (int)Math.min(pool.getParallelism() * 4L,
+                                  postings / Math.max(minPartPostings, 1));
+        if (parts <= 1) {
+            FilterGroupIndex result = new FilterGroupIndex(_groupSize + 1, _radix,
+                                                           (int)estGroups,
+                                                           (int)postings, _storage);
+            try {
+                expandRange(0, _groupCount, result, recordCodes, fieldCount);
+            }
+            catch (RuntimeException e) {
+                result.release();
+                throw e;
+            }
+            return result;
+        }
+
+        /* Cut the groups into ranges with about the same number of record
+           entries. Since children are laid out in group order, the entries
+           before a range give where its record lists start */
+        IntStore shared = _storage.allocate((int)postings);
+        ArrayList<ExpandTask> tasks = new ArrayList<ExpandTask>();
+        long partSize = (postings + parts - 1) / parts;
+        long done = 0;
+        long partStart = 0;
+        int firstGroup = 0;
+        for (group = 0; group < _groupCount; group++) {
+            done += childPostings(group, fieldCount);
+            if (((done - partStart) >= partSize) || (group == (_groupCount - 1))) {
+                FilterGroupIndex part = new FilterGroupIndex(_groupSize + 1, _radix,
+                                                             (int)((estGroups * (done - partStart)) / postings),
+                                                             shared, (int)partStart,
+                                                             _storage);
+                tasks.add(new ExpandTask(firstGroup, group + 1, part, recordCodes,
+                                         fieldCount, (int)done));
+                firstGroup = group + 1;
+                partStart = done;
+            }
+        }
+
+        /* Wait for every part even if one fails, so nothing is still writing
+           to the shared array when this returns */
+        Iterator<ExpandTask> taskIndex = tasks.iterator();
+        while (taskIndex.hasNext())
+            pool.execute(taskIndex.next());
+        RuntimeException failure = null;
+        taskIndex = tasks.iterator();
+        while (taskIndex.hasNext()) {
+            try {
+                taskIndex.next().join();
+            }
+            catch (RuntimeException e) {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        if (failure != null) {
+            shared.release();
+            releaseParts(tasks);
+            throw failure;
+        }
+        FilterGroupIndex result = append(tasks, shared, (int)postings);
+        releaseParts(tasks);
+        return result;
+    }
+
+    /* Generate the children of a range of groups into one part of an index.
+       Each part needs its own scratch space, which is why this is a task per
+       part and not per group */
+    private final class ExpandTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private int _firstGroup;
+        private int _endGroup;
+        private transient FilterGroupIndex _part;
+        private int[][] _recordCodes;
+        private int _fieldCount;
+        private int _postingsEnd; // Where the next part's record lists start
+
+        ExpandTask(int firstGroup, int endGroup, FilterGroupIndex part,
+                   int[][] recordCodes, int fieldCount, int postingsEnd)
+        {
+            _firstGroup = firstGroup;
+            _endGroup = endGroup;
+            _part = part;
+            _recordCodes = recordCodes;
+            _fieldCount = fieldCount;
+            _postingsEnd = postingsEnd;
+        }
+
+        protected void compute()
+        {
+            expandRange(_firstGroup, _endGroup, _part, _recordCodes, _fieldCount);
+            // SANITY CHECK: Part must exactly fill its share of the entries
+            if (_part._postingsUsed != _postingsEnd)
+                throw new IllegalStateException("Filter group expansion inconsistent, part filled " + _part._postingsUsed + " record entries, expected " + _postingsEnd);
+        }
+    }
+
+    /* Combine the parts of an expansion into one index, numbering the groups
+       of each part after those of the ones before it. The record lists are
+       already in place in the shared array */
+    private FilterGroupIndex append(ArrayList<ExpandTask> tasks, IntStore postings,
+                                    int postingCount)
+    {
+        int groupCount = 0;
+        Iterator<ExpandTask> taskIndex = tasks.iterator();
+        while (taskIndex.hasNext())
+            groupCount += taskIndex.next()._part._groupCount;
+        FilterGroupIndex result = new FilterGroupIndex(_groupSize + 1, _radix,
+                                                       groupCount, postings,
+                                                       postingCount, _storage);
+        taskIndex = tasks.iterator();
+        while (taskIndex.hasNext()) {
+            FilterGroupIndex part = taskIndex.next()._part;
+            int base = result._groupCount;
+            part._codes.copyTo(0, result._codes, base * result._groupSize,
+                               part._groupCount * part._groupSize);
+            part._packed.copyTo(0, result._packed, base, part._groupCount);
+            part._lastPositions.copyTo(0, result._lastPositions, base, part._groupCount);
+            part._counts.copyTo(0, result._counts, base, part._groupCount);
+            part._offsets.copyTo(0, result._offsets, base, part._groupCount);
+            part._lengths.copyTo(0, result._lengths, base, part._groupCount);
+            result._groupCount += part._groupCount;
+            result._liveGroups += part._liveGroups;
+        }
+        return result;
+    }
+
+    /* Release the parts of an expansion. Their record lists are shared with
+       the result, so they stay */
+    private static void releaseParts(ArrayList<ExpandTask> tasks)
+    {
+        Iterator<ExpandTask> taskIndex = tasks.iterator();
+        while (taskIndex.hasNext())
+            taskIndex.next()._part.releaseGroups();
+    }
+
+    // Record entries the children of a group will have
+    private long childPostings(int group, int fieldCount)
+    {
+        return (long)_counts.get(group) * Math.max(fieldCount - 1 - _lastPositions.get(group), 0);
+    }
+
+    // Add the groups generated from a range of groups to another index
+    private void expandRange(int firstGroup, int endGroup, FilterGroupIndex result,
+                             int[][] recordCodes, int fieldCount)
+    {
+        Scratch scratch = new Scratch(_radix);
+        int group;
+        for (group = firstGroup; group < endGroup; group++)
+            expandGroup(group, result, recordCodes, fieldCount, scratch);
+    }
+
+    // Add the groups generated from one group of this index to another index
+    private void expandGroup(int group, FilterGroupIndex result,
+                             int[][] recordCodes, int fieldCount, Scratch scratch)
+    {
+        int remaining = _counts.get(group);
+        if (remaining == 0)
+            return; // Emptied, all records removed
+        if (_lastPositions.get(group) >= (fieldCount - 1)) {
+            /* If the size of the curent filter group is equal to the number of
+               fields used for classification, expanding the filter group is
+               illegal because its records will be dropped from the training
+               set unprocessed (Since every field in the record used for
+               classification is filtered by this group, its the only one that
+               currently filters it) */
+            if (_groupSize >= fieldCount)
+                throw new IllegalStateException("Attempt to make filters more specific invalid, at least one training record dropped");
+            return;
+        }
+
+        // Collect the records remaining
+        if (scratch.ordinals.length < remaining)
+            scratch.ordinals = new int[Math.max(remaining, scratch.ordinals.length * 2)];
+        int count = 0;
+        int slot;
+        int end = _offsets.get(group) + _lengths.get(group);
+        for (slot = _offsets.get(group); slot < end; slot++) {
+            int ordinal = _postings.get(slot);
+            if (ordinal >= 0)
+                scratch.ordinals[count++] = ordinal;
+        }
+
+        int position;
+        for (position = _lastPositions.get(group) + 1; position < fieldCount; position++)
+            result.addChildren(this, group, scratch.ordinals, count, position,
+                               recordCodes, scratch);
+    }
+
+    /* Add the groups formed by extending a group of another index with one
+       field, given the records the original group selects. A NULL source
+       means extending an empty group. Every group created here is new, since
+       no other group can create it, so they get consecutive numbers */
+    private void addChildren(FilterGroupIndex source, int parent, int[] ordinals,
+                             int count, int position, int[][] recordCodes,
+                             Scratch scratch)
+    {
+        scratch.pass++;
+        if (scratch.pass == 0) {
+            // Pass numbers wrapped, so old marks could match. Clear them
+            Arrays.fill(scratch.seen, 0);
+            scratch.pass = 1;
+        }
+        int firstChild = _groupCount;
+
+        /* First pass creates the groups and counts their records, in the list
+           lengths until the lists are laid out */
+        int index;
+        for (index = 0; index < count; index++) {
+            int code = recordCodes[ordinals[index]][position];
+            int child;
+            if (scratch.seen[code] != scratch.pass) {
+                child = newGroup(source, parent, code, position);
+                scratch.seen[code] = scratch.pass;
+                scratch.groups[code] = child;
+            }
+            else
+                child = scratch.groups[code];
+            _lengths.set(child, _lengths.get(child) + 1);
+        }
+
+        // Lay out the record lists in group order
+        int child;
+        for (child = firstChild; child < _groupCount; child++) {
+            int length = _lengths.get(child);
+            _counts.set(child, length);
+            _offsets.set(child, _postingsUsed);
+            _postingsUsed += length;
+            _lengths.set(child, 0);
+        }
+
+        /* Second pass fills the lists. Records are visited in order, so each
+           list comes out sorted */
+        for (index = 0; index < count; index++) {
+            child = scratch.groups[recordCodes[ordinals[index]][position]];
+            int length = _lengths.get(child);
+            _postings.set(_offsets.get(child) + length, ordinals[index]);
+            _lengths.set(child, length + 1);
+        }
+    }
+
+    // Allocate a new group from a group of another index plus one code
+    private int newGroup(FilterGroupIndex source, int parent, int code,
+                         int position)
+    {
+        if (_groupCount == _packed.length()) {
+            int newSize = _packed.length() * 2;
+            _codes = _codes.resize(newSize * _groupSize);
+            _packed = _packed.resize(newSize);
+            _lastPositions = _lastPositions.resize(newSize);
+            _counts = _counts.resize(newSize);
+            _offsets = _offsets.resize(newSize);
+            _lengths = _lengths.resize(newSize);
+        }
+        int group = _groupCount;
+        long packed = 0;
+        if (source != null) {
+            source._codes.copyTo(parent * source._groupSize, _codes,
+                                 group * _groupSize, source._groupSize);
+            packed = source._packed.get(parent);
+        }
+        _codes.set((group * _groupSize) + _groupSize - 1, code);
+        _packed.set(group, (packed * _radix) + code);
+        _lastPositions.set(group, position);
+        _groupCount++;
+        _liveGroups++;
+        return group;
+    }
+
+    // Filters in every group of the index
+    public int getGroupSize()
+    {
+        return _groupSize;
+    }
+
+    /* Number of group numbers allocated. Groups emptied of records keep their
+       number, so this can be larger than the number of groups remaining */
+    public int getGroupCount()
+    {
+        return _groupCount;
+    }
+
+    // Number of groups that still select at least one record
+    public int getLiveGroups()
+    {
+        return _liveGroups;
+    }
+
+    // Number of records a group selects, zero once emptied
+    public int getCount(int group)
+    {
+        return _counts.get(group);
+    }
+
+    // Position of the highest field of a group within the classify fields
+    public int getLastPosition(int group)
+    {
+        return _lastPositions.get(group);
+    }
+
+    // Dictionary code of a filter of a group, in field order
+    public int getCode(int group, int index)
+    {
+        return _codes.get((group * _groupSize) + index);
+    }
+
+    // Returns the key of a group
+    public FilterGroupKey getKey(int group)
+    {
+        int[] codes = new int[_groupSize];
+        int index;
+        for (index = 0; index < _groupSize; index++)
+            codes[index] = _codes.get((group * _groupSize) + index);
+        return FilterGroupKey.fromCodes(codes, _radix);
+    }
+
+    /* Slots in the record list of a group, including removed records.
+       Together with getOrdinal() this allows iterating without creating
+       objects */
+    public int getSlots(int group)
+    {
+        return _lengths.get(group);
+    }
+
+    // Returns the record in a slot of a group, or -1 if it was removed
+    public int getOrdinal(int group, int slot)
+    {
+        int value = _postings.get(_offsets.get(group) + slot);
+        return (value < 0) ? -1 : value;
+    }
+
+    /* Remove a record from a group, returning the number of records it has
+       left. Throws if the group does not select the record, since that means
+       the caller's view of the records is inconsistent with the index */
+    public int removeRecord(int group, int ordinal)
+    {
+        int low = _offsets.get(group);
+        int high = low + _lengths.get(group) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = _postings.get(mid);
+            if (value < 0)
+                value = ~value;
+            if (value < ordinal)
+                low = mid + 1;
+            else if (value > ordinal)
+                high = mid - 1;
+            else if (_postings.get(mid) < 0)
+                break; // Already removed
+            else {
+                _postings.set(mid, ~ordinal);
+                int remaining = _counts.get(group) - 1;
+                _counts.set(group, remaining);
+                if (remaining == 0)
+                    _liveGroups--;
+                return remaining;
+            }
+        }
+        throw new IllegalStateException("Training data invalid; record " + ordinal + " not in filter group " + getKey(group));
+    }
+
+    /* Remove a group along with all its records. The records are NOT removed
+       from any other group */
+    public void removeGroup(int group)
+    {
+        if (_counts.get(group) > 0) {
+            _counts.set(group, 0);
+            _liveGroups--;
+        }
+    }
+
+    /* Find the number of the group with the given key, or -1 if there is no
+       such group with records remaining */
+    public int find(FilterGroupKey key)
+    {
+        if ((key == null) || (key.size() != _groupSize))
+            return -1;
+        if (_table == null)
+            buildTable();
+        int mask = _table.length() - 1;
+        int slot = FilterGroupKey.mix(key.getPacked()) & mask;
+        while (_table.get(slot) != 0) {
+            int group = _table.get(slot) - 1;
+            if ((_packed.get(group) == key.getPacked()) && sameCodes(group, key))
+                return (_counts.get(group) > 0) ? group : -1;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    // Returns true if a group has the codes of a key
+    private boolean sameCodes(int group, FilterGroupKey key)
+    {
+        if (_exact)
+            return true; // Packed value already compared
+        int index;
+        for (index = 0; index < _groupSize; index++)
+            if (_codes.get((group * _groupSize) + index) != key.getCode(index))
+                return false;
+        return true;
+    }
+
+    /* Build the hash table of groups. It holds every group ever created,
+       which is simpler than removing them as they empty and costs little,
+       since lookups check the record count anyway. The load factor is kept
+       to a half or less so probe sequences stay short */
+    private void buildTable()
+    {
+        int capacity = 16;
+        while (capacity < (_groupCount * 2))
+            capacity *= 2;
+        _table = _storage.allocate(capacity);
+        int mask = capacity - 1;
+        int group;
+        for (group = 0; group < _groupCount; group++) {
+            int slot = FilterGroupKey.mix(_packed.get(group)) & mask;
+            while (_table.get(slot) != 0)
+                slot = (slot + 1) & mask;
+            _table.set(slot, group + 1);
+        }
+    }
+
+    /* Return the arrays to the storage budget. The index must not be used
+       afterward */
+    public void release()
+    {
+        _postings.release();
+        releaseGroups();
+    }
+
+    // Return every array but the record lists to the storage budget
+    private void releaseGroups()
+    {
+        _codes.release();
+        _packed.release();
+        _lastPositions.release();
+        _counts.release();
+        _offsets.release();
+        _lengths.release();
+        if (_table != null)
+            _table.release();
+    }
+
+    public String toString()
+    {
+        return "FilterGroupIndex: " + _liveGroups + " groups of size " + _groupSize + " with " + _postingsUsed + " record entries";
+    }
+
+    // Returns true if two indexes have the same groups with the same numbers
+    private static boolean sameIndex(FilterGroupIndex first, FilterGroupIndex second)
+    {
+        if ((first._groupSize != second._groupSize) ||
+            (first._groupCount != second._groupCount) ||
+            (first._liveGroups != second._liveGroups) ||
+            (first._postingsUsed != second._postingsUsed))
+            return false;
+        int groupCount = first._groupCount;
+        int index;
+        for (index = 0; index < groupCount; index++)
+            if (first._packed.get(index) != second._packed.get(index))
+                return false;
+        return (sameEntries(first._codes, second._codes, groupCount * first._groupSize) &&
+                sameEntries(first._lastPositions, second._lastPositions, groupCount) &&
+                sameEntries(first._counts, second._counts, groupCount) &&
+                sameEntries(first._offsets, second._offsets, groupCount) &&
+                sameEntries(first._lengths, second._lengths, groupCount) &&
+                sameEntries(first._postings, second._postings, first._postingsUsed));
+    }
+
+    // Returns true if two arrays start with the same entries
+    private static boolean sameEntries(IntStore first, IntStore second, int count)
+    {
+        int index;
+        for (index = 0; index < count; index++)
+            if (first.get(index) != second.get(index))
+                return false;
+        return true;
+    }
+
+    // Code to test the class
+    public static void main(String[] args)
+    {
+        /* Three records with three fields. Codes are just numbers here, with
+           fields using disjoint ranges like a real dictionary */
+        int[][] codes = new int[3][];
+        codes[0] = new int[] {0, 2, 5};
+        codes[1] = new int[] {0, 3, 5};
+        codes[2] = new int[] {1, 3, 6};
+        int radix = 7;
+
+        FilterGroupIndex test = firstLevel(codes, 3, radix);
+        System.out.println("Single filter index: " + test);
+        System.out.println("Expect six groups, with code 5 selecting records 0 and 1");
+        int group = test.find(new FilterGroupKey(5, radix));
+        if ((test.getLiveGroups() == 6) && (group >= 0) && (test.getCount(group) == 2) &&
+            (test.getOrdinal(group, 0) == 0) && (test.getOrdinal(group, 1) == 1))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        System.out.println("Look up code not used in a field, expect not found");
+        if (test.find(new FilterGroupKey(4, radix)) == -1)
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        System.out.println("Remove record 0 from group, expect one left");
+        if ((test.removeRecord(group, 0) == 1) && (test.getOrdinal(group, 0) == -1))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        System.out.println("Remove it again, expect exception");
+        try {
+            test.removeRecord(group, 0);
+            System.out.println("Test failed, removed");
+        }
+        catch (Exception e) {
+            System.out.println("Test succeeded, caught " + e);
+        }
+
+        /* Drop record 0 from the index entirely, then expand. Groups from it
+           alone must not appear */
+        test.removeGroup(test.find(new FilterGroupKey(2, radix)));
+        test.removeRecord(test.find(new FilterGroupKey(0, radix)), 0);
+        FilterGroupIndex test2 = test.expand(codes, 3);
+        System.out.println("Two filter index: " + test2);
+        int[] pair = new int[] {0, 2};
+        int[] pair2 = new int[] {3, 5};
+        System.out.println("Expect group " + Arrays.toString(pair) + " gone and " + Arrays.toString(pair2) + " to exist");
+        if ((test2.find(FilterGroupKey.fromCodes(pair, radix)) == -1) &&
+            (test2.find(FilterGroupKey.fromCodes(pair2, radix)) >= 0))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        System.out.println("Expect six groups, three for each remaining record");
+        if (test2.getLiveGroups() == 6)
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, got " + test2.getLiveGroups());
+
+        System.out.println("Expand twice more, expect exception since records would be dropped");
+        try {
+            test2.expand(codes, 3).expand(codes, 3);
+            System.out.println("Test failed, expanded");
+        }
+        catch (Exception e) {
+            System.out.println("Test succeeded, caught " + e);
+        }
+
+        /* Expand a larger random set in parallel, with parts small enough
+           that every thread gets several. It must match a single thread */
+        Random random = new Random(42);
+        int[][] manyCodes = new int[2000][];
+        int record;
+        for (record = 0; record < manyCodes.length; record++) {
+            manyCodes[record] = new int[5];
+            int field;
+            for (field = 0; field < 5; field++)
+                manyCodes[record][field] = (field * 12) + random.nextInt(3 + (field * 2));
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        FilterGroupIndex sequential = firstLevel(manyCodes, 5, 60);
+        FilterGroupIndex parallel = sequential;
+        sequential.removeGroup(0);
+        System.out.println("Expand in parallel to every size, expect same as sequential");
+        boolean same = true;
+        int size;
+        for (size = 2; same && (size <= 5); size++) {
+            FilterGroupIndex nextSequential = sequential.expand(manyCodes, 5, null);
+            parallel = parallel.expand(manyCodes, 5, pool, 100);
+            same = sameIndex(nextSequential, parallel);
+            sequential = nextSequential;
+        }
+        if (same)
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed at size " + (size - 1));
+
+        /* Expand the same set with no heap allowed, so every list and count
+           is in a mapped file. Release each level as it is replaced */
+        StorageBudget spill = new StorageBudget(0, null);
+        FilterGroupIndex heap = firstLevel(manyCodes, 5, 60);
+        FilterGroupIndex mapped = firstLevel(manyCodes, 5, 60, spill);
+        System.out.println("Expand with index spilled to disk, expect same as on heap");
+        same = true;
+        for (size = 2; same && (size <= 5); size++) {
+            heap = heap.expand(manyCodes, 5);
+            FilterGroupIndex nextMapped = mapped.expand(manyCodes, 5, pool, 100);
+            mapped.release();
+            mapped = nextMapped;
+            same = sameIndex(heap, mapped);
+        }
+        if (same && (spill.getHeapUsed() == 0) && (spill.getMappedUsed() > 0))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed at size " + (size - 1) + ", " + spill);
+        mapped.release();
+
+        System.out.println("Expand past all fields in parallel, expect exception");
+        try {
+            parallel.expand(manyCodes, 5, pool, 1);
+            System.out.println("Test failed, expanded");
+        }
+        catch (Exception e) {
+            System.out.println("Test succeeded, caught " + e);
+        }
+        pool.shutdown();
+    }
+}
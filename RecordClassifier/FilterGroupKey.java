@@ -0,0 +1,229 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class is the compact form of a field filter group used to index
+   training records. Each filter is replaced by its RecordDictionary code, and
+   the codes are kept in field order. The codes are also packed into a single
+   long, treating them as digits of a number whose base (radix) is the number
+   of codes in the dictionary. As long as that number fits in a long, the
+   packing is exact and comparing two keys only compares the packed values.
+   With typical dictionaries of a few thousand values, groups of up to four
+   filters pack exactly. Larger groups wrap around, in which case the packed
+   value is still a good hash but equality must compare the codes */
+import java.util.*;
+
+public final class FilterGroupKey
+{
+    private int[] _codes;
+    private long _packed;
+    private boolean _exact;
+
+    // Construct a key for a single filter
+    public FilterGroupKey(int code, int radix)
+    {
+        checkCode(code, radix);
+        _codes = new int[1];
+        _codes[0] = code;
+        _packed = code;
+        _exact = true;
+    }
+
+    /* Construct a key by adding one filter to an existing key. The new filter
+       must be for a field after every field in the existing key, which is how
+       filter groups are made more specific */
+    public FilterGroupKey(FilterGroupKey source, int code, int radix)
+    {
+        if (source == null)
+            throw new IllegalArgumentException("Base filter group key passed null");
+        checkCode(code, radix);
+        _codes = Arrays.copyOf(source._codes, source._codes.length + 1);
+        _codes[source._codes.length] = code;
+        _exact = source._exact && (source._packed <= ((Long.MAX_VALUE - code) / radix));
+        _packed = (source._packed * radix) + code;
+    }
+
+    /* Construct a key from codes already in field order. Returns NULL if any
+       code is not valid for the radix, meaning no key with it can exist */
+    public static FilterGroupKey fromCodes(int[] codes, int radix)
+    {
+        if ((codes == null) || (codes.length == 0))
+            throw new IllegalArgumentException("Codes for filter group key passed empty");
+        int index;
+        for (index = 0; index < codes.length; index++)
+            if ((codes[index] < 0) || (codes[index] >= radix))
+                return null;
+        FilterGroupKey result = new FilterGroupKey(codes[0], radix);
+        for (index = 1; index < codes.length; index++)
+            result = new FilterGroupKey(result, codes[index], radix);
+        return result;
+    }
+
+    private static void checkCode(int code, int radix)
+    {
+        if ((code < 0) || (code >= radix))
+            throw new IllegalArgumentException("Filter code " + code + " invalid for radix " + radix);
+    }
+
+    // Number of filters in the key
+    public int size()
+    {
+        return _codes.length;
+    }
+
+    // Code of the filter at the given position, in field order
+    public int getCode(int index)
+    {
+        return _codes[index];
+    }
+
+    // Code of the filter on the highest field
+    public int getLastCode()
+    {
+        return _codes[_codes.length - 1];
+    }
+
+    // The packed codes, and whether they uniquely identify the key
+    public long getPacked()
+    {
+        return _packed;
+    }
+    public boolean isExact()
+    {
+        return _exact;
+    }
+
+    // Convert the key back to the filter group it represents
+    public FieldFilterGroup toFilterGroup(RecordDictionary dictionary)
+    {
+        FieldFilterGroup result = new FieldFilterGroup(dictionary.getFilter(_codes[0]));
+        int index;
+        for (index = 1; index < _codes.length; index++)
+            result = new FieldFilterGroup(result, dictionary.getFilter(_codes[index]));
+        return result;
+    }
+
+    // Equality method. Needed for hashing to work properly
+    @Override
+    public boolean equals(Object other)
+    {
+        if (this == other) // Self
+            return true;
+        else if (other == null) // Null pointer
+            return false;
+        else if (getClass() != other.getClass()) // Class mismatch
+            return false;
+        else {
+            FilterGroupKey otherKey = (FilterGroupKey)other;
+            if ((_packed != otherKey._packed) ||
+                (_codes.length != otherKey._codes.length))
+                return false;
+            else if (_exact && otherKey._exact)
+                return true;
+            else
+                return Arrays.equals(_codes, otherKey._codes);
+        }
+    }
+
+    // Hash method. Mixes the packed value so nearby keys spread out
+    @Override
+    public int hashCode()
+    {
+        return mix(_packed);
+    }
+
+    /* Mix the bits of a packed key into a hash code. This is the finalizer
+       of the MurmurHash3 algorithm, which makes every input bit affect every
+       output bit */
+    public static int mix(long value)
+    {
+        value ^= (value >>> 33);
+        value *= 0xff51afd7ed558ccdL;
+        value ^= (value >>> 33);
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= (value >>> 33);
+        return (int)value;
+    }
+
+    public String toString()
+    {
+        return Arrays.toString(_codes);
+    }
+
+    // Code to test the class
+    public static void main(String[] args)
+    {
+        FilterGroupKey test1 = new FilterGroupKey(new FilterGroupKey(3, 10), 7, 10);
+        int[] codes = new int[2];
+        codes[0] = 3;
+        codes[1] = 7;
+        FilterGroupKey test2 = fromCodes(codes, 10);
+
+        System.out.println("Keys from same codes, expect equal with same hash");
+        if (test1.equals(test2) && (test1.hashCode() == test2.hashCode()) &&
+            (test1.getPacked() == 37) && test1.isExact())
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, got " + test1 + " and " + test2);
+
+        System.out.println("Keys with codes swapped, expect not equal");
+        codes[0] = 7;
+        codes[1] = 3;
+        if (!test1.equals(fromCodes(codes, 10)))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        System.out.println("Code too large for radix, expect no key");
+        codes[1] = 10;
+        if (fromCodes(codes, 10) == null)
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        /* With a radix this large, the fourth code overflows the long, so the
+           packed value is only a hash */
+        int radix = Integer.MAX_VALUE;
+        codes = new int[4];
+        codes[0] = 1;
+        FilterGroupKey big1 = fromCodes(codes, radix);
+        FilterGroupKey big2 = fromCodes(codes, radix);
+        codes[3] = 5;
+        FilterGroupKey big3 = fromCodes(codes, radix);
+        System.out.println("Keys too large to pack, expect not exact but still compared properly");
+        if (!big1.isExact() && big1.equals(big2) && !big1.equals(big3))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        RecordDictionary dictionary = new RecordDictionary();
+        int code1 = dictionary.encode(2, "test1");
+        int code2 = dictionary.encode(4, "test2");
+        FilterGroupKey test3 = new FilterGroupKey(new FilterGroupKey(code1, dictionary.size()), code2, dictionary.size());
+        System.out.println("Convert key to filter group, expect original values");
+        if (test3.toFilterGroup(dictionary).toString().equals("[2->test1, 4->test2]"))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, got " + test3.toFilterGroup(dictionary));
+    }
+}
@@ -0,0 +1,283 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class is a bucket queue of field filter groups keyed by the number of
+   training records each one filters. Groups are identified by their number in
+   a FilterGroupIndex. Groups with the same count are kept in a doubly linked
+   list for that count, so finding the largest group, removing a group, and
+   lowering its count by one are all constant time operations. The only
+   search is for the highest non-empty bucket, and since counts only decrease
+   between rebuilds that search never moves upward more than once per insert.
+   Groups with equal counts are returned in the order they entered their
+   bucket. The links and counts are arrays indexed by group number, so the
+   queue creates no objects per group. They are created through a
+   StorageBudget like those of the index, and should be handed back with
+   release() */
+import java.util.*;
+
+public class FilterGroupQueue
+{
+    private static final int NONE = -1;
+
+    // Links to other groups in the same bucket, and the count of each group
+    private IntStore _prev;
+    private IntStore _next;
+    private IntStore _counts; // Zero for groups not in the queue
+
+    /* Heads and tails of the list for every count. Index zero is never used,
+       since a group with no records does not belong in the queue */
+    private int[] _heads;
+    private int[] _tails;
+
+    private int _size; // Groups in the queue
+    private int _maxCount; // Highest count that may have a non-empty bucket
+
+    // Create the queue empty, for groups numbered below the given value
+    public FilterGroupQueue(int groupCount)
+    {
+        this(groupCount, new StorageBudget());
+    }
+
+    // Create the queue empty as above, creating its arrays from a budget
+    public FilterGroupQueue(int groupCount, StorageBudget storage)
+    {
+        if (groupCount < 0)
+            throw new IllegalArgumentException("Group count for queue " + groupCount + " must be non-negative");
+        if (storage == null)
+            throw new IllegalArgumentException("Storage for queue passed null");
+        _prev = storage.allocate(groupCount);
+        _next = storage.allocate(groupCount);
+        _counts = storage.allocate(groupCount);
+        _heads = new int[16];
+        _tails = new int[16];
+        Arrays.fill(_heads, NONE);
+        Arrays.fill(_tails, NONE);
+        _size = 0;
+        _maxCount = 0;
+    }
+
+    // Returns the number of groups in the queue
+    public int size()
+    {
+        return _size;
+    }
+
+    // Returns true if the queue has no groups
+    public boolean isEmpty()
+    {
+        return (_size == 0);
+    }
+
+    // Returns true if the group is in the queue
+    public boolean contains(int group)
+    {
+        return (_counts.get(group) > 0);
+    }
+
+    /* Add a group with the given record count. A group may only appear once,
+       and the count must be positive */
+    public void add(int group, int count)
+    {
+        if ((group < 0) || (group >= _counts.length()))
+            throw new IllegalArgumentException("Filter group " + group + " to queue out of range");
+        if (count <= 0)
+            throw new IllegalArgumentException("Filter group " + group + " queued with non-positive record count " + count);
+        if (_counts.get(group) > 0)
+            throw new IllegalArgumentException("Filter group " + group + " already queued");
+        _counts.set(group, count);
+        link(group);
+        _size++;
+    }
+
+    /* Lower the record count of a group by one. If it reaches zero the group
+       is dropped. Groups not in the queue are ignored, since that is how
+       groups already returned for processing are tracked */
+    public void decrement(int group)
+    {
+        int count = _counts.get(group);
+        if (count > 0) {
+            unlink(group);
+            _counts.set(group, count - 1);
+            if (count > 1)
+                link(group);
+            else
+                _size--;
+        }
+    }
+
+    // Drop a group from the queue. Groups not in the queue are ignored
+    public void remove(int group)
+    {
+        if (_counts.get(group) > 0) {
+            unlink(group);
+            _counts.set(group, 0);
+            _size--;
+        }
+    }
+
+    /* Remove and return the group with the highest record count. Returns
+       -1 if the queue is empty */
+    public int poll()
+    {
+        if (_size == 0)
+            return NONE;
+        // Non-empty queue guarentees some bucket at or below the max has a group
+        while (_heads[_maxCount] == NONE)
+            _maxCount--;
+        int group = _heads[_maxCount];
+        remove(group);
+        return group;
+    }
+
+    /* Copy the groups poll() would return next into an array, in that order,
+       without removing them. Returns the number copied, which is less than
+       the array size only if the queue runs out */
+    public int peek(int[] groups)
+    {
+        int found = 0;
+        int count;
+        for (count = _maxCount; (count > 0) && (found < groups.length); count--) {
+            int group = _heads[count];
+            while ((group != NONE) && (found < groups.length)) {
+                groups[found++] = group;
+                group = _next.get(group);
+            }
+        }
+        return found;
+    }
+
+    // Add a group to the tail of the bucket for its count
+    private void link(int group)
+    {
+        int count = _counts.get(group);
+        if (count >= _heads.length) {
+            int oldSize = _heads.length;
+            int newSize = Math.max(oldSize * 2, count + 1);
+            _heads = Arrays.copyOf(_heads, newSize);
+            _tails = Arrays.copyOf(_tails, newSize);
+            Arrays.fill(_heads, oldSize, newSize, NONE);
+            Arrays.fill(_tails, oldSize, newSize, NONE);
+        }
+        int tail = _tails[count];
+        _prev.set(group, tail);
+        _next.set(group, NONE);
+        if (tail == NONE)
+            _heads[count] = group;
+        else
+            _next.set(tail, group);
+        _tails[count] = group;
+        if (count > _maxCount)
+            _maxCount = count;
+    }
+
+    // Remove a group from the bucket for its count
+    private void unlink(int group)
+    {
+        int count = _counts.get(group);
+        int prev = _prev.get(group);
+        int next = _next.get(group);
+        if (prev == NONE)
+            _heads[count] = next;
+        else
+            _next.set(prev, next);
+        if (next == NONE)
+            _tails[count] = prev;
+        else
+            _prev.set(next, prev);
+    }
+
+    /* Return the arrays to their storage budget. The queue must not be used
+       afterward */
+    public void release()
+    {
+        _prev.release();
+        _next.release();
+        _counts.release();
+    }
+
+    // Code to test the class
+    public static void main(String[] args)
+    {
+        FilterGroupQueue test = new FilterGroupQueue(4);
+        System.out.println("Queue group with zero count, expect exception");
+        try {
+            test.add(0, 0);
+            System.out.println("Test failed, group queued");
+        }
+        catch (Exception e) {
+            System.out.println("Test succeeded, caught " + e);
+        }
+
+        test.add(0, 3);
+        test.add(1, 5);
+        test.add(2, 3);
+        test.add(3, 1);
+
+        System.out.println("Peek three groups, expect 1, 0, 2 with queue unchanged");
+        int[] peeked = new int[3];
+        if ((test.peek(peeked) == 3) && (peeked[0] == 1) && (peeked[1] == 0) &&
+            (peeked[2] == 2) && (test.size() == 4))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, got " + Arrays.toString(peeked));
+
+        System.out.println("Expect largest group 1");
+        int result = test.poll();
+        if (result == 1)
+            System.out.println("Test succeeded, got " + result);
+        else
+            System.out.println("Test failed, got " + result);
+
+        // Lower the first group so the tie is broken; the third should follow
+        test.decrement(0);
+        System.out.println("Decrement group 0, expect next group 2");
+        result = test.poll();
+        if (result == 2)
+            System.out.println("Test succeeded, got " + result);
+        else
+            System.out.println("Test failed, got " + result);
+
+        // Polled group is no longer queued, so decrementing it does nothing
+        test.decrement(2);
+        System.out.println("Decrement of polled group, expect size 2");
+        if (test.size() == 2)
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, size " + test.size());
+
+        System.out.println("Decrement group 3 to zero, expect it dropped");
+        test.decrement(3);
+        if (!test.contains(3))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, group still queued");
+
+        System.out.println("Expect last group 0 then empty queue");
+        result = test.poll();
+        if ((result == 0) && (test.poll() == -1) && test.isEmpty())
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, got " + result);
+    }
+}
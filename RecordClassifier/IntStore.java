@@ -0,0 +1,218 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class is a fixed size array of ints, which is either an ordinary Java
+   array or a file mapped into memory. The training indexes keep their largest
+   arrays in these, so that once they exceed their share of the heap they go
+   to disk instead of running the JVM out of memory. The operating system
+   pages mapped files in and out as needed, so everything still works, just
+   more slowly. Which kind an array gets is decided by a StorageBudget when it
+   is created.
+
+   Arrays must be released when no longer needed, which returns their space
+   to the budget. Space in mapped files is freed when the mapping is garbage
+   collected; the files themselves are deleted as soon as they are mapped, so
+   nothing is left behind if the program dies */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+public abstract class IntStore
+{
+    protected StorageBudget _budget;
+    protected int _length;
+
+    protected IntStore(StorageBudget budget, int length)
+    {
+        _budget = budget;
+        _length = length;
+    }
+
+    // Number of entries
+    public int length()
+    {
+        return _length;
+    }
+
+    public abstract int get(int index);
+
+    public abstract void set(int index, int value);
+
+    // True if the entries are in a file, not the heap
+    public abstract boolean isMapped();
+
+    /* Return the space of the array to its budget. The array must not be used
+       afterward */
+    public abstract void release();
+
+    /* Copy entries to another array. Works between either kind, but is much
+       faster between two heap arrays */
+    public void copyTo(int from, IntStore target, int targetFrom, int count)
+    {
+        if ((from < 0) || (targetFrom < 0) || (count < 0) ||
+            (from > (_length - count)) || (targetFrom > (target._length - count)))
+            throw new IndexOutOfBoundsException("Copy of " + count + " entries from " + from + " to " + targetFrom + " out of bounds");
+        int index;
+        for (index = 0; index < count; index++)
+            target.set(targetFrom + index, get(from + index));
+    }
+
+    /* Return a new array of a different length with the entries of this one,
+       as many as fit, releasing this one. New entries are zero */
+    public IntStore resize(int length)
+    {
+        IntStore result = _budget.allocate(length);
+        copyTo(0, result, 0, Math.min(_length, length));
+        release();
+        return result;
+    }
+
+    /* Map a scratch file holding the given number of entries of the given
+       size, in segments of two to the given power entries, each in native
+       byte order */
+    static ByteBuffer[] mapSegments(int length, int entryBytes, int segmentShift,
+                                    File directory)
+    {
+        File file = null;
+        try {
+            file = File.createTempFile("filtergroups", ".tmp", directory);
+            RandomAccessFile data = new RandomAccessFile(file, "rw");
+            try {
+                long bytes = (long)entryBytes * length;
+                data.setLength(bytes);
+                FileChannel channel = data.getChannel();
+                long segmentBytes = (1L << segmentShift) * entryBytes;
+                int segmentCount = (int)((bytes + segmentBytes - 1) / segmentBytes);
+                ByteBuffer[] result = new ByteBuffer[segmentCount];
+                int segment;
+                for (segment = 0; segment < segmentCount; segment++) {
+                    long start = segment * segmentBytes;
+                    long size = Math.min(bytes - start, segmentBytes);
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE,
+                                                          start, size);
+                    result[segment] = buffer.order(ByteOrder.nativeOrder());
+                }
+                return result;
+            }
+            finally {
+                // Mappings remain valid after the file is closed
+                data.close();
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not create file for filter group index in " + directory + ": " + e, e);
+        }
+        finally {
+            if (file != null)
+                file.delete();
+        }
+    }
+
+    // Array on the heap
+    static final class Heap extends IntStore
+    {
+        private int[] _values;
+
+        Heap(StorageBudget budget, int length)
+        {
+            super(budget, length);
+            _values = new int[length];
+        }
+
+        public int get(int index)
+        {
+            return _values[index];
+        }
+
+        public void set(int index, int value)
+        {
+            _values[index] = value;
+        }
+
+        public boolean isMapped()
+        {
+            return false;
+        }
+
+        public void release()
+        {
+            if (_values != null) {
+                _values = null;
+                _budget.release(4L * _length, false);
+            }
+        }
+
+        public void copyTo(int from, IntStore target, int targetFrom, int count)
+        {
+            if (target instanceof Heap)
+                System.arraycopy(_values, from, ((Heap)target)._values, targetFrom,
+                                 count);
+            else
+                super.copyTo(from, target, targetFrom, count);
+        }
+    }
+
+    /* Array in a mapped file. A single mapping is limited to 2GB, so the file
+       is mapped in segments */
+    static final class Mapped extends IntStore
+    {
+        private static final int SEGMENT_SHIFT = 27; // Entries per segment as power of two
+        private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+        private IntBuffer[] _segments;
+
+        Mapped(StorageBudget budget, int length, File directory)
+        {
+            super(budget, length);
+            ByteBuffer[] buffers = mapSegments(length, 4, SEGMENT_SHIFT, directory);
+            _segments = new IntBuffer[buffers.length];
+            int segment;
+            for (segment = 0; segment < buffers.length; segment++)
+                _segments[segment] = buffers[segment].asIntBuffer();
+        }
+
+        public int get(int index)
+        {
+            return _segments[index >>> SEGMENT_SHIFT].get(index & SEGMENT_MASK);
+        }
+
+        public void set(int index, int value)
+        {
+            _segments[index >>> SEGMENT_SHIFT].put(index & SEGMENT_MASK, value);
+        }
+
+        public boolean isMapped()
+        {
+            return true;
+        }
+
+        public void release()
+        {
+            if (_segments != null) {
+                _segments = null;
+                _budget.release(4L * _length, true);
+            }
+        }
+    }
+}
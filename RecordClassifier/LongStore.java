@@ -0,0 +1,165 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class is a fixed size array of longs, either on the heap or in a
+   memory-mapped file, decided by a StorageBudget when it is created. It
+   works the same way as IntStore, and must be released the same way */
+import java.io.*;
+import java.nio.*;
+
+public abstract class LongStore
+{
+    protected StorageBudget _budget;
+    protected int _length;
+
+    protected LongStore(StorageBudget budget, int length)
+    {
+        _budget = budget;
+        _length = length;
+    }
+
+    // Number of entries
+    public int length()
+    {
+        return _length;
+    }
+
+    public abstract long get(int index);
+
+    public abstract void set(int index, long value);
+
+    // True if the entries are in a file, not the heap
+    public abstract boolean isMapped();
+
+    /* Return the space of the array to its budget. The array must not be used
+       afterward */
+    public abstract void release();
+
+    // Copy entries to another array, as IntStore.copyTo()
+    public void copyTo(int from, LongStore target, int targetFrom, int count)
+    {
+        if ((from < 0) || (targetFrom < 0) || (count < 0) ||
+            (from > (_length - count)) || (targetFrom > (target._length - count)))
+            throw new IndexOutOfBoundsException("Copy of " + count + " entries from " + from + " to " + targetFrom + " out of bounds");
+        int index;
+        for (index = 0; index < count; index++)
+            target.set(targetFrom + index, get(from + index));
+    }
+
+    /* Return a new array of a different length with the entries of this one,
+       as many as fit, releasing this one. New entries are zero */
+    public LongStore resize(int length)
+    {
+        LongStore result = _budget.allocateLongs(length);
+        copyTo(0, result, 0, Math.min(_length, length));
+        release();
+        return result;
+    }
+
+    // Array on the heap
+    static final class Heap extends LongStore
+    {
+        private long[] _values;
+
+        Heap(StorageBudget budget, int length)
+        {
+            super(budget, length);
+            _values = new long[length];
+        }
+
+        public long get(int index)
+        {
+            return _values[index];
+        }
+
+        public void set(int index, long value)
+        {
+            _values[index] = value;
+        }
+
+        public boolean isMapped()
+        {
+            return false;
+        }
+
+        public void release()
+        {
+            if (_values != null) {
+                _values = null;
+                _budget.release(8L * _length, false);
+            }
+        }
+
+        public void copyTo(int from, LongStore target, int targetFrom, int count)
+        {
+            if (target instanceof Heap)
+                System.arraycopy(_values, from, ((Heap)target)._values, targetFrom,
+                                 count);
+            else
+                super.copyTo(from, target, targetFrom, count);
+        }
+    }
+
+    // Array in a mapped file, in segments like IntStore
+    static final class Mapped extends LongStore
+    {
+        private static final int SEGMENT_SHIFT = 27; // Entries per segment as power of two
+        private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+        private LongBuffer[] _segments;
+
+        Mapped(StorageBudget budget, int length, File directory)
+        {
+            super(budget, length);
+            ByteBuffer[] buffers = IntStore.mapSegments(length, 8, SEGMENT_SHIFT, directory);
+            _segments = new LongBuffer[buffers.length];
+            int segment;
+            for (segment = 0; segment < buffers.length; segment++)
+                _segments[segment] = buffers[segment].asLongBuffer();
+        }
+
+        public long get(int index)
+        {
+            return _segments[index >>> SEGMENT_SHIFT].get(index & SEGMENT_MASK);
+        }
+
+        public void set(int index, long value)
+        {
+            _segments[index >>> SEGMENT_SHIFT].put(index & SEGMENT_MASK, value);
+        }
+
+        public boolean isMapped()
+        {
+            return true;
+        }
+
+        public void release()
+        {
+            if (_segments != null) {
+                _segments = null;
+                _budget.release(8L * _length, true);
+            }
+        }
+    }
+}
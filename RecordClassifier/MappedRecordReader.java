@@ -0,0 +1,331 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class reads a whole CSV file of records, like
+   RecordParser.readRecords(), using several threads. The file is mapped
+   into memory and split into ranges that end at line breaks, which the
+   threads of a pool parse at the same time, straight from the bytes. The
+   records are then joined in file order. Parsing, blank line handling and
+   the checks for an empty file or inconsistent field counts are the same as
+   readRecords(), with the same errors.
+
+   Line breaks are found by their bytes, which works for the encodings files
+   are normally in. For the rare encoding where it doesn't, the file is read
+   one line at a time as usual, as are compressed files, which can't be
+   mapped. Files over 2GB are fine; each range is mapped on its own */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class MappedRecordReader
+{
+    /* Sizes of the ranges parsed. Several per thread evens out ranges that
+       happen to be slower, but each should be big enough that handing it to
+       a thread costs little. A range can't be mapped past 2GB */
+    private static final int RANGES_PER_THREAD = 4;
+    private static final long MIN_RANGE_BYTES = 1L << 20;
+    private static final long MAX_RANGE_BYTES = 1L << 30;
+
+    /* Distinct values per field to share strings for. Past this, a field is
+       probably unique per record, like a tracking number */
+    private static final int MAX_FIELD_VALUES = 1 << 16;
+
+    // Bytes read at a time looking for the end of a line
+    private static final int SEARCH_BYTES = 1 << 16;
+
+    /* Read the records of a file with the threads of a pool. A NULL pool
+       parses the file on the calling thread */
+    public static RecordGroup readRecords(String fileName,
+                                          ForkJoinPool pool) throws IOException
+    {
+        return readRecords(fileName, pool, 0);
+    }
+
+    /* Read the records of a file, splitting it into ranges of about the given
+       size. Zero picks a size from the file size and number of threads */
+    static RecordGroup readRecords(String fileName, ForkJoinPool pool,
+                                   long rangeBytes) throws IOException
+    {
+        if (fileName == null)
+            throw new IllegalArgumentException("Filename for input records must be specified");
+        // Same encoding as FileReader, which RecordParser uses
+        Charset charset = Charset.defaultCharset();
+        if ((!Arrays.equals("\n\r".getBytes(charset), new byte[] {'\n', '\r'})) ||
+            CompressedFiles.isCompressed(fileName))
+            return RecordParser.readRecords(fileName);
+
+        FileChannel channel = new RandomAccessFile(fileName, "r").getChannel();
+        ArrayList<ParseRange> ranges = new ArrayList<ParseRange>();
+        try {
+            long size = channel.size();
+            int parallelism = (pool == null) ? 1 : pool.getParallelism();
+            if (rangeBytes <= 0) {
+                rangeBytes = size / ((long)parallelism * RANGES_PER_THREAD);
+                rangeBytes = Math.min(Math.max(rangeBytes, MIN_RANGE_BYTES),
+                                      MAX_RANGE_BYTES);
+            }
+            long start = 0;
+            while (start < size) {
+                long end = size;
+                if (size - start > rangeBytes)
+                    end = findLineEnd(channel, start + rangeBytes, size);
+                ranges.add(new ParseRange(channel, start, end - start, charset));
+                start = end;
+            }
+
+            // With a single range there's nothing to gain from another thread
+            int index;
+            if ((pool == null) || (ranges.size() == 1))
+                for (index = 0; index < ranges.size(); index++)
+                    ranges.get(index).invoke();
+            else
+                for (index = 0; index < ranges.size(); index++)
+                    pool.execute(ranges.get(index));
+
+            // Join the ranges in file order, checking field counts across them
+            LinkedList<ArrayList<String> > records = new LinkedList<ArrayList<String> >();
+            int fieldCount = -1;
+            for (index = 0; index < ranges.size(); index++) {
+                ParseRange range = ranges.get(index);
+                range.join();
+                if (range.error != null)
+                    throw range.error;
+                if (range.fieldCount >= 0) {
+                    if (fieldCount < 0)
+                        fieldCount = range.fieldCount;
+                    else if (range.fieldCount != fieldCount)
+                        throw RecordReader.fieldCountError(fileName, fieldCount,
+                                                           range.fieldCount);
+                }
+                if (range.badFieldCount >= 0)
+                    throw RecordReader.fieldCountError(fileName, fieldCount,
+                                                       range.badFieldCount);
+                records.addAll(range.records);
+                range.records = null; // Let it go as soon as possible
+            }
+            if (records.isEmpty())
+                throw RecordReader.noRecordsError(fileName);
+            return new RecordGroup(records);
+        }
+        finally {
+            /* On failure, wait for ranges still in progress, so none is left
+               reading a closed file */
+            int index;
+            for (index = 0; index < ranges.size(); index++)
+                ranges.get(index).quietlyJoin();
+            channel.close();
+        }
+    }
+
+    /* Returns the position just past the first newline at or after the one
+       given, or the end of the file if there is none */
+    private static long findLineEnd(FileChannel channel, long position,
+                                    long size) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(SEARCH_BYTES);
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0)
+                break;
+            int index;
+            for (index = 0; index < read; index++)
+                if (buffer.get(index) == '\n')
+                    return position + index + 1;
+            position += read;
+        }
+        return size;
+    }
+
+    /* A range of the file to parse. Holds its records, and the field counts
+       to check against the other ranges */
+    private static final class ParseRange extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        transient FileChannel channel;
+        long start;
+        long length;
+        transient Charset charset;
+        ArrayList<ArrayList<String> > records;
+        int fieldCount; // Of the first record, -1 if none
+        int badFieldCount; // Of the first that differs, -1 if none do
+        IOException error; // Reading the file, NULL if none
+
+        ParseRange(FileChannel newChannel, long newStart, long newLength,
+                   Charset newCharset)
+        {
+            channel = newChannel;
+            start = newStart;
+            length = newLength;
+            charset = newCharset;
+            records = new ArrayList<ArrayList<String> >();
+            fieldCount = -1;
+            badFieldCount = -1;
+            error = null;
+        }
+
+        protected void compute()
+        {
+            MappedByteBuffer data = null;
+            try {
+                data = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            }
+            catch (IOException e) {
+                error = e;
+                return;
+            }
+            /* A line ends at a carriage return, line feed, or both, as with
+               BufferedReader.readLine(). Empty lines between the two are
+               skipped with the blank ones. Fields are split from the bytes
+               and turned into strings through a dictionary per field, so
+               repeated values share one string */
+            ByteTokenizer tokens = new ByteTokenizer();
+            ArrayList<ByteDictionary> values = new ArrayList<ByteDictionary>();
+            int end = (int)length;
+            int lineStart = 0;
+            int index;
+            for (index = 0; index <= end; index++) {
+                if ((index < end) && (data.get(index) != '\n') &&
+                    (data.get(index) != '\r'))
+                    continue;
+                if ((index > lineStart) &&
+                    (!ByteTokenizer.isBlank(data, lineStart, index))) {
+                    int count = tokens.tokenize(data, lineStart, index);
+                    if (fieldCount < 0)
+                        fieldCount = count;
+                    else if (count != fieldCount) {
+                        badFieldCount = count;
+                        break; // Can't be used anyway
+                    }
+                    // Room for the classification to be added later
+                    ArrayList<String> record = new ArrayList<String>(count + 1);
+                    int field;
+                    for (field = 0; field < count; field++) {
+                        while (values.size() <= field)
+                            values.add(new ByteDictionary(charset, MAX_FIELD_VALUES));
+                        ByteDictionary fieldValues = values.get(field);
+                        record.add(fieldValues.intern(data, tokens.getStart(field),
+                                                      tokens.getLength(field)));
+                    }
+                    records.add(record);
+                }
+                lineStart = index + 1;
+            }
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        /* A file with blank lines and both kinds of line ends, split into
+           many small ranges, must read the same as one line at a time */
+        System.out.println("Read file in parallel ranges, expect same records as one line at a time");
+        try {
+            PrintWriter outputFile = new PrintWriter(new FileOutputStream("MappedReader1.testtesttest"));
+            int count;
+            for (count = 0; count < 5000; count++) {
+                outputFile.print("id" + count + ",a" + (count % 7) + ",b" + (count % 3) + ",,c");
+                outputFile.print(((count % 5) == 0) ? "\r\n" : "\n");
+                if ((count % 11) == 0)
+                    outputFile.print("  \n\n");
+            }
+            outputFile.print("last,a,b,,c"); // No line end
+            outputFile.close();
+            RecordGroup expected = RecordParser.readRecords("MappedReader1.testtesttest");
+            RecordGroup parallel = readRecords("MappedReader1.testtesttest", pool, 100);
+            RecordGroup single = readRecords("MappedReader1.testtesttest", null);
+            if (expected.getRecords().equals(parallel.getRecords()) &&
+                expected.getRecords().equals(single.getRecords()) &&
+                (parallel.size() == 5001))
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed, read " + parallel.size() + " records");
+        }
+        catch (Exception e) {
+            System.out.println("Test failed, caught " + e);
+        }
+
+        // A bad record in a later range must give the same error
+        System.out.println("Read file with inconsistent record in a later range, expect same exception as one line at a time");
+        try {
+            PrintWriter outputFile = new PrintWriter(new FileOutputStream("MappedReader1.testtesttest"));
+            int count;
+            for (count = 0; count < 1000; count++)
+                outputFile.println((count == 900) ? "test1,test2" : "test1,test2,test3");
+            outputFile.close();
+            String expected = null;
+            try {
+                RecordParser.readRecords("MappedReader1.testtesttest");
+            }
+            catch (IOException e) {
+                expected = e.getMessage();
+            }
+            try {
+                readRecords("MappedReader1.testtesttest", pool, 100);
+                System.out.println("Test failed, file read");
+            }
+            catch (IOException e) {
+                if (e.getMessage().equals(expected))
+                    System.out.println("Test succeeded, caught " + e);
+                else
+                    System.out.println("Test failed, caught " + e);
+            }
+        }
+        catch (Exception e) {
+            System.out.println("Test failed, caught " + e);
+        }
+
+        System.out.println("Read file with only blank lines, expect exception");
+        try {
+            PrintWriter outputFile = new PrintWriter(new FileOutputStream("MappedReader1.testtesttest"));
+            outputFile.println("");
+            outputFile.println("   ");
+            outputFile.close();
+            readRecords("MappedReader1.testtesttest", pool);
+            System.out.println("Test failed, file read");
+        }
+        catch (IOException e) {
+            System.out.println("Test succeeded, caught " + e);
+        }
+        catch (Exception e) {
+            System.out.println("Test failed, caught " + e);
+        }
+
+        System.out.println("Read nonexistent file, expect exception");
+        try {
+            readRecords("BadMappedReaderName.testtesttest", pool);
+            System.out.println("Test failed, file read");
+        }
+        catch (IOException e) {
+            System.out.println("Test succeeded, caught " + e);
+        }
+        pool.shutdown();
+        new File("MappedReader1.testtesttest").delete();
+    }
+}
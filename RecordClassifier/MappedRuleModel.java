@@ -0,0 +1,587 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class is a model file laid out so records can be matched against it
+   directly from a read-only memory mapping, without building any objects.
+   Starting a classification only maps the file, and every process mapping
+   the same file shares one copy in the page cache. It holds the same
+   inverted index RuleMatcher builds: for each field, a hash table from value
+   to the rules filtering on it.
+
+   Layout, version 2. Numbers are big endian ints and offsets are in bytes
+   from the start of the file:
+   - Header: magic number, version, field count, rule count, value count,
+     then the offsets of the sections below in order
+   - Fields: per field, the first slot of its hash table and its capacity,
+     a power of two or zero
+   - Rules: rule count plus one starting indexes into the filters, so rule i
+     has the filters from entry i up to entry i+1
+   - Filters: per filter, its field and value number, in rule order
+   - Values: per value, the offset and length in chars of its text, its
+     String.hashCode(), and the offset and count of its rule list
+   - Rule lists: rule numbers, in order, for every value
+   - Hash slots: value number plus one, zero marking an empty slot, probed
+     linearly from the mixed hash of the value
+   - Text: the chars of every value, two bytes each
+   String.hashCode() is defined by the language, so hashes written by one
+   JVM are valid in any other */
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+public class MappedRuleModel implements RecordMatcher
+{
+    public static final int VERSION = 2;
+
+    private static final int HEADER_INTS = 13;
+    private static final int VALUE_INTS = 5;
+
+    private String _fileName;
+    private ByteBuffer _data;
+    private int _fieldCount;
+    private int _ruleCount;
+    private int _valueCount;
+    private int _fieldsOffset;
+    private int _rulesOffset;
+    private int _filtersOffset;
+    private int _valuesOffset;
+    private int _listsOffset;
+    private int _slotsOffset;
+    private int _textOffset;
+
+    // Counts of filters hit, per thread
+    private ThreadLocal<Counts> _counts;
+
+    private static final class Counts
+    {
+        int[] hits;
+        int[] stamps;
+        int stamp;
+
+        Counts(int ruleCount)
+        {
+            hits = new int[ruleCount];
+            stamps = new int[ruleCount];
+            stamp = 0;
+        }
+    }
+
+    // Map a model file
+    private MappedRuleModel(String fileName, ByteBuffer data) throws IOException
+    {
+        _fileName = fileName;
+        _data = data;
+        if (data.capacity() < (HEADER_INTS * 4))
+            throw new IOException("Model file " + fileName + " invalid; truncated");
+        if (data.getInt(0) != RuleModel.MAGIC)
+            throw new IOException("Model file " + fileName + " invalid; not a model file");
+        if (data.getInt(4) != VERSION)
+            throw new IOException("Model file " + fileName + " has version " + data.getInt(4) + ", expected version " + VERSION);
+        _fieldCount = data.getInt(8);
+        _ruleCount = data.getInt(12);
+        _valueCount = data.getInt(16);
+        _fieldsOffset = data.getInt(20);
+        _rulesOffset = data.getInt(24);
+        _filtersOffset = data.getInt(28);
+        _valuesOffset = data.getInt(32);
+        _listsOffset = data.getInt(36);
+        _slotsOffset = data.getInt(40);
+        _textOffset = data.getInt(44);
+        int textLength = data.getInt(48);
+
+        /* Check the sections are in order and fit the file, so a damaged file
+           fails here and not with odd errors in the middle of matching */
+        if ((_fieldCount < 0) || (_ruleCount < 0) || (_valueCount < 0) ||
+            (_fieldsOffset != (HEADER_INTS * 4)) ||
+            (_rulesOffset != (_fieldsOffset + (_fieldCount * 8L))) ||
+            (_filtersOffset != (_rulesOffset + ((_ruleCount + 1) * 4L))) ||
+            (_filtersOffset > _valuesOffset) ||
+            (_valuesOffset != (_filtersOffset + (getFilterCount() * 8L))) ||
+            (_listsOffset != (_valuesOffset + (_valueCount * VALUE_INTS * 4L))) ||
+            (_listsOffset > _slotsOffset) || (_slotsOffset > _textOffset) ||
+            (data.capacity() != (_textOffset + (textLength * 2L))))
+            throw new IOException("Model file " + fileName + " invalid; sections damaged");
+
+        final int ruleCount = _ruleCount;
+        _counts = new ThreadLocal<Counts>() {
+            protected Counts initialValue()
+            {
+                return new Counts(ruleCount);
+            }
+        };
+    }
+
+    // Number of filters in all rules, as the end of the last rule
+    private int getFilterCount()
+    {
+        if ((_rulesOffset + ((_ruleCount + 1) * 4L)) > _data.capacity())
+            return -1;
+        return _data.getInt(_rulesOffset + (_ruleCount * 4));
+    }
+
+    /* Map a model file read only. Throws if the file is not a model of this
+       version or is damaged */
+    public static MappedRuleModel open(String fileName) throws IOException
+    {
+        if (fileName == null)
+            throw new IllegalArgumentException("Filename for model must be specified");
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        try {
+            if (file.length() > Integer.MAX_VALUE)
+                throw new IOException("Model file " + fileName + " invalid; too large");
+            // The mapping stays valid once the file is closed
+            ByteBuffer data = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                                                    file.length());
+            return new MappedRuleModel(fileName, data);
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    // Number of rules in the model
+    public int size()
+    {
+        return _ruleCount;
+    }
+
+    /* Find the number of the value for a field, or -1 if no rule filters the
+       field on it */
+    private int findValue(int field, String value)
+    {
+        int capacity = _data.getInt(_fieldsOffset + (field * 8) + 4);
+        if (capacity == 0)
+            return -1;
+        int first = _data.getInt(_fieldsOffset + (field * 8));
+        int hash = value.hashCode();
+        int mask = capacity - 1;
+        int slot = FilterGroupKey.mix(hash) & mask;
+        while (true) {
+            int valueNumber = _data.getInt(_slotsOffset + ((first + slot) * 4)) - 1;
+            if (valueNumber < 0)
+                return -1;
+            int entry = _valuesOffset + (valueNumber * VALUE_INTS * 4);
+            if ((_data.getInt(entry + 8) == hash) && sameText(entry, value))
+                return valueNumber;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    // Returns true if the text of a value entry is the given string
+    private boolean sameText(int entry, String value)
+    {
+        int length = _data.getInt(entry + 4);
+        if (length != value.length())
+            return false;
+        int text = _textOffset + (_data.getInt(entry) * 2);
+        int index;
+        for (index = 0; index < length; index++)
+            if (_data.getChar(text + (index * 2)) != value.charAt(index))
+                return false;
+        return true;
+    }
+
+    // Returns the text of a value
+    private String getValue(int valueNumber)
+    {
+        int entry = _valuesOffset + (valueNumber * VALUE_INTS * 4);
+        int length = _data.getInt(entry + 4);
+        int text = _textOffset + (_data.getInt(entry) * 2);
+        char[] chars = new char[length];
+        int index;
+        for (index = 0; index < length; index++)
+            chars[index] = _data.getChar(text + (index * 2));
+        return new String(chars);
+    }
+
+    // Number of filters in a rule
+    private int getRuleSize(int rule)
+    {
+        return _data.getInt(_rulesOffset + ((rule + 1) * 4)) - _data.getInt(_rulesOffset + (rule * 4));
+    }
+
+    /* Determine whether any rule passes a record. Works like
+       RuleMatcher.passes(), counting the filters hit for each rule */
+    public boolean passes(List<String> record)
+    {
+        if (record == null)
+            return false; // No record!
+        Counts counts = null;
+        int fieldCount = Math.min(record.size(), _fieldCount);
+        int field;
+        for (field = 0; field < fieldCount; field++) {
+            String value = record.get(field);
+            if (value == null)
+                continue;
+            int valueNumber = findValue(field, value);
+            if (valueNumber < 0)
+                continue;
+            int entry = _valuesOffset + (valueNumber * VALUE_INTS * 4);
+            int list = _listsOffset + (_data.getInt(entry + 12) * 4);
+            int listEnd = list + (_data.getInt(entry + 16) * 4);
+            for (; list < listEnd; list += 4) {
+                int rule = _data.getInt(list);
+                int ruleSize = getRuleSize(rule);
+                if (ruleSize == 1)
+                    return true; // No need to count
+                if (counts == null) {
+                    // First rule that needs counting for this record
+                    counts = _counts.get();
+                    counts.stamp++;
+                    if (counts.stamp == 0) {
+                        // Stamps wrapped, so old ones could match. Clear them
+                        Arrays.fill(counts.stamps, 0);
+                        counts.stamp = 1;
+                    }
+                }
+                if (counts.stamps[rule] != counts.stamp) {
+                    counts.stamps[rule] = counts.stamp;
+                    counts.hits[rule] = 1;
+                }
+                else {
+                    counts.hits[rule]++;
+                    if (counts.hits[rule] == ruleSize)
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /* Returns which fields some rule filters on, indexed by field. Read
+       from the field section, so the rules are not rebuilt */
+    public boolean[] getUsedFields()
+    {
+        boolean[] result = new boolean[_fieldCount];
+        int field;
+        for (field = 0; field < _fieldCount; field++)
+            result[field] = (_data.getInt(_fieldsOffset + (field * 8) + 4) > 0);
+        return result;
+    }
+
+    /* Returns the values rules filter a field on, in no particular order.
+       Read from the hash table of the field, so the rules are not rebuilt */
+    public List<String> getFieldValues(int field) throws IOException
+    {
+        ArrayList<String> result = new ArrayList<String>();
+        if ((field < 0) || (field >= _fieldCount))
+            return result;
+        try {
+            int first = _data.getInt(_fieldsOffset + (field * 8));
+            int capacity = _data.getInt(_fieldsOffset + (field * 8) + 4);
+            int slot;
+            for (slot = 0; slot < capacity; slot++) {
+                int valueNumber = _data.getInt(_slotsOffset + ((first + slot) * 4)) - 1;
+                if (valueNumber >= _valueCount)
+                    throw new IOException("Model file " + _fileName + " invalid; slot value " + valueNumber + " out of range");
+                if (valueNumber >= 0)
+                    result.add(getValue(valueNumber));
+            }
+        }
+        catch (IndexOutOfBoundsException e) {
+            throw new IOException("Model file " + _fileName + " invalid; sections damaged");
+        }
+        return result;
+    }
+
+    /* Rebuild the rules as objects, in their original order. Only needed to
+       print or convert them; matching works without it */
+    public FieldFilterCollection toRules() throws IOException
+    {
+        FieldFilterCollection result = new FieldFilterCollection();
+        try {
+            int rule;
+            for (rule = 0; rule < _ruleCount; rule++) {
+                int first = _data.getInt(_rulesOffset + (rule * 4));
+                int end = _data.getInt(_rulesOffset + ((rule + 1) * 4));
+                ArrayList<FieldFilter> filters = new ArrayList<FieldFilter>(end - first);
+                int filter;
+                for (filter = first; filter < end; filter++) {
+                    int field = _data.getInt(_filtersOffset + (filter * 8));
+                    int valueNumber = _data.getInt(_filtersOffset + (filter * 8) + 4);
+                    if ((valueNumber < 0) || (valueNumber >= _valueCount))
+                        throw new IOException("Model file " + _fileName + " invalid; filter value " + valueNumber + " out of range");
+                    filters.add(new FieldFilter(field, getValue(valueNumber)));
+                }
+                result.add(new FieldFilterGroup(filters));
+            }
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("Model file " + _fileName + " invalid; " + e.getMessage());
+        }
+        catch (IndexOutOfBoundsException e) {
+            throw new IOException("Model file " + _fileName + " invalid; sections damaged");
+        }
+        return result;
+    }
+
+    // Save rules to a model file in this layout, overwriting any existing file
+    public static void write(String fileName, FieldFilterCollection rules) throws IOException
+    {
+        if (fileName == null)
+            throw new IllegalArgumentException("Filename for model must be specified");
+        if (rules == null)
+            throw new IllegalArgumentException("Rules to save passed null");
+
+        /* Number the distinct field and value pairs in order of first use, and
+           collect the rules filtering on each */
+        ArrayList<HashMap<String, Integer> > valuesByField = new ArrayList<HashMap<String, Integer> >();
+        ArrayList<String> values = new ArrayList<String>();
+        ArrayList<ArrayList<Integer> > lists = new ArrayList<ArrayList<Integer> >();
+        ArrayList<Integer> filterFields = new ArrayList<Integer>();
+        ArrayList<Integer> filterValues = new ArrayList<Integer>();
+        int[] ruleStarts = new int[rules.size() + 1];
+        Iterator<FieldFilterGroup> index = rules.iterator();
+        int rule = 0;
+        while (index.hasNext()) {
+            FieldFilterGroup group = index.next();
+            ruleStarts[rule] = filterFields.size();
+            int filter;
+            for (filter = 0; filter < group.filterCount(); filter++) {
+                FieldFilter next = group.getFilter(filter);
+                while (valuesByField.size() <= next.getField())
+                    valuesByField.add(new HashMap<String, Integer>());
+                HashMap<String, Integer> fieldValues = valuesByField.get(next.getField());
+                Integer valueNumber = fieldValues.get(next.getValue());
+                if (valueNumber == null) {
+                    valueNumber = Integer.valueOf(values.size());
+                    fieldValues.put(next.getValue(), valueNumber);
+                    values.add(next.getValue());
+                    lists.add(new ArrayList<Integer>());
+                }
+                lists.get(valueNumber.intValue()).add(Integer.valueOf(rule));
+                filterFields.add(Integer.valueOf(next.getField()));
+                filterValues.add(valueNumber);
+            }
+            rule++;
+        }
+        ruleStarts[rule] = filterFields.size();
+
+        // Size the hash tables, keeping them at most half full
+        int fieldCount = valuesByField.size();
+        int[] tableStarts = new int[fieldCount];
+        int[] capacities = new int[fieldCount];
+        int slotCount = 0;
+        int field;
+        for (field = 0; field < fieldCount; field++) {
+            int size = valuesByField.get(field).size();
+            if (size > 0) {
+                capacities[field] = 2;
+                while (capacities[field] < (size * 2))
+                    capacities[field] *= 2;
+            }
+            tableStarts[field] = slotCount;
+            slotCount += capacities[field];
+        }
+        int listTotal = 0;
+        int textLength = 0;
+        int valueNumber;
+        for (valueNumber = 0; valueNumber < values.size(); valueNumber++) {
+            listTotal += lists.get(valueNumber).size();
+            textLength += values.get(valueNumber).length();
+        }
+
+        long fieldsOffset = HEADER_INTS * 4;
+        long rulesOffset = fieldsOffset + (fieldCount * 8L);
+        long filtersOffset = rulesOffset + ((rules.size() + 1) * 4L);
+        long valuesOffset = filtersOffset + (filterFields.size() * 8L);
+        long listsOffset = valuesOffset + (values.size() * VALUE_INTS * 4L);
+        long slotsOffset = listsOffset + (listTotal * 4L);
+        long textOffset = slotsOffset + (slotCount * 4L);
+        long fileSize = textOffset + (textLength * 2L);
+        if (fileSize > Integer.MAX_VALUE)
+            throw new IOException("Rules too large for model file, " + fileSize + " bytes needed");
+
+        ByteBuffer data = ByteBuffer.allocate((int)fileSize);
+        data.putInt(RuleModel.MAGIC);
+        data.putInt(VERSION);
+        data.putInt(fieldCount);
+        data.putInt(rules.size());
+        data.putInt(values.size());
+        data.putInt((int)fieldsOffset);
+        data.putInt((int)rulesOffset);
+        data.putInt((int)filtersOffset);
+        data.putInt((int)valuesOffset);
+        data.putInt((int)listsOffset);
+        data.putInt((int)slotsOffset);
+        data.putInt((int)textOffset);
+        data.putInt(textLength);
+        for (field = 0; field < fieldCount; field++) {
+            data.putInt(tableStarts[field]);
+            data.putInt(capacities[field]);
+        }
+        for (rule = 0; rule <= rules.size(); rule++)
+            data.putInt(ruleStarts[rule]);
+        int filter;
+        for (filter = 0; filter < filterFields.size(); filter++) {
+            data.putInt(filterFields.get(filter).intValue());
+            data.putInt(filterValues.get(filter).intValue());
+        }
+        int listStart = 0;
+        int textStart = 0;
+        for (valueNumber = 0; valueNumber < values.size(); valueNumber++) {
+            String value = values.get(valueNumber);
+            data.putInt(textStart);
+            data.putInt(value.length());
+            data.putInt(value.hashCode());
+            data.putInt(listStart);
+            data.putInt(lists.get(valueNumber).size());
+            textStart += value.length();
+            listStart += lists.get(valueNumber).size();
+        }
+        for (valueNumber = 0; valueNumber < values.size(); valueNumber++) {
+            Iterator<Integer> listIndex = lists.get(valueNumber).iterator();
+            while (listIndex.hasNext())
+                data.putInt(listIndex.next().intValue());
+        }
+        for (field = 0; field < fieldCount; field++) {
+            Iterator<Map.Entry<String, Integer> > valueIndex = valuesByField.get(field).entrySet().iterator();
+            int mask = capacities[field] - 1;
+            while (valueIndex.hasNext()) {
+                Map.Entry<String, Integer> entry = valueIndex.next();
+                int slot = FilterGroupKey.mix(entry.getKey().hashCode()) & mask;
+                int position = (int)slotsOffset + ((tableStarts[field] + slot) * 4);
+                while (data.getInt(position) != 0) {
+                    slot = (slot + 1) & mask;
+                    position = (int)slotsOffset + ((tableStarts[field] + slot) * 4);
+                }
+                data.putInt(position, entry.getValue().intValue() + 1);
+            }
+        }
+        data.position((int)textOffset);
+        for (valueNumber = 0; valueNumber < values.size(); valueNumber++) {
+            String value = values.get(valueNumber);
+            int charIndex;
+            for (charIndex = 0; charIndex < value.length(); charIndex++)
+                data.putChar(value.charAt(charIndex));
+        }
+
+        FileOutputStream output = new FileOutputStream(fileName);
+        try {
+            output.write(data.array());
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    public String toString()
+    {
+        return "MappedRuleModel: " + _ruleCount + " rules on " + _fieldCount + " fields from " + _fileName;
+    }
+
+    // Code to test the class
+    public static void main(String[] args)
+    {
+        // Rules: field 1 is 'a', or field 0 is 'x' and field 2 is 'z'
+        FieldFilterCollection rules = new FieldFilterCollection(new FieldFilterGroup(new FieldFilter(1, "a")));
+        FieldFilterGroup pair = new FieldFilterGroup(new FieldFilter(0, "x"));
+        rules.add(new FieldFilterGroup(pair, new FieldFilter(2, "z")));
+        rules.add(new FieldFilterGroup(new FieldFilter(4, "a\u00e9")));
+
+        try {
+            write("MappedModelTest.testtesttest", rules);
+            MappedRuleModel test = open("MappedModelTest.testtesttest");
+            System.out.println("Model: " + test);
+
+            System.out.println("Rebuild rules from mapped model, expect same rules in same order");
+            if (test.toRules().toString().equals(rules.toString()))
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed, got " + test.toRules());
+
+            System.out.println("Read fields and values from mapped model, expect fields 0, 1, 2 and 4 with field 0 on 'x'");
+            boolean[] used = test.getUsedFields();
+            if (Arrays.toString(used).equals("[true, true, true, false, true]") &&
+                test.getFieldValues(0).equals(Arrays.asList("x")) &&
+                test.getFieldValues(4).equals(Arrays.asList("a\u00e9")) &&
+                test.getFieldValues(3).isEmpty())
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed, got " + Arrays.toString(used) + " and " + test.getFieldValues(0));
+
+            ArrayList<String> record = new ArrayList<String>();
+            record.add("x");
+            record.add("b");
+            record.add("z");
+            System.out.println("Record " + record + " matches both filters of a pair, expect pass");
+            if (test.passes(record))
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed");
+
+            record.set(2, "y");
+            System.out.println("Record " + record + " matches one filter of a pair, expect fail");
+            if (!test.passes(record))
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed");
+
+            // Random rules and records must match exactly as the collection does
+            Random random = new Random(11);
+            FieldFilterCollection randomRules = new FieldFilterCollection();
+            int count;
+            for (count = 0; count < 300; count++) {
+                FieldFilterGroup group = new FieldFilterGroup(new FieldFilter(random.nextInt(3), String.valueOf(random.nextInt(20))));
+                int field;
+                for (field = 3; field < 6; field++)
+                    if (random.nextInt(2) == 0)
+                        group = new FieldFilterGroup(group, new FieldFilter(field, String.valueOf(random.nextInt(20))));
+                randomRules.add(group);
+            }
+            write("MappedModelTest.testtesttest", randomRules);
+            MappedRuleModel randomTest = open("MappedModelTest.testtesttest");
+            System.out.println("Match random records against random mapped rules, expect same results as collection");
+            boolean same = true;
+            for (count = 0; same && (count < 5000); count++) {
+                ArrayList<String> randomRecord = new ArrayList<String>();
+                int field;
+                for (field = 0; field < 6; field++)
+                    randomRecord.add(String.valueOf(random.nextInt(20)));
+                same = (randomTest.passes(randomRecord) == randomRules.passes(randomRecord));
+            }
+            if (same)
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed after " + count + " records");
+
+            System.out.println("Open truncated model, expect exception");
+            RandomAccessFile file = new RandomAccessFile("MappedModelTest.testtesttest", "rw");
+            file.setLength(file.length() - 2);
+            file.close();
+            try {
+                open("MappedModelTest.testtesttest");
+                System.out.println("Test failed, model opened");
+            }
+            catch (IOException e) {
+                System.out.println("Test succeeded, caught " + e);
+            }
+        }
+        catch (Exception e) {
+            System.out.println("Test failed, caught " + e);
+        }
+        new File("MappedModelTest.testtesttest").delete();
+    }
+}
@@ -0,0 +1,157 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class is a record parsed from a line of a CSV file with only some of
+   its fields extracted: those some classification rule looks at. The others
+   read as NULL. The line itself is kept, so the record can be written back
+   out unchanged without rebuilding it from fields. Rules usually use only a
+   few of the fields, so this saves creating most of the strings of a record.
+
+   Fields are split exactly as RecordReader.parse() does, so the field count
+   is the same, including dropping empty fields at the end of the line */
+import java.util.*;
+
+public final class ProjectedRecord extends AbstractList<String>
+{
+    private String _line;
+    private int _textLength; // Of the fields counted, without empty ones at the end
+    private int _size;
+    private String[] _values; // Extracted fields, NULL for the others
+
+    /* Parse a line, extracting the fields whose entries are true. Fields
+       past the end of the array are not extracted */
+    public ProjectedRecord(String line, boolean[] fields)
+    {
+        if (line == null)
+            throw new IllegalArgumentException("Line to parse passed null");
+        if (fields == null)
+            throw new IllegalArgumentException("Fields to extract passed null");
+        _line = line;
+        _values = new String[fields.length];
+        _size = 0;
+        _textLength = 0;
+        if (line.length() == 0) {
+            _size = 1; // One empty field, as String.split() gives
+            if (fields.length > 0)
+                _values[0] = line;
+            return;
+        }
+        int start = 0;
+        int field = 0;
+        while (true) {
+            int comma = line.indexOf(',', start);
+            int end = (comma < 0) ? line.length() : comma;
+            if (end > start) {
+                _size = field + 1;
+                _textLength = end;
+            }
+            if ((field < fields.length) && fields[field])
+                _values[field] = line.substring(start, end);
+            if (comma < 0)
+                break;
+            start = comma + 1;
+            field++;
+        }
+    }
+
+    /* Create a record from fields already extracted, without its line, such
+       as one split from bytes. The values array is used, not copied. Such a
+       record can't be appended as text */
+    public ProjectedRecord(int size, String[] values)
+    {
+        if (values == null)
+            throw new IllegalArgumentException("Extracted fields passed null");
+        if (size < 0)
+            throw new IllegalArgumentException("Field count " + size + " invalid");
+        _line = null;
+        _textLength = 0;
+        _size = size;
+        _values = values;
+    }
+
+    /* Returns a field, or NULL if it was not extracted. Throws if the record
+       has no such field */
+    public String get(int field)
+    {
+        if ((field < 0) || (field >= _size))
+            throw new IndexOutOfBoundsException("Field " + field + " requested from record with " + _size + " fields");
+        return (field < _values.length) ? _values[field] : null;
+    }
+
+    public int size()
+    {
+        return _size;
+    }
+
+    /* Append the record to a buffer as text, as the fields would be joined
+       with commas. Throws if the record was created without its line */
+    public void appendTo(StringBuilder buffer)
+    {
+        if (_line == null)
+            throw new IllegalStateException("Record has no line to append");
+        buffer.append(_line, 0, _textLength);
+    }
+
+    public static void main(String[] args)
+    {
+        boolean[] fields = {false, true, false, true};
+        ProjectedRecord test = new ProjectedRecord("a,b,c,d,e", fields);
+        System.out.println("Record " + test + " extracting fields 1 and 3, expect [null, b, null, d, null]");
+        if (test.toString().equals("[null, b, null, d, null]"))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        /* Field counts must match splitting the whole line, with empty
+           fields at the end dropped but those in the middle kept */
+        String[] lines = {"a,b,c,d,e", "a,,c", "a,b,,,", ",,,", ",a", "abc", " ", "a,b, "};
+        boolean[] allFields = {true, true, true, true, true, true};
+        boolean same = true;
+        int index;
+        for (index = 0; same && (index < lines.length); index++) {
+            ProjectedRecord record = new ProjectedRecord(lines[index], allFields);
+            ArrayList<String> parsed = RecordReader.parse(lines[index]);
+            StringBuilder text = new StringBuilder();
+            record.appendTo(text);
+            StringBuilder parsedText = new StringBuilder();
+            RecordWriter.format(parsed, parsedText);
+            parsedText.setLength(parsedText.length() - System.getProperty("line.separator").length());
+            same = record.equals(parsed) && text.toString().equals(parsedText.toString());
+        }
+        System.out.println("Lines parsed with all fields extracted, expect same as RecordReader.parse()");
+        if (same)
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed on line '" + lines[index - 1] + "'");
+
+        System.out.println("Field past end of record, expect exception");
+        try {
+            test.get(5);
+            System.out.println("Test failed");
+        }
+        catch (IndexOutOfBoundsException e) {
+            System.out.println("Test passed, caught exception: " + e);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class answers whether any record in a set has a given combination of
+   field values. The classifier only ever asks this of the valid training
+   records, so building a TrainingRecords for them, with every combination of
+   every record, wastes most of the memory of training. Instead, this class
+   keeps for every field value the set of records that have it. A filter group
+   exists if the intersection of the sets for its filters is not empty, which
+   works equally well for any number of filters, so nothing needs to be
+   regenerated as the filter groups get more specific.
+
+   Values are identified by their RecordDictionary code. Each set is stored as
+   a bitmap over record ordinals when the value is common, and as a sorted
+   array of ordinals when it is rare, whichever is smaller. The intersection
+   walks the records of the rarest value and probes the others, which stops
+   at the first record found in all of them. When every value is common it
+   ANDs the bitmaps a word at a time instead.
+
+   Only values already in the dictionary are indexed. Filter groups to test
+   come from the invalid training records, so the dictionary must already
+   hold their values, and a value that only valid records have can never be
+   asked about. Once built, the object never changes, so it is safe to query
+   from several threads at once */
+import java.util.*;
+import java.util.concurrent.*;
+
+public class RecordBitmapIndex
+{
+    private RecordDictionary _dictionary;
+    private int _recordCount;
+
+    // Sets for each code. Exactly one of the two arrays is set for each code
+    private int[][] _ordinals;
+    private long[][] _bitmaps;
+    private int[] _counts; // Records in each set
+
+    /* Build the index for a set of records, skipping the fields listed in
+       excludeFields. If it is NULL, every field is indexed */
+    public RecordBitmapIndex(RecordGroup records, int[] excludeFields,
+                             RecordDictionary dictionary)
+    {
+        if (records == null)
+            throw new IllegalArgumentException("Records to index passed null");
+        if (dictionary == null)
+            throw new IllegalArgumentException("Dictionary for record index passed null");
+        _dictionary = dictionary;
+        _recordCount = records.size();
+        int codeCount = dictionary.size();
+        _ordinals = new int[codeCount][];
+        _bitmaps = new long[codeCount][];
+        _counts = new int[codeCount];
+
+        // Encode the records, noting the fields to use
+        boolean[] excluded = new boolean[0];
+        if (excludeFields != null) {
+            int index;
+            int maxField = -1;
+            for (index = 0; index < excludeFields.length; index++)
+                maxField = Math.max(maxField, excludeFields[index]);
+            excluded = new boolean[maxField + 1];
+            for (index = 0; index < excludeFields.length; index++)
+                if (excludeFields[index] >= 0)
+                    excluded[excludeFields[index]] = true;
+        }
+        int[][] codes = new int[_recordCount][];
+        Iterator<ArrayList<String> > recordIndex = records.getRecords().iterator();
+        int ordinal = 0;
+        while (recordIndex.hasNext()) {
+            ArrayList<String> record = recordIndex.next();
+            int[] recordCodes = new int[record.size()];
+            int field;
+            for (field = 0; field < record.size(); field++) {
+                if ((field < excluded.length) && excluded[field])
+                    recordCodes[field] = -1;
+                else
+                    recordCodes[field] = dictionary.lookup(field, record.get(field));
+                if (recordCodes[field] >= 0)
+                    _counts[recordCodes[field]]++;
+            }
+            codes[ordinal] = recordCodes;
+            ordinal++;
+        }
+
+        /* Choose the representation of each set. A bitmap takes one bit per
+           record, an array 32 bits per record in the set */
+        int code;
+        for (code = 0; code < codeCount; code++) {
+            if (_counts[code] == 0)
+                continue;
+            if (_counts[code] > (_recordCount / 32))
+                _bitmaps[code] = new long[(_recordCount + 63) >>> 6];
+            else
+                _ordinals[code] = new int[_counts[code]];
+        }
+
+        // Fill the sets. Records are visited in order, so arrays are sorted
+        int[] filled = new int[codeCount];
+        for (ordinal = 0; ordinal < _recordCount; ordinal++) {
+            int field;
+            for (field = 0; field < codes[ordinal].length; field++) {
+                code = codes[ordinal][field];
+                if (code < 0)
+                    continue;
+                if (_bitmaps[code] != null)
+                    _bitmaps[code][ordinal >>> 6] |= (1L << ordinal);
+                else
+                    _ordinals[code][filled[code]++] = ordinal;
+            }
+        }
+    }
+
+    // Number of records indexed
+    public int size()
+    {
+        return _recordCount;
+    }
+
+    /* Returns true if at least one record passes every filter in the group,
+       the same answer TrainingRecords.hasFilterGroup() gives when its filter
+       groups are the same size as this one */
+    public boolean hasFilterGroup(FieldFilterGroup filter)
+    {
+        if (filter == null)
+            return false;
+        int[] codes = new int[filter.filterCount()];
+        int index;
+        for (index = 0; index < codes.length; index++) {
+            FieldFilter next = filter.getFilter(index);
+            codes[index] = _dictionary.lookup(next.getField(), next.getValue());
+            // A value not in the index can't be in any record
+            if ((codes[index] < 0) || (codes[index] >= _counts.length) ||
+                (_counts[codes[index]] == 0))
+                return false;
+        }
+
+        // Sort by set size, smallest first. Groups are small, so insert
+        int position;
+        for (position = 1; position < codes.length; position++) {
+            int code = codes[position];
+            index = position - 1;
+            while ((index >= 0) && (_counts[codes[index]] > _counts[code])) {
+                codes[index + 1] = codes[index];
+                index--;
+            }
+            codes[index + 1] = code;
+        }
+
+        if (_ordinals[codes[0]] != null) {
+            // Probe the other sets with every record of the smallest
+            int[] driver = _ordinals[codes[0]];
+            for (index = 0; index < driver.length; index++) {
+                boolean found = true;
+                for (position = 1; found && (position < codes.length); position++)
+                    found = contains(codes[position], driver[index]);
+                if (found)
+                    return true;
+            }
+            return false;
+        }
+        else {
+            /* The smallest set is a bitmap, so all of them are. AND them
+               together a word at a time */
+            int word;
+            for (word = 0; word < _bitmaps[codes[0]].length; word++) {
+                long bits = _bitmaps[codes[0]][word];
+                for (position = 1; (bits != 0) && (position < codes.length); position++)
+                    bits &= _bitmaps[codes[position]][word];
+                if (bits != 0)
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /* Test a list of filter groups at once, splitting them across the threads
+       of a pool. Returns the result of hasFilterGroup() for each, in list
+       order. A NULL pool tests them on the calling thread */
+    public boolean[] hasFilterGroups(List<FieldFilterGroup> filters,
+                                     ForkJoinPool pool)
+    {
+        if (filters == null)
+            throw new IllegalArgumentException("Filter groups to test passed null");
+        FieldFilterGroup[] filterArray = filters.toArray(new FieldFilterGroup[filters.size()]);
+        boolean[] results = new boolean[filterArray.length];
+        if ((pool == null) || (pool.getParallelism() <= 1) || (filterArray.length <= 1)) {
+            int index;
+            for (index = 0; index < filterArray.length; index++)
+                results[index] = hasFilterGroup(filterArray[index]);
+        }
+        else {
+            // A couple of tasks per thread evens out groups that take longer
+            int grain = Math.max(1, filterArray.length / (pool.getParallelism() * 2));
+            pool.invoke(new CheckTask(filterArray, results, 0, filterArray.length,
+                                      grain));
+        }
+        return results;
+    }
+
+    // Tests a range of filter groups, splitting it in half until small enough
+    private final class CheckTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private transient FieldFilterGroup[] _filters;
+        private boolean[] _results;
+        private int _first;
+        private int _end;
+        private int _grain;
+
+        CheckTask(FieldFilterGroup[] filters, boolean[] results, int first,
+                  int end, int grain)
+        {
+            _filters = filters;
+            _results = results;
+            _first = first;
+            _end = end;
+            _grain = grain;
+        }
+
+        protected void compute()
+        {
+            if ((_end - _first) <= _grain) {
+                int index;
+                for (index = _first; index < _end; index++)
+                    _results[index] = hasFilterGroup(_filters[index]);
+            }
+            else {
+                int middle = (_first + _end) >>> 1;
+                invokeAll(new CheckTask(_filters, _results, _first, middle, _grain),
+                          new CheckTask(_filters, _results, middle, _end, _grain));
+            }
+        }
+    }
+
+    // Returns true if the set for a code has a record
+    private boolean contains(int code, int ordinal)
+    {
+        if (_bitmaps[code] != null)
+            return ((_bitmaps[code][ordinal >>> 6] & (1L << ordinal)) != 0);
+        else
+            return (Arrays.binarySearch(_ordinals[code], ordinal) >= 0);
+    }
+
+    public String toString()
+    {
+        int bitmaps = 0;
+        int arrays = 0;
+        int code;
+        for (code = 0; code < _counts.length; code++)
+            if (_bitmaps[code] != null)
+                bitmaps++;
+            else if (_ordinals[code] != null)
+                arrays++;
+        return "RecordBitmapIndex: " + _recordCount + " records, " + bitmaps + " values as bitmaps, " + arrays + " as arrays";
+    }
+
+    // Utility method to create a record with three fields in it, in order
+    private static ArrayList<String> createTestRecord(String value1,
+                                                      String value2,
+                                                      String value3)
+    {
+        ArrayList<String> result = new ArrayList<String>();
+        result.add(value1);
+        result.add(value2);
+        result.add(value3);
+        return result;
+    }
+
+    // Code to test the class
+    public static void main(String[] args)
+    {
+        /* Enough records that common values become bitmaps and rare ones
+           arrays. Field 0 is unique per record, field 1 has two values, and
+           field 2 has a value only in the last record */
+        RecordGroup records = new RecordGroup(createTestRecord("id0", "even", "common"));
+        int count;
+        for (count = 1; count < 100; count++)
+            records.add(createTestRecord("id" + count, ((count % 2) == 0) ? "even" : "odd",
+                                         (count == 99) ? "rare" : "common"));
+        RecordDictionary dictionary = new RecordDictionary();
+        dictionary.encode(records.getRecords().getFirst());
+        dictionary.encode(records.getRecords().getLast());
+        dictionary.encode(2, "unused");
+
+        RecordBitmapIndex test = new RecordBitmapIndex(records, null, dictionary);
+        System.out.println("Index: " + test);
+
+        FieldFilterGroup common = new FieldFilterGroup(new FieldFilter(1, "even"));
+        common = new FieldFilterGroup(common, new FieldFilter(2, "common"));
+        System.out.println("Group of two common values, expect found " + common);
+        if (test.hasFilterGroup(common))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        FieldFilterGroup rare = new FieldFilterGroup(new FieldFilter(1, "odd"));
+        rare = new FieldFilterGroup(rare, new FieldFilter(2, "rare"));
+        System.out.println("Group of common and rare value in same record, expect found " + rare);
+        if (test.hasFilterGroup(rare))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        FieldFilterGroup missing = new FieldFilterGroup(new FieldFilter(1, "even"));
+        missing = new FieldFilterGroup(missing, new FieldFilter(2, "rare"));
+        System.out.println("Group of values never in same record, expect not found " + missing);
+        if (!test.hasFilterGroup(missing))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        FieldFilterGroup unknown = new FieldFilterGroup(new FieldFilter(2, "unused"));
+        FieldFilterGroup notEncoded = new FieldFilterGroup(new FieldFilter(0, "id5"));
+        System.out.println("Groups with values not indexed, expect not found");
+        if (!test.hasFilterGroup(unknown) && !test.hasFilterGroup(notEncoded))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        ArrayList<FieldFilterGroup> batch = new ArrayList<FieldFilterGroup>();
+        batch.add(common);
+        batch.add(missing);
+        batch.add(rare);
+        batch.add(unknown);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        boolean[] results = test.hasFilterGroups(batch, pool);
+        pool.shutdown();
+        System.out.println("Test all four groups at once on two threads, expect same results as one at a time");
+        if (results[0] && !results[1] && results[2] && !results[3])
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, got " + Arrays.toString(results));
+
+        int[] exclude = new int[1];
+        exclude[0] = 1;
+        RecordBitmapIndex test2 = new RecordBitmapIndex(records, exclude, dictionary);
+        System.out.println("Exclude field of group, expect not found");
+        if (!test2.hasFilterGroup(common))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+    }
+}
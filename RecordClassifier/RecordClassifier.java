@@ -33,17 +33,81 @@
    exclusion list can be specified to eliminate these fields from
    consideration. The final classification rules are output to aid this manual
    tuning */
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 class RecordClassifier
 {
-    private FieldFilterCollection _rules; // Rules for classifying invalid records
+    /* Rules for classifying invalid records. A classifier loaded from a
+       mapped model matches records from the file directly, and only builds
+       these if asked to print or save them */
+    private FieldFilterCollection _rules;
+    private MappedRuleModel _model;
+
+    /* The rules compiled for matching records quickly. Testing each rule in
+       turn gets slow when there are many of them */
+    private RecordMatcher _matcher;
+
+    /* The rules compiled for matching blocks of records at once, NULL to
+       match them one at a time */
+    private BlockMatcher _blockMatcher;
+
+    // Results of matching kept for repeated records, NULL if not kept
+    private VerdictCache _cache;
+
+    /* The fields some rule looks at. Only these are taken out of records
+       classified from a file, which are otherwise written back as read */
+    private boolean[] _usedFields;
+    private ByteDictionary[] _ruleValues; // Per field, matched by their bytes
+
+    /* Candidate filter groups to check against the valid records at once, per
+       thread. Most candidates are rejected, so nearly all of these are used */
+    private static final int CANDIDATES_PER_THREAD = 8;
+
+    /* Records per chunk for classifying in parallel. Big enough that handing
+       chunks to threads costs little, small enough that a few per thread use
+       little memory */
+    private static final int CLASSIFY_CHUNK_SIZE = 4096;
 
     /* Create the classifier from a training set. The training set must have
        both valid and invalid examples. The more examples of each, the lower
        the false positive rate. The last field states whether a given record is
        valid, by values 'true' or 'false' */
     public RecordClassifier(RecordGroup trainingSet, int[] excludeFields)
+    {
+        this(trainingSet, excludeFields, ForkJoinPool.commonPool());
+    }
+
+    /* Create the classifier from a training set as above, using the threads
+       of a pool for the heavy parts of the training. A NULL pool does it all
+       on the calling thread. The rules are the same either way */
+    public RecordClassifier(RecordGroup trainingSet, int[] excludeFields,
+                            ForkJoinPool pool)
+    {
+        this(trainingSet, excludeFields, pool, new StorageBudget());
+    }
+
+    /* Create the classifier from a training set as above, keeping the
+       training indexes within a storage budget. Indexes larger than it go to
+       files on disk, so training is slower but does not run out of memory */
+    public RecordClassifier(RecordGroup trainingSet, int[] excludeFields,
+                            ForkJoinPool pool, StorageBudget storage)
+    {
+        this(trainingSet, excludeFields, pool, storage,
+             TrainingRecords.CandidateSelection.BUCKET_QUEUE);
+    }
+
+    /* Create the classifier from a training set as above, finding the filter
+       groups to turn into rules with the given method. Scanning is slower,
+       but breaks ties between groups the way the original implementation
+       did, so it learns exactly the same rules */
+    public RecordClassifier(RecordGroup trainingSet, int[] excludeFields,
+                            ForkJoinPool pool, StorageBudget storage,
+                            TrainingRecords.CandidateSelection selection)
     {
         if (trainingSet == null)
             throw new IllegalArgumentException("Training records for classifier passed null");
@@ -75,11 +139,24 @@ class RecordClassifier
         }
         excludeFields[excludeFields.length - 1] = classificationField;
 
-        // Initialize two sets of training data, one each for valid and invalid
-        TrainingRecords validData = new TrainingRecords(validRecords,
-                                                        excludeFields);
+        /* Initialize the training data for the invalid records, which the
+           rules are generated from. The valid records are only ever checked
+           for whether they have some combination of field values, which an
+           index of the records with each value answers directly, without
+           generating every combination. The index only needs the values of
+           the invalid records, so they are encoded first */
+        RecordDictionary dictionary = new RecordDictionary();
         TrainingRecords invalidData = new TrainingRecords(invalidRecords,
-                                                          excludeFields);
+                                                          excludeFields,
+                                                          selection, dictionary,
+                                                          storage);
+        RecordBitmapIndex validData = new RecordBitmapIndex(validRecords,
+                                                            excludeFields,
+                                                            dictionary);
+
+        /* Generating more specific filter groups is most of the work of
+           training, and splits cleanly across threads */
+        invalidData.setExpansionPool(pool);
 
         /* The ILA algoithm looks for filter conditions that select records in
            only a single category, working from general filters to more
@@ -96,13 +173,22 @@ class RecordClassifier
            training data is invalid.
            
            Since this class assumes all records are valid until proven
-           otherwise, the invalid records are used to generate the filters */
+           otherwise, the invalid records are used to generate the filters.
+
+           Whether the valid records have a filter group never changes, so it
+           can be found before the group comes up. With several threads, the
+           groups expected next are checked together and the results kept
+           until needed; groups are still accepted or rejected one at a time
+           in the same order, so the rules don't change */
         _rules = new FieldFilterCollection();
+        HashMap<FieldFilterGroup, Boolean> validChecks = new HashMap<FieldFilterGroup, Boolean>();
         while ((!invalidData.isEmpty()) &&
                (!invalidData.oneFiltersAllFields())) {
+            validChecks.clear(); // All groups change size below
             FieldFilterGroup testFilter = invalidData.getLargestFilter();
             while (testFilter != null) {
-                if (!validData.hasFilterGroup(testFilter)) {
+                if (!validHasFilterGroup(testFilter, invalidData, validData,
+                                         pool, validChecks)) {
                     // Found one!
                     _rules.add(testFilter);
                     testFilter = invalidData.deleteLastFilterGroup();
@@ -113,12 +199,8 @@ class RecordClassifier
             /* If records remain, need to make the potential filters to test 
                more specific */
             if ((!invalidData.isEmpty()) &&
-                (!invalidData.oneFiltersAllFields())) {
+                (!invalidData.oneFiltersAllFields()))
                 invalidData.incrFilterSpecificity();
-                /* Number of fields per filter must be equal in both sets of
-                   training data for the search to work */
-                validData.incrFilterSpecificity();
-            }
         } // Still have training records to process
 
         /* If get to here without the invalid data being empty, not all
@@ -127,6 +209,139 @@ class RecordClassifier
            data is invalid */
         if (!invalidData.isEmpty())
             throw new IllegalArgumentException("Training data invalid, valid and invalid record have same field values");
+        _matcher = new RuleMatcher(_rules);
+        _blockMatcher = null;
+        _cache = null;
+        _usedFields = null;
+        _ruleValues = null;
+    }
+
+    /* Returns whether the valid records have a filter group. With more than
+       one thread, the groups the invalid records are expected to return next
+       are checked along with it, and their results stored for later */
+    private static boolean validHasFilterGroup(FieldFilterGroup filter,
+                                               TrainingRecords invalidData,
+                                               RecordBitmapIndex validData,
+                                               ForkJoinPool pool,
+                                               HashMap<FieldFilterGroup, Boolean> validChecks)
+    {
+        if ((pool == null) || (pool.getParallelism() <= 1))
+            return validData.hasFilterGroup(filter);
+        Boolean result = validChecks.get(filter);
+        if (result != null)
+            return result.booleanValue();
+
+        int batchSize = pool.getParallelism() * CANDIDATES_PER_THREAD;
+        ArrayList<FieldFilterGroup> batch = new ArrayList<FieldFilterGroup>();
+        batch.add(filter);
+        Iterator<FieldFilterGroup> index = invalidData.peekNextFilters(batchSize - 1).iterator();
+        while (index.hasNext()) {
+            FieldFilterGroup next = index.next();
+            if (!validChecks.containsKey(next))
+                batch.add(next);
+        }
+        boolean[] results = validData.hasFilterGroups(batch, pool);
+        int count;
+        for (count = 0; count < results.length; count++)
+            validChecks.put(batch.get(count), Boolean.valueOf(results[count]));
+        return results[0];
+    }
+
+    // Create a classifier from rules already learned
+    private RecordClassifier(FieldFilterCollection rules)
+    {
+        _rules = rules;
+        _matcher = new RuleMatcher(_rules);
+        _blockMatcher = null;
+        _cache = null;
+        _usedFields = null;
+        _ruleValues = null;
+    }
+
+    // Create a classifier from a mapped model file
+    private RecordClassifier(MappedRuleModel model)
+    {
+        _rules = null;
+        _model = model;
+        _matcher = model;
+        _blockMatcher = null;
+        _cache = null;
+        _usedFields = null;
+        _ruleValues = null;
+    }
+
+    /* Returns the rules, building them from the model if needed. Files can
+       be classified from several threads at once, so this and the other
+       getters building fields on first use are synchronized */
+    private synchronized FieldFilterCollection getRules() throws IOException
+    {
+        if (_rules == null)
+            _rules = _model.toRules();
+        return _rules;
+    }
+
+    /* Save the rules to a model file, to classify with later without
+       training. The file is in the layout that can be used mapped in place */
+    public void saveModel(String fileName) throws IOException
+    {
+        MappedRuleModel.write(fileName, getRules());
+    }
+
+    /* Create a classifier from the rules in a model file. Models in the
+       mapped layout are used in place, so this takes about the same time
+       however many rules there are. Older models are read into memory */
+    public static RecordClassifier loadModel(String fileName) throws IOException
+    {
+        if (RuleModel.readVersion(fileName) == MappedRuleModel.VERSION)
+            return new RecordClassifier(MappedRuleModel.open(fileName));
+        return new RecordClassifier(RuleModel.read(fileName));
+    }
+
+    /* Count how often each rule catches a record, and every given number of
+       records reorder the rules so those catching the most are checked
+       first. Results are unchanged; only the time to find them is. Zero or
+       less checks the rules in a fixed order */
+    public void setAdaptiveRuleOrder(long reorderInterval) throws IOException
+    {
+        if (reorderInterval > 0)
+            _matcher = new RuleMatcher(getRules(), reorderInterval);
+        else if (_model != null)
+            _matcher = _model;
+        else
+            _matcher = new RuleMatcher(_rules);
+        if (_cache != null)
+            setVerdictCache(_cache.getMaxEntries());
+    }
+
+    /* Keep the results for up to the given number of distinct records, so
+       repeats are not matched again. Records are the same if they have the
+       same values in the fields the rules use. Zero or less keeps none.
+       Records classified in blocks don't use the cache */
+    public void setVerdictCache(int maxEntries) throws IOException
+    {
+        if (_cache != null) {
+            _matcher = _cache.getMatcher();
+            _cache = null;
+        }
+        if (maxEntries > 0) {
+            _cache = new VerdictCache(_matcher, getRules(), maxEntries);
+            _matcher = _cache;
+        }
+    }
+
+    // Returns the verdict cache, with its hit and miss counts, or NULL if none
+    public VerdictCache getVerdictCache()
+    {
+        return _cache;
+    }
+
+    /* Classify records in blocks, matching the rules against each block
+       column by column instead of record by record. Much faster on large
+       files, but the whole block is parsed before any of it is matched, and
+       rules are checked in a fixed order */
+    public void setBlockEvaluation(boolean useBlocks) throws IOException
+    {
+        _blockMatcher = useBlocks ? new BlockMatcher(getRules()) : null;
     }
 
     // Splits training records into classifications
@@ -148,11 +363,30 @@ class RecordClassifier
         return result;
     }
 
+    // Returns true if a record is valid based on the derived rules
+    public boolean isValid(List<String> record)
+    {
+        // Rules state when a record fails, so flip the status
+        return !_matcher.passes(record);
+    }
+
     /* Classifies records based on the derived rules. The validity is added
        to every record as a new last field */
     public void classifyRecords(RecordGroup records)
     {
-        if (records != null) {
+        if ((records != null) && (_blockMatcher != null)) {
+            ArrayList<ArrayList<String> > block = new ArrayList<ArrayList<String> >(CLASSIFY_CHUNK_SIZE);
+            boolean[] results = new boolean[CLASSIFY_CHUNK_SIZE];
+            Iterator<ArrayList<String> > index = records.getRecords().iterator();
+            while (index.hasNext()) {
+                block.add(index.next());
+                if ((block.size() == CLASSIFY_CHUNK_SIZE) || (!index.hasNext())) {
+                    classifyBlock(block, results);
+                    block.clear();
+                }
+            }
+        }
+        else if (records != null) {
             Iterator<ArrayList<String> > index = records.getRecords().iterator();
             while (index.hasNext()) {
                 /* This is a copy of the pointer to the actual record.
@@ -164,15 +398,450 @@ class RecordClassifier
                    adding the value to the record as the last field. Remember
                    that the rules state when a record fails, so the status
                    needs to be flipped */
-                record.add(String.valueOf(!_rules.passes(record)));
+                record.add(String.valueOf(!_matcher.passes(record)));
             } // Records to process
         } // Records were passed
     }
 
+    /* Classifies the records of one file into another, a chunk of records at
+       a time, so files of any size can be processed in constant memory. The
+       output is the same as reading the file with RecordParser.readRecords(),
+       classifying it with classifyRecords() and writing the result with
+       RecordParser.outputRecords(). The records must have consistent field
+       counts and there must be at least one, but since records are written as
+       they are read, this is only detected on reaching the problem, and the
+       chunk with the first bad record is not written. Lines are handled as
+       bytes: only the fields the rules use are looked at, and each line is
+       written back as read with the validity added */
+    public void classifyRecords(String inputFile, String outputFile) throws IOException
+    {
+        classifyRecords(inputFile, outputFile, null);
+    }
+
+    /* Classifies the records of one file into another as above, using the
+       threads of a pool. Reading, classifying and writing overlap: this
+       thread reads the file in chunks, the threads of the pool parse,
+       classify and format them, and a thread of its own writes them in the
+       order read. Chunks are handed between them through a queue with room
+       for a few per thread, so reading waits when writing falls behind and
+       memory stays constant. A NULL pool classifies on the calling thread,
+       one chunk at a time */
+    public void classifyRecords(String inputFile, String outputFile,
+                                ForkJoinPool pool) throws IOException
+    {
+        if (!ByteLineReader.canRead(Charset.defaultCharset())) {
+            // Lines can't be found by their bytes, so read them as text
+            classifyText(inputFile, outputFile);
+            return;
+        }
+        ByteDictionary[] values = getRuleValues();
+        ByteLineReader input = new ByteLineReader(inputFile);
+        try {
+            VerdictWriter output = new VerdictWriter(outputFile);
+            try {
+                if (pool == null) {
+                    ClassifyChunk chunk = readChunk(input, values);
+                    while (chunk != null) {
+                        chunk.invoke();
+                        writeChunk(chunk, input, output);
+                        chunk = readChunk(input, values);
+                    }
+                }
+                else
+                    classifyPipelined(input, output, values, pool);
+            }
+            finally {
+                output.close();
+            }
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    // Read the next chunk of a file, or NULL at the end
+    private ClassifyChunk readChunk(ByteLineReader input, ByteDictionary[] values) throws IOException
+    {
+        ClassifyChunk chunk = new ClassifyChunk(values);
+        while ((chunk.count < CLASSIFY_CHUNK_SIZE) && input.next())
+            chunk.addLine(input.getData(), input.getLineStart(), input.getLineEnd());
+        return (chunk.count > 0) ? chunk : null;
+    }
+
+    /* Read chunks and hand them to the pool to classify and the writer to
+       write. If writing fails, reading stops; if reading fails, the chunks
+       already read are still written, and any writing error is attached to
+       the reading one */
+    private void classifyPipelined(ByteLineReader input, VerdictWriter output,
+                                   ByteDictionary[] values, ForkJoinPool pool) throws IOException
+    {
+        // An empty chunk marks the end
+        ChunkWriter writer = new ChunkWriter(pool.getParallelism() * 2, new ClassifyChunk(values),
+                                             input, output);
+        writer.start();
+        try {
+            ClassifyChunk chunk = null;
+            while ((!writer.failed()) && ((chunk = readChunk(input, values)) != null)) {
+                pool.execute(chunk);
+                writer.put(chunk);
+            }
+        }
+        catch (Throwable e) {
+            // The writer must still be waited for, whatever went wrong
+            try {
+                writer.finish();
+            }
+            catch (Throwable writeError) {
+                e.addSuppressed(writeError);
+            }
+            throw e;
+        }
+        writer.finish();
+    }
+
+    /* Writes classified chunks to the output in the order they were read,
+       on a thread of its own */
+    private static final class ChunkWriter extends Thread
+    {
+        private ArrayBlockingQueue<ClassifyChunk> _chunks;
+        private ClassifyChunk _end; // Queued last
+        private ByteLineReader _input; // For checking field counts
+        private VerdictWriter _output;
+        private volatile Exception _error;
+
+        ChunkWriter(int maxChunks, ClassifyChunk end, ByteLineReader input,
+                    VerdictWriter output)
+        {
+            super("Classified record writer");
+            setDaemon(true);
+            _chunks = new ArrayBlockingQueue<ClassifyChunk>(maxChunks);
+            _end = end;
+            _input = input;
+            _output = output;
+            _error = null;
+        }
+
+        // Queue a chunk to write, waiting while the queue is full
+        void put(ClassifyChunk chunk) throws IOException
+        {
+            try {
+                _chunks.put(chunk);
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting to write records");
+            }
+        }
+
+        // Returns true if writing failed, so reading can stop
+        boolean failed()
+        {
+            return _error != null;
+        }
+
+        /* Wait for the chunks queued to be written, and throw any error
+           writing them */
+        void finish() throws IOException
+        {
+            try {
+                _chunks.put(_end);
+                join();
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting to write records");
+            }
+            if (_error instanceof IOException)
+                throw (IOException)_error;
+            else if (_error != null)
+                throw (RuntimeException)_error;
+        }
+
+        /* Write chunks until the end one. After an error, chunks are still
+           taken, so reading is never left waiting for room, but only waited
+           for, so no thread is left working on them */
+        public void run()
+        {
+            while (true) {
+                ClassifyChunk chunk = null;
+                try {
+                    chunk = _chunks.take();
+                }
+                catch (InterruptedException e) {
+                    _error = new InterruptedIOException("Interrupted writing records");
+                    continue;
+                }
+                if (chunk == _end)
+                    return;
+                else if (_error != null)
+                    chunk.quietlyJoin();
+                else
+                    try {
+                        writeChunk(chunk, _input, _output);
+                    }
+                    catch (IOException e) {
+                        _error = e;
+                    }
+                    catch (RuntimeException e) {
+                        _error = e;
+                    }
+            }
+        }
+    }
+
+    /* Classifies the records of one file into another one at a time as text,
+       for files in encodings that can't be handled as bytes. Only the fields
+       the rules use are taken out of each line; the rest of the line is
+       copied to the output as is */
+    private void classifyText(String inputFile, String outputFile) throws IOException
+    {
+        boolean[] fields = getUsedFields();
+        RecordReader input = new RecordReader(inputFile);
+        try {
+            RecordWriter output = new RecordWriter(outputFile);
+            try {
+                // Without a block matcher, match one record at a time
+                int blockSize = (_blockMatcher != null) ? CLASSIFY_CHUNK_SIZE : 1;
+                ArrayList<ProjectedRecord> block = new ArrayList<ProjectedRecord>(blockSize);
+                boolean[] results = new boolean[blockSize];
+                StringBuilder buffer = new StringBuilder();
+                String line = null;
+                boolean more = true;
+                while (more) {
+                    while ((block.size() < blockSize) &&
+                           ((line = input.nextLine()) != null)) {
+                        ProjectedRecord record = new ProjectedRecord(line, fields);
+                        input.checkFieldCount(record.size());
+                        block.add(record);
+                    }
+                    more = (line != null);
+                    matchBlock(block, results);
+                    int index;
+                    for (index = 0; index < block.size(); index++) {
+                        buffer.setLength(0);
+                        // Rules state when a record fails, so flip the status
+                        RecordWriter.format(block.get(index), String.valueOf(!results[index]), buffer);
+                        output.writeFormatted(buffer, block.get(index).size() + 1);
+                    }
+                    block.clear();
+                }
+            }
+            finally {
+                output.close();
+            }
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /* A chunk of lines of a file to classify, copied from the reader. The
+       output holds the classified records formatted for writing */
+    private final class ClassifyChunk extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        byte[] data;
+        int dataLength;
+        int[] lineStarts;
+        int[] lineEnds;
+        int count;
+        transient ByteDictionary[] values; // The rules filter on, per field
+        transient ByteBuffer output;
+        int fieldCount; // Of the first record
+        int badFieldCount; // Of the first that differs, -1 if none do
+
+        ClassifyChunk(ByteDictionary[] newValues)
+        {
+            data = new byte[1 << 16];
+            dataLength = 0;
+            lineStarts = new int[CLASSIFY_CHUNK_SIZE];
+            lineEnds = new int[CLASSIFY_CHUNK_SIZE];
+            count = 0;
+            values = newValues;
+            output = null;
+            fieldCount = -1;
+            badFieldCount = -1;
+        }
+
+        // Copy a line into the chunk
+        void addLine(ByteBuffer line, int start, int end)
+        {
+            int length = end - start;
+            if (data.length - dataLength < length)
+                data = Arrays.copyOf(data, Math.max(dataLength + length, data.length * 2));
+            ByteBuffer source = line.duplicate();
+            source.position(start);
+            source.get(data, dataLength, length);
+            lineStarts[count] = dataLength;
+            dataLength += length;
+            lineEnds[count] = dataLength;
+            count++;
+        }
+
+        protected void compute()
+        {
+            ByteBuffer lines = ByteBuffer.wrap(data, 0, dataLength);
+            ByteTokenizer tokens = new ByteTokenizer();
+            // Parse the whole chunk first, so it can be matched as one block
+            ArrayList<ProjectedRecord> block = new ArrayList<ProjectedRecord>(count);
+            int[] textEnds = new int[count];
+            int outputLength = 0;
+            int index;
+            for (index = 0; index < count; index++) {
+                int fields = tokens.tokenize(lines, lineStarts[index], lineEnds[index]);
+                if (fieldCount < 0)
+                    fieldCount = fields;
+                else if (fields != fieldCount) {
+                    badFieldCount = fields;
+                    break; // Can't be written anyway
+                }
+                // Empty fields at the end are dropped, as when parsing
+                textEnds[index] = (fields > 0) ? tokens.getStart(fields - 1) + tokens.getLength(fields - 1) : lineStarts[index];
+                block.add(project(tokens, lines, fields, values));
+                outputLength += VerdictWriter.maxFormattedLength(textEnds[index] - lineStarts[index]);
+            }
+            boolean[] results = new boolean[block.size()];
+            matchBlock(block, results);
+            output = ByteBuffer.allocate(outputLength);
+            for (index = 0; index < block.size(); index++)
+                // Rules state when a record fails, so flip the status
+                VerdictWriter.format(lines, lineStarts[index], textEnds[index],
+                                     block.get(index).size(), !results[index], output);
+            output.flip();
+            data = null; // No longer needed
+        }
+    }
+
+    /* Make a record from a line split into fields, holding only values some
+       rule filters on. Any other value can't pass a rule, so is left NULL
+       like the fields no rule uses */
+    private static ProjectedRecord project(ByteTokenizer tokens, ByteBuffer line,
+                                           int fieldCount, ByteDictionary[] values)
+    {
+        String[] fields = new String[Math.min(fieldCount, values.length)];
+        int field;
+        for (field = 0; field < fields.length; field++)
+            if (values[field] != null) {
+                int value = values[field].lookup(line, tokens.getStart(field), tokens.getLength(field));
+                if (value >= 0)
+                    fields[field] = values[field].getValue(value);
+            }
+        return new ProjectedRecord(fieldCount, fields);
+    }
+
+    /* Classify a block of records, adding the validity to each as a new last
+       field */
+    private void classifyBlock(List<ArrayList<String> > block, boolean[] results)
+    {
+        matchBlock(block, results);
+        int index;
+        for (index = 0; index < block.size(); index++)
+            // Rules state when a record fails, so flip the status
+            block.get(index).add(String.valueOf(!results[index]));
+    }
+
+    /* Match a block of records against the rules, with the block matcher if
+       there is one and one at a time otherwise */
+    private void matchBlock(List<? extends List<String> > block, boolean[] results)
+    {
+        if (_blockMatcher != null)
+            _blockMatcher.passes(block, results);
+        else {
+            int index;
+            for (index = 0; index < block.size(); index++)
+                results[index] = _matcher.passes(block.get(index));
+        }
+    }
+
+    /* Returns the values the rules filter on for each field, numbered by
+       their bytes, so lines can be matched without making strings of their
+       fields. NULL for fields no rule uses. A mapped model gives them
+       without the rules being built */
+    private synchronized ByteDictionary[] getRuleValues() throws IOException
+    {
+        if ((_ruleValues == null) && (_rules == null) && (_model != null)) {
+            boolean[] fields = getUsedFields();
+            ByteDictionary[] values = new ByteDictionary[fields.length];
+            int field;
+            for (field = 0; field < fields.length; field++)
+                if (fields[field]) {
+                    values[field] = new ByteDictionary(Charset.defaultCharset(),
+                                                       Integer.MAX_VALUE);
+                    Iterator<String> index = _model.getFieldValues(field).iterator();
+                    while (index.hasNext())
+                        values[field].add(index.next());
+                }
+            _ruleValues = values;
+        }
+        else if (_ruleValues == null) {
+            ByteDictionary[] values = new ByteDictionary[getUsedFields().length];
+            Iterator<FieldFilterGroup> index = getRules().iterator();
+            while (index.hasNext()) {
+                FieldFilterGroup group = index.next();
+                int filter;
+                for (filter = 0; filter < group.filterCount(); filter++) {
+                    FieldFilter next = group.getFilter(filter);
+                    if (values[next.getField()] == null)
+                        values[next.getField()] = new ByteDictionary(Charset.defaultCharset(),
+                                                                     Integer.MAX_VALUE);
+                    values[next.getField()].add(next.getValue());
+                }
+            }
+            _ruleValues = values;
+        }
+        return _ruleValues;
+    }
+
+    /* Returns which fields the rules look at, so only those need to be taken
+       out of records read from a file */
+    private synchronized boolean[] getUsedFields() throws IOException
+    {
+        if ((_usedFields == null) && (_rules == null) && (_model != null))
+            _usedFields = _model.getUsedFields();
+        else if (_usedFields == null) {
+            FieldFilterCollection rules = getRules();
+            int maxField = -1;
+            Iterator<FieldFilterGroup> index = rules.iterator();
+            while (index.hasNext()) {
+                FieldFilterGroup group = index.next();
+                int filter;
+                for (filter = 0; filter < group.filterCount(); filter++)
+                    maxField = Math.max(maxField, group.getFilter(filter).getField());
+            }
+            boolean[] fields = new boolean[maxField + 1];
+            index = rules.iterator();
+            while (index.hasNext()) {
+                FieldFilterGroup group = index.next();
+                int filter;
+                for (filter = 0; filter < group.filterCount(); filter++)
+                    fields[group.getFilter(filter).getField()] = true;
+            }
+            _usedFields = fields;
+        }
+        return _usedFields;
+    }
+
+    /* Wait for a chunk to be classified, and write it. Field counts are
+       checked here, in file order, so bad records are reported the same
+       however the chunks were classified */
+    private static void writeChunk(ClassifyChunk chunk, ByteLineReader input,
+                                   VerdictWriter output) throws IOException
+    {
+        chunk.join();
+        input.checkFieldCount(chunk.fieldCount);
+        if (chunk.badFieldCount >= 0)
+            input.checkFieldCount(chunk.badFieldCount); // Throws
+        output.writeFormatted(chunk.output, chunk.fieldCount);
+    }
+
     // Converts the classification rules to a multi-line string
     public String toString()
     {
-        return _rules.toString();
+        try {
+            return getRules().toString();
+        }
+        catch (IOException e) {
+            return "Rules unreadable: " + e;
+        }
     }
     
     /* Helper test method to take an existing record and append the given
@@ -313,6 +982,53 @@ class RecordClassifier
         resultData2.add(makeTestRecord("test3", "test2", "test1"));
 
         System.out.println("Complex classification test, both single and multiple record filters needed");
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            RecordClassifier sequential = new RecordClassifier(trainingData3, null, null);
+            RecordClassifier parallel = new RecordClassifier(trainingData3, null, pool);
+            if (sequential.toString().equals(parallel.toString()))
+                System.out.println("Parallel training produced expected results");
+            else
+                System.out.println("Parallel training failed, got " + parallel + " expected " + sequential);
+        }
+        catch (Exception e) {
+            System.out.println("Parallel training failed. Caught exception " + e);
+        }
+        pool.shutdown();
+
+        /* Training by scan must learn the rules the original implementation
+           did. These records have several groups of two and three fields
+           with equal counts, and the original took the three field rule
+           below because of the order its hash map held them in */
+        System.out.println("Training by scan, expect rules of original implementation");
+        String[] scanRecords = { "v2,v2,v1,v0,true", "v1,v2,v1,v0,true",
+                                 "v1,v0,v0,v1,true", "v0,v2,v1,v1,false",
+                                 "v1,v1,v1,v1,true", "v1,v0,v1,v1,true",
+                                 "v1,v2,v0,v2,true", "v1,v0,v2,v0,true",
+                                 "v2,v1,v2,v1,true", "v2,v1,v0,v1,true",
+                                 "v1,v2,v1,v2,true", "v0,v0,v2,v0,true",
+                                 "v0,v1,v0,v0,true", "v2,v2,v2,v1,true",
+                                 "v2,v2,v0,v0,false" };
+        RecordGroup scanData = new RecordGroup(new ArrayList<String>(Arrays.asList(scanRecords[0].split(","))));
+        int scanIndex;
+        for (scanIndex = 1; scanIndex < scanRecords.length; scanIndex++)
+            scanData.add(new ArrayList<String>(Arrays.asList(scanRecords[scanIndex].split(","))));
+        String separator = System.getProperty("line.separator");
+        String scanExpected = "[0->v0, 1->v2]" + separator +
+            "[0->v2, 2->v0, 3->v0]" + separator;
+        try {
+            RecordClassifier scanTest = new RecordClassifier(scanData, null, null,
+                                                             new StorageBudget(),
+                                                             TrainingRecords.CandidateSelection.SCAN);
+            if (scanTest.toString().equals(scanExpected))
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed, got " + scanTest + " expected " + scanExpected);
+        }
+        catch (Exception e) {
+            System.out.println("Test failed. Caught exception " + e);
+        }
+
         try {
             RecordClassifier test3 = new RecordClassifier(trainingData3, null);
             System.out.println("Classifier: " + test3);
@@ -331,6 +1047,160 @@ class RecordClassifier
             System.out.println("Complex classification failed. Caught exception " + e);
         }
 
+        /* Classify a file big enough for several chunks both one record at a
+           time and in parallel. The output files must be identical */
+        System.out.println("Classify file in parallel, expect same output as one at a time");
+        pool = new ForkJoinPool(4);
+        try {
+            RecordClassifier test5 = new RecordClassifier(trainingData3, null);
+            PrintWriter inputFile = new PrintWriter(new FileOutputStream("ClassifierInput.testtesttest"));
+            int count;
+            for (count = 0; count < 10000; count++)
+                inputFile.println("Tracking field,test" + (count % 5) + ",test" + (count % 7) + ",test" + (count % 3));
+            inputFile.close();
+            test5.classifyRecords("ClassifierInput.testtesttest", "ClassifierOutput1.testtesttest");
+            test5.classifyRecords("ClassifierInput.testtesttest", "ClassifierOutput2.testtesttest",
+                                  pool);
+            RecordGroup output1 = RecordParser.readRecords("ClassifierOutput1.testtesttest");
+            RecordGroup output2 = RecordParser.readRecords("ClassifierOutput2.testtesttest");
+            if (output1.getRecords().equals(output2.getRecords()) && (output1.size() == 10000))
+                System.out.println("Parallel classification produced expected results");
+            else
+                System.out.println("Parallel classification failed, output differs");
+
+            // Matching in blocks must give the same output, either way
+            System.out.println("Classify file in blocks, expect same output as one at a time");
+            test5.setBlockEvaluation(true);
+            test5.classifyRecords("ClassifierInput.testtesttest", "ClassifierOutput2.testtesttest");
+            RecordGroup output3 = RecordParser.readRecords("ClassifierOutput2.testtesttest");
+            test5.classifyRecords("ClassifierInput.testtesttest", "ClassifierOutput2.testtesttest",
+                                  pool);
+            RecordGroup output4 = RecordParser.readRecords("ClassifierOutput2.testtesttest");
+            if (output1.getRecords().equals(output3.getRecords()) &&
+                output1.getRecords().equals(output4.getRecords()))
+                System.out.println("Block classification produced expected results");
+            else
+                System.out.println("Block classification failed, output differs");
+
+            // Caching results for repeated records must not change the output
+            System.out.println("Classify file with verdict cache, expect same output and cache hits");
+            test5.setBlockEvaluation(false);
+            test5.setVerdictCache(1000);
+            test5.classifyRecords("ClassifierInput.testtesttest", "ClassifierOutput2.testtesttest",
+                                  pool);
+            RecordGroup output5 = RecordParser.readRecords("ClassifierOutput2.testtesttest");
+            if (output1.getRecords().equals(output5.getRecords()) &&
+                (test5.getVerdictCache().getHits() > 0))
+                System.out.println("Cached classification produced expected results");
+            else
+                System.out.println("Cached classification failed, " + test5.getVerdictCache());
+            test5.setVerdictCache(0);
+
+            // A record with a missing field in a later chunk must be caught
+            System.out.println("Classify file with inconsistent record in parallel, expect exception");
+            inputFile = new PrintWriter(new FileOutputStream("ClassifierInput.testtesttest"));
+            for (count = 0; count < 10000; count++)
+                if (count == 9000)
+                    inputFile.println("Tracking field,test1");
+                else
+                    inputFile.println("Tracking field,test1,test2,test3");
+            inputFile.close();
+            try {
+                test5.classifyRecords("ClassifierInput.testtesttest", "ClassifierOutput2.testtesttest",
+                                      pool);
+                System.out.println("Test failed, file classified");
+            }
+            catch (IOException e) {
+                System.out.println("Test passed, caught exception: " + e);
+            }
+
+            System.out.println("Classify same file as a whole, expect exception and no results file");
+            try {
+                classifyWhole(test5, "ClassifierInput.testtesttest", "ClassifierOutput3.testtesttest",
+                              pool);
+                System.out.println("Test failed, file classified");
+            }
+            catch (IOException e) {
+                if (new File("ClassifierOutput3.testtesttest").exists() ||
+                    new File(".ClassifierOutput3.testtesttest").exists())
+                    System.out.println("Test failed, results file left");
+                else
+                    System.out.println("Test passed, caught exception: " + e);
+            }
+        }
+        catch (Exception e) {
+            System.out.println("Parallel classification failed. Caught exception " + e);
+        }
+        pool.shutdown();
+        new File("ClassifierInput.testtesttest").delete();
+        new File("ClassifierOutput1.testtesttest").delete();
+        new File("ClassifierOutput2.testtesttest").delete();
+        new File("ClassifierOutput3.testtesttest").delete();
+
+        /* Save the complex classifier as a model and load it back. It must
+           classify exactly as the original */
+        System.out.println("Classifier saved and loaded from model, expect same results");
+        try {
+            RecordClassifier test6 = new RecordClassifier(trainingData3, null);
+            test6.saveModel("ClassifierModel.testtesttest");
+            RecordClassifier loaded = loadModel("ClassifierModel.testtesttest");
+            RecordGroup resultData3 = new RecordGroup(makeTestRecord("test2",
+                                                                     "test3",
+                                                                     "test5"));
+            resultData3.add(makeTestRecord("test1", "test4", "test6"));
+            resultData3.add(makeTestRecord("test3", "test2", "test1"));
+            loaded.classifyRecords(resultData3);
+            if (loaded.toString().equals(test6.toString()) &&
+                testValidity(resultData3, 0, false) &&
+                testValidity(resultData3, 1, true) &&
+                testValidity(resultData3, 2, false))
+                System.out.println("Loaded model produced expected results");
+            else
+                System.out.println("Loaded model failed, invalid results " + resultData3);
+
+            /* Classifying a file with a freshly loaded model must not build
+               the rules, which is what loading a mapped model avoids */
+            System.out.println("Freshly loaded model classifies file without building rules, expect same results");
+            RecordClassifier fresh = loadModel("ClassifierModel.testtesttest");
+            PrintWriter modelInput = new PrintWriter(new FileOutputStream("ClassifierInput.testtesttest"));
+            modelInput.println("test2,test3,test5");
+            modelInput.println("test1,test4,test6");
+            modelInput.println("test3,test2,test1");
+            modelInput.close();
+            fresh.classifyRecords("ClassifierInput.testtesttest", "ClassifierOutput1.testtesttest");
+            test6.classifyRecords("ClassifierInput.testtesttest", "ClassifierOutput2.testtesttest");
+            RecordGroup freshOutput = RecordParser.readRecords("ClassifierOutput1.testtesttest");
+            RecordGroup trainedOutput = RecordParser.readRecords("ClassifierOutput2.testtesttest");
+            if ((fresh._rules == null) &&
+                freshOutput.toString().equals(trainedOutput.toString()))
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed");
+
+            // Reorder the loaded rules after every record, which must not change results
+            System.out.println("Loaded model with adaptive rule order, expect same results");
+            loaded.setAdaptiveRuleOrder(1);
+            RecordGroup resultData4 = new RecordGroup(makeTestRecord("test2",
+                                                                     "test3",
+                                                                     "test5"));
+            resultData4.add(makeTestRecord("test1", "test4", "test6"));
+            resultData4.add(makeTestRecord("test3", "test2", "test1"));
+            loaded.classifyRecords(resultData4);
+            if (testValidity(resultData4, 0, false) &&
+                testValidity(resultData4, 1, true) &&
+                testValidity(resultData4, 2, false))
+                System.out.println("Adaptive rule order produced expected results");
+            else
+                System.out.println("Adaptive rule order failed, invalid results " + resultData4);
+        }
+        catch (Exception e) {
+            System.out.println("Loaded model failed. Caught exception " + e);
+        }
+        new File("ClassifierModel.testtesttest").delete();
+        new File("ClassifierInput.testtesttest").delete();
+        new File("ClassifierOutput1.testtesttest").delete();
+        new File("ClassifierOutput2.testtesttest").delete();
+
         /* Test with two records with the exact same field values but different
            validity. Mix in other records that can be classified. Expect the
            test to fail */
@@ -353,36 +1223,165 @@ class RecordClassifier
         }
     }
 
-    // Driver for the classifier
+    /* Create the storage budget for training from system properties.
+       RecordClassifier.indexBudgetMB limits the heap used by the training
+       indexes, and RecordClassifier.scratchDir sets where they go past that.
+       With no budget set, the indexes stay on the heap */
+    private static StorageBudget budgetFromProperties()
+    {
+        String budget = System.getProperty("RecordClassifier.indexBudgetMB");
+        String directory = System.getProperty("RecordClassifier.scratchDir");
+        if (budget == null)
+            return new StorageBudget();
+        return new StorageBudget(Long.parseLong(budget) * 1024L * 1024L,
+                                 (directory == null) ? null : new File(directory));
+    }
+
+    /* Find the filter group selection method for training from system
+       properties. RecordClassifier.candidateSelection set to SCAN learns the
+       rules the original implementation did. The bucket queue is the
+       default */
+    private static TrainingRecords.CandidateSelection selectionFromProperties()
+    {
+        String selection = System.getProperty("RecordClassifier.candidateSelection");
+        if (selection == null)
+            return TrainingRecords.CandidateSelection.BUCKET_QUEUE;
+        return TrainingRecords.CandidateSelection.valueOf(selection);
+    }
+
+    /* Set how rules are matched from system properties. RecordClassifier.reorderInterval
+       is the number of records between reorders, with none by default.
+       RecordClassifier.blockEvaluation set to true matches records in blocks.
+       RecordClassifier.verdictCacheSize keeps results for that many records */
+    private static RecordClassifier ruleOrderFromProperties(RecordClassifier classifier) throws IOException
+    {
+        String interval = System.getProperty("RecordClassifier.reorderInterval");
+        if (interval != null)
+            classifier.setAdaptiveRuleOrder(Long.parseLong(interval));
+        if (Boolean.getBoolean("RecordClassifier.blockEvaluation"))
+            classifier.setBlockEvaluation(true);
+        String cacheSize = System.getProperty("RecordClassifier.verdictCacheSize");
+        if (cacheSize != null)
+            classifier.setVerdictCache(Integer.parseInt(cacheSize));
+        return classifier;
+    }
+
+    /* Extract field numbers from a command line argument. They are comma
+       seperated without spaces */
+    private static int[] parseFields(String fields)
+    {
+        String[] fieldStrs = fields.split(",");
+        int[] result = new int[fieldStrs.length];
+        int index;
+        for (index = 0; index < fieldStrs.length; index++)
+            result[index] = Integer.parseInt(fieldStrs[index]);
+        return result;
+    }
+
+    /* Classify the records of one file into another, writing nothing unless
+       every record is classified. Results go to a hidden file beside the
+       results file, renamed into place when done and deleted on failure */
+    private static void classifyWhole(RecordClassifier classifier, String inputFile,
+                                      String outputFile, ForkJoinPool pool) throws IOException
+    {
+        Path result = Paths.get(outputFile);
+        Path partial = result.resolveSibling("." + result.getFileName());
+        try {
+            classifier.classifyRecords(inputFile, partial.toString(), pool);
+            Files.move(partial, result, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    // Train a classifier from a file and print its rules
+    private static RecordClassifier train(String trainingFile, int[] ignoreFields) throws IOException
+    {
+        RecordGroup trainingRecords = RecordParser.readRecords(trainingFile,
+                                                               ForkJoinPool.commonPool());
+        RecordClassifier classifier = new RecordClassifier(trainingRecords,
+                                                           ignoreFields,
+                                                           ForkJoinPool.commonPool(),
+                                                           budgetFromProperties(),
+                                                           selectionFromProperties());
+        System.out.println("Rules for classifying invalid records:");
+        System.out.println(classifier);
+        return classifier;
+    }
+
+    /* Driver for the classifier. Training and classifying can be done
+       together, or separately with the rules saved in a model file between */
     public static void main(String[] args)
     {
         // If the only argument is 'selftest', run the self test and quit
         if ((args.length == 1) && args[0].equals("selftest"))
             selfTest();
+        else if ((args.length >= 3) && (args.length <= 4) && args[0].equals("train")) {
+            try {
+                RecordClassifier classifier = train(args[1], (args.length > 3) ? parseFields(args[3]) : null);
+                classifier.saveModel(args[2]);
+            }
+            catch (Exception e) {
+                System.out.println("Training failed with exception: " + e);
+                e.printStackTrace();
+            }
+        }
+        else if ((args.length == 3) && args[0].equals("serve")) {
+            try {
+                ClassifierServer server = new ClassifierServer(ruleOrderFromProperties(loadModel(args[1])),
+                                                               Integer.parseInt(args[2]));
+                System.out.println("Classifying records on local port " + server.getPort());
+                server.run();
+            }
+            catch (Exception e) {
+                System.out.println("Server failed with exception: " + e);
+                e.printStackTrace();
+            }
+        }
+        else if ((args.length >= 4) && (args.length <= 5) && args[0].equals("watch")) {
+            try {
+                DirectoryClassifier watcher = new DirectoryClassifier(ruleOrderFromProperties(loadModel(args[1])),
+                                                                      args[2], args[3],
+                                                                      (args.length > 4) ? Integer.parseInt(args[4]) : 2,
+                                                                      ForkJoinPool.commonPool());
+                System.out.println("Classifying files arriving in " + args[2]);
+                watcher.run();
+            }
+            catch (Exception e) {
+                System.out.println("Watching failed with exception: " + e);
+                e.printStackTrace();
+            }
+        }
+        else if ((args.length == 4) && args[0].equals("classify")) {
+            try {
+                RecordClassifier classifier = ruleOrderFromProperties(loadModel(args[1]));
+                // Leave no results file if any record can't be classified
+                classifyWhole(classifier, args[2], args[3], ForkJoinPool.commonPool());
+                if (classifier.getVerdictCache() != null)
+                    System.out.println(classifier.getVerdictCache());
+            }
+            catch (Exception e) {
+                System.out.println("Classification failed with exception: " + e);
+                e.printStackTrace();
+            }
+        }
         else if ((args.length < 3) || (args.length > 4)) {
             System.out.println("Use: [training records file] [records to classify file] [results file] [optional fields to ignore for classification, comma seperated]");
+            System.out.println(" or: train [training records file] [model file] [optional fields to ignore for classification, comma seperated]");
+            System.out.println(" or: classify [model file] [records to classify file] [results file]");
+            System.out.println(" or: serve [model file] [local port]");
+            System.out.println(" or: watch [model file] [input directory] [output directory] [optional files to classify at once, default 2]");
             System.exit(1);
         }
         else {
             try {
-                /* Extract the classification fields from the last argument.
-                   They are comma seperated without spaces */
-                int[] ignoreFields = null;
-                if (args.length > 3) {
-                    String[] ignoreFieldsStr = args[3].split(",");
-                    ignoreFields = new int[ignoreFieldsStr.length];
-                    int index;
-                    for (index = 0; index < ignoreFieldsStr.length; index++)
-                        ignoreFields[index] = Integer.parseInt(ignoreFieldsStr[index]);
-                }
-                RecordGroup trainingRecords = RecordParser.readRecords(args[0]);
-                RecordClassifier classifier = new RecordClassifier(trainingRecords,
-                                                                   ignoreFields);
-                System.out.println("Rules for classifying invalid records:");
-                System.out.println(classifier);
-                RecordGroup procRecords = RecordParser.readRecords(args[1]);
-                classifier.classifyRecords(procRecords);
-                RecordParser.outputRecords(args[2], procRecords);
+                RecordClassifier classifier = ruleOrderFromProperties(train(args[0], (args.length > 3) ? parseFields(args[3]) : null));
+                /* Stream the records, so their number is limited only by disk,
+                   but leave no results file if any record can't be classified */
+                classifyWhole(classifier, args[1], args[2], ForkJoinPool.commonPool());
+                if (classifier.getVerdictCache() != null)
+                    System.out.println(classifier.getVerdictCache());
             }
             catch (Exception e) {
                 System.out.println("Processing failed with exception: " + e);
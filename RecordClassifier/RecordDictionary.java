@@ -0,0 +1,212 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class assigns a compact integer code to every distinct value of every
+   record field. Each field has its own dictionary of values, but the codes
+   are numbered across all fields, so a single code identifies both the field
+   and the value, exactly what a FieldFilter holds. Codes are dense and
+   assigned in the order values are first seen, starting from zero. Comparing
+   two codes is far cheaper than comparing two strings, and storing them
+   instead of the strings themselves takes much less memory when the same
+   values appear in many records, the normal case for training data */
+import java.util.*;
+
+public class RecordDictionary
+{
+    // Codes for the values of each field, indexed by field
+    private ArrayList<HashMap<String, Integer> > _codesByField;
+
+    // Field and value for each code, indexed by code
+    private int[] _fields;
+    private ArrayList<String> _values;
+
+    /* Filters for each code. Created only when asked for, since most codes are
+       never needed as objects */
+    private ArrayList<FieldFilter> _filters;
+
+    // Create the dictionary empty
+    public RecordDictionary()
+    {
+        _codesByField = new ArrayList<HashMap<String, Integer> >();
+        _fields = new int[64];
+        _values = new ArrayList<String>();
+        _filters = new ArrayList<FieldFilter>();
+    }
+
+    /* Return the code for a field value, assigning a new one if the value has
+       not been seen before for this field */
+    public int encode(int field, String value)
+    {
+        if (field < 0)
+            throw new IllegalArgumentException("field to encode " + field + " must be non-negative");
+        if (value == null)
+            throw new IllegalArgumentException("value to encode passed null");
+        while (_codesByField.size() <= field)
+            _codesByField.add(new HashMap<String, Integer>());
+        HashMap<String, Integer> codes = _codesByField.get(field);
+        Integer code = codes.get(value);
+        if (code != null)
+            return code.intValue();
+
+        int newCode = _values.size();
+        if (newCode == _fields.length)
+            _fields = Arrays.copyOf(_fields, _fields.length * 2);
+        _fields[newCode] = field;
+        _values.add(value);
+        _filters.add(null);
+        codes.put(value, Integer.valueOf(newCode));
+        return newCode;
+    }
+
+    /* Return the code for a field value, or -1 if it is not in the dictionary.
+       Unlike encode(), never changes the dictionary */
+    public int lookup(int field, String value)
+    {
+        if ((field < 0) || (field >= _codesByField.size()) || (value == null))
+            return -1;
+        Integer code = _codesByField.get(field).get(value);
+        return (code == null) ? -1 : code.intValue();
+    }
+
+    // Encode every field of a record, returning the codes in field order
+    public int[] encode(List<String> record)
+    {
+        if (record == null)
+            throw new IllegalArgumentException("record to encode passed null");
+        int[] result = new int[record.size()];
+        int index;
+        for (index = 0; index < result.length; index++)
+            result[index] = encode(index, record.get(index));
+        return result;
+    }
+
+    // Number of codes assigned so far. Every code is less than this value
+    public int size()
+    {
+        return _values.size();
+    }
+
+    // Number of distinct values seen for a field
+    public int fieldSize(int field)
+    {
+        if ((field < 0) || (field >= _codesByField.size()))
+            return 0;
+        return _codesByField.get(field).size();
+    }
+
+    // Getters for the field and value a code represents
+    public int getField(int code)
+    {
+        checkCode(code);
+        return _fields[code];
+    }
+    public String getValue(int code)
+    {
+        checkCode(code);
+        return _values.get(code);
+    }
+
+    /* Returns the filter selecting records with the value a code represents.
+       The same object is returned for every call with a given code */
+    public FieldFilter getFilter(int code)
+    {
+        checkCode(code);
+        FieldFilter filter = _filters.get(code);
+        if (filter == null) {
+            filter = new FieldFilter(_fields[code], _values.get(code));
+            _filters.set(code, filter);
+        }
+        return filter;
+    }
+
+    private void checkCode(int code)
+    {
+        if ((code < 0) || (code >= _values.size()))
+            throw new IllegalArgumentException("Dictionary code " + code + " invalid, dictionary has " + _values.size() + " codes");
+    }
+
+    public String toString()
+    {
+        return "RecordDictionary: " + _values.size() + " values over " + _codesByField.size() + " fields";
+    }
+
+    // Code to test the class
+    public static void main(String[] args)
+    {
+        RecordDictionary test = new RecordDictionary();
+        ArrayList<String> record1 = new ArrayList<String>();
+        record1.add("test1");
+        record1.add("test1");
+        record1.add("test2");
+        ArrayList<String> record2 = new ArrayList<String>();
+        record2.add("test1");
+        record2.add("test3");
+        record2.add("test2");
+
+        int[] codes1 = test.encode(record1);
+        int[] codes2 = test.encode(record2);
+        System.out.println("Encoded " + Arrays.toString(codes1) + " and " + Arrays.toString(codes2));
+
+        System.out.println("Same value in different fields, expect different codes");
+        if (codes1[0] != codes1[1])
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        System.out.println("Same value in same field, expect same code");
+        if ((codes1[0] == codes2[0]) && (codes1[2] == codes2[2]))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        System.out.println("Expect four codes assigned");
+        if (test.size() == 4)
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, got " + test.size());
+
+        System.out.println("Decode code, expect original field and value");
+        if ((test.getField(codes2[1]) == 1) && test.getValue(codes2[1]).equals("test3") &&
+            test.getFilter(codes2[1]).equals(new FieldFilter(1, "test3")))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        System.out.println("Look up unknown value and field, expect not found");
+        if ((test.lookup(0, "test3") == -1) && (test.lookup(5, "test1") == -1) &&
+            (test.size() == 4))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        System.out.println("Decode invalid code, expect exception");
+        try {
+            String value = test.getValue(4);
+            System.out.println("Test failed, got " + value);
+        }
+        catch (Exception e) {
+            System.out.println("Test succeeded, caught " + e);
+        }
+    }
+}
@@ -26,6 +26,7 @@
    are stored as ArrayLists, not arrays, because the classification can get
    added as they are processed */
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 
@@ -33,7 +34,8 @@ public class RecordParser
 {
     /* Convert a set of records into a CSV file. Any existing file with the
        same name is overwritten. If the records have inconsistent field counts,
-       this method throws an exception */
+       this method throws an exception. A name ending in .gz writes the file
+       gzip compressed */
     public static void outputRecords(String fileName,
                                      RecordGroup records) throws IOException, FileNotFoundException
     {
@@ -53,50 +55,54 @@ public class RecordParser
         }
 
         // Open the file (yes, even in the case with no records!)
-        PrintWriter outputFile = new PrintWriter(new FileOutputStream(fileName));
-        Iterator<ArrayList<String> > recIndex = records.getRecords().iterator();
-        while (recIndex.hasNext()) {
-            boolean outputSeperator = false;
-            Iterator<String> fieldIndex = recIndex.next().iterator();
-            while (fieldIndex.hasNext()) {
-                if (outputSeperator)
-                    outputFile.print(",");
-                else
-                    outputSeperator = true;
-                outputFile.print(fieldIndex.next());
-            }
-            outputFile.println();
+        RecordWriter outputFile = new RecordWriter(fileName);
+        try {
+            Iterator<ArrayList<String> > recIndex = records.getRecords().iterator();
+            while (recIndex.hasNext())
+                outputFile.write(recIndex.next());
+        }
+        finally {
+            outputFile.close();
         }
-        outputFile.close();
     }
 
     /* Read record data from a CSV file. If the file contains no records, or
        the number of fields per record is not consistent, this method throws
-       an exception */
+       an exception. Files saved by ColumnarRecordFile are read too, and gzip
+       compressed files of either kind */
     public static RecordGroup readRecords(String fileName) throws IOException, FileNotFoundException
     {
+        if (ColumnarRecordFile.isColumnar(fileName))
+            return ColumnarRecordFile.read(fileName);
+
+        /* The reader checks the field counts, and throws at the end of an
+           empty file */
         RecordGroup result = null;
-        BufferedReader input = new BufferedReader(new FileReader(fileName));
-        String line = null;
-        while ((line = input.readLine()) != null) {
-            if (line.trim().length() > 0) { // Ignore blank lines
-                ArrayList<String> newRecord = new ArrayList<String>(Arrays.asList(line.split(",")));
-                if (result != null) {
-                    if (newRecord.size() != result.getRecords().get(0).size())
-                        throw new IOException("Data for file " + fileName + " inconsistent, expected " + result.getRecords().get(0).size() + " fields, got " + newRecord.size());
+        RecordReader input = new RecordReader(fileName);
+        try {
+            ArrayList<String> newRecord = null;
+            while ((newRecord = input.next()) != null) {
+                if (result != null)
                     result.add(newRecord);
-                }
                 else // First entry
                     result = new RecordGroup(newRecord);
-            } // Data on line
-        } // Data to read
-
-        // A null pointer at this point signals an empty file
-        if (result == null)
-            throw new IOException("record File " + fileName + " invalid; contains no records");
+            } // Data to read
+        }
+        finally {
+            input.close();
+        }
         return result;
     }
 
+    /* Read record data from a CSV file as above, parsing parts of it at once
+       with the threads of a pool. Much faster for big files */
+    public static RecordGroup readRecords(String fileName, ForkJoinPool pool) throws IOException, FileNotFoundException
+    {
+        if (ColumnarRecordFile.isColumnar(fileName))
+            return ColumnarRecordFile.read(fileName);
+        return MappedRecordReader.readRecords(fileName, pool);
+    }
+
     /* Test code to write bills and then read them back in. Verify the output
        manually */
     public static void main(String[] args)
@@ -172,6 +178,45 @@ public class RecordParser
             System.out.println("Test succeeded, caught " + e);
         }
 
+        // Stream the valid file, which must give the same records
+        System.out.println("Stream valid file one record at a time, expect same records");
+        try {
+            RecordReader input = new RecordReader("RecordParserTest.txt");
+            Iterator<ArrayList<String> > expected = testRecords.getRecords().iterator();
+            boolean same = true;
+            ArrayList<String> record = null;
+            while (same && ((record = input.next()) != null))
+                same = expected.hasNext() && record.equals(expected.next());
+            input.close();
+            if (same && (!expected.hasNext()))
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed, got " + record);
+        }
+        catch (Exception e) {
+            System.out.println("Test failed, caught " + e);
+        }
+
+        // Stream a file with only blank lines, which has no records
+        System.out.println("Stream empty file, expect exception");
+        try {
+            PrintWriter outputFile = new PrintWriter(new FileOutputStream("BadParserFile3.testtesttest"));
+            outputFile.println("");
+            outputFile.close();
+            RecordReader input = new RecordReader("BadParserFile3.testtesttest");
+            try {
+                input.next();
+                System.out.println("Test failed, end of file returned");
+            }
+            catch (IOException e) {
+                System.out.println("Test succeeded, caught " + e);
+            }
+            input.close();
+        }
+        catch (Exception e) {
+            System.out.println("Test failed, caught " + e + " creating test file");
+        }
+
         // Create a deliberately misformatted file, and attempt to read it
         System.out.println("Badly formatted file test, expect read exception");
         results = null;
@@ -191,5 +236,22 @@ public class RecordParser
         catch (Exception e) {
             System.out.println("Test failed, caught " + e + " creating test file");
         }
+
+        // A compressed file must read the same as the original
+        System.out.println("Write and read compressed file, expect same records");
+        try {
+            outputRecords("RecordParserTest.testtesttest.gz", testRecords);
+            results = readRecords("RecordParserTest.testtesttest.gz");
+            RecordGroup parallel = readRecords("RecordParserTest.testtesttest.gz", ForkJoinPool.commonPool());
+            if (results.getRecords().equals(testRecords.getRecords()) &&
+                parallel.getRecords().equals(testRecords.getRecords()))
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed, got " + results);
+        }
+        catch (Exception e) {
+            System.out.println("Test failed, caught " + e);
+        }
+        new File("RecordParserTest.testtesttest.gz").delete();
     } // Main method
 };
\ No newline at end of file
@@ -0,0 +1,127 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class reads records from a CSV file one at a time, so a file of any
+   size can be processed in constant memory. It parses exactly as
+   RecordParser.readRecords() does, skipping blank lines, and enforces the
+   same rules: every record must have the same number of fields, and a file
+   with no records at all is an error, reported when the end is reached.
+   Gzip compressed files are inflated as they are read.
+
+   Parsing can also be done elsewhere, such as on another thread: read the
+   raw lines with nextLine(), split them with parse(), and pass the field
+   counts back to checkFieldCount() in file order */
+import java.util.*;
+import java.io.*;
+
+public class RecordReader implements Closeable
+{
+    private String _fileName;
+    private BufferedReader _input;
+    private int _fieldCount; // Of the first record, -1 until read
+    private long _recordCount;
+
+    // Open a file to read
+    public RecordReader(String fileName) throws IOException, FileNotFoundException
+    {
+        if (fileName == null)
+            throw new IllegalArgumentException("Filename for input records must be specified");
+        _fileName = fileName;
+        // Same encoding as FileReader
+        _input = new BufferedReader(new InputStreamReader(CompressedFiles.openInput(fileName)));
+        _fieldCount = -1;
+        _recordCount = 0;
+    }
+
+    /* Returns the next record, or NULL at the end of the file. Throws if the
+       record has a different number of fields than the first, or if the file
+       ends without any records */
+    public ArrayList<String> next() throws IOException
+    {
+        String line = nextLine();
+        if (line == null)
+            return null;
+        ArrayList<String> record = parse(line);
+        checkFieldCount(record.size());
+        return record;
+    }
+
+    /* Returns the next line with a record on it without parsing it, or NULL
+       at the end of the file. Throws if the file ends without any records.
+       The field count is NOT checked */
+    public String nextLine() throws IOException
+    {
+        String line = null;
+        while ((line = _input.readLine()) != null) {
+            if (line.trim().length() > 0) { // Ignore blank lines
+                _recordCount++;
+                return line;
+            }
+        } // Data to read
+
+        if (_recordCount == 0)
+            throw noRecordsError(_fileName);
+        return null;
+    }
+
+    // Split a line of the file into a record
+    public static ArrayList<String> parse(String line)
+    {
+        return new ArrayList<String>(Arrays.asList(line.split(",")));
+    }
+
+    /* Check the field count of a record against the first one in the file,
+       throwing if they differ. The first count passed becomes the one all
+       others must match */
+    public void checkFieldCount(int fieldCount) throws IOException
+    {
+        if (_fieldCount < 0)
+            _fieldCount = fieldCount;
+        else if (fieldCount != _fieldCount)
+            throw fieldCountError(_fileName, _fieldCount, fieldCount);
+    }
+
+    /* The errors for files with no records and with inconsistent field
+       counts, shared with other readers so they report them the same way */
+    static IOException noRecordsError(String fileName)
+    {
+        return new IOException("record File " + fileName + " invalid; contains no records");
+    }
+
+    static IOException fieldCountError(String fileName, int expected, int got)
+    {
+        return new IOException("Data for file " + fileName + " inconsistent, expected " + expected + " fields, got " + got);
+    }
+
+    // Records returned so far
+    public long getRecordCount()
+    {
+        return _recordCount;
+    }
+
+    public void close() throws IOException
+    {
+        _input.close();
+    }
+}
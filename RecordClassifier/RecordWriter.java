@@ -0,0 +1,124 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class writes records to a CSV file one at a time, the counterpart of
+   RecordReader. Records are written in the same format as
+   RecordParser.outputRecords(). Every record must have the same number of
+   fields, but since earlier records are already written, a record that
+   breaks this is only detected when it is reached. Files named .gz are
+   written gzip compressed.
+
+   Records can also be formatted elsewhere with format() and written later
+   with writeFormatted() */
+import java.util.*;
+import java.io.*;
+
+public class RecordWriter implements Closeable
+{
+    private PrintWriter _output;
+    private int _fieldCount; // Of the first record, -1 until written
+
+    /* Create the file to write. Any existing file with the same name is
+       overwritten */
+    public RecordWriter(String fileName) throws IOException, FileNotFoundException
+    {
+        if (fileName == null)
+            throw new IllegalArgumentException("Filename for output records must be specified");
+        _output = new PrintWriter(CompressedFiles.openOutput(fileName));
+        _fieldCount = -1;
+    }
+
+    // Write a record. Throws if it has a different field count from the first
+    public void write(List<String> record) throws IOException
+    {
+        if (record == null)
+            throw new IllegalArgumentException("Record to output passed null");
+        checkFieldCount(record.size());
+        boolean outputSeperator = false;
+        Iterator<String> fieldIndex = record.iterator();
+        while (fieldIndex.hasNext()) {
+            if (outputSeperator)
+                _output.print(",");
+            else
+                outputSeperator = true;
+            _output.print(fieldIndex.next());
+        }
+        _output.println();
+    }
+
+    /* Append a record to a buffer as a line of the file, exactly as write()
+       would output it */
+    public static void format(List<String> record, StringBuilder buffer)
+    {
+        boolean outputSeperator = false;
+        Iterator<String> fieldIndex = record.iterator();
+        while (fieldIndex.hasNext()) {
+            if (outputSeperator)
+                buffer.append(',');
+            else
+                outputSeperator = true;
+            buffer.append(fieldIndex.next());
+        }
+        buffer.append(System.getProperty("line.separator"));
+    }
+
+    /* Append a parsed line to a buffer with one more field added at the end,
+       exactly as format() would output the record with the field added */
+    public static void format(ProjectedRecord record, String lastField, StringBuilder buffer)
+    {
+        record.appendTo(buffer);
+        if (record.size() > 0)
+            buffer.append(',');
+        buffer.append(lastField);
+        buffer.append(System.getProperty("line.separator"));
+    }
+
+    /* Write records already formatted with format(), all with the given
+       field count. Throws if it differs from the first record written */
+    public void writeFormatted(CharSequence records, int fieldCount) throws IOException
+    {
+        if (records == null)
+            throw new IllegalArgumentException("Records to output passed null");
+        checkFieldCount(fieldCount);
+        _output.append(records);
+    }
+
+    // Check the field count of a record against the first one written
+    private void checkFieldCount(int fieldCount) throws IOException
+    {
+        if (_fieldCount < 0)
+            _fieldCount = fieldCount;
+        else if (fieldCount != _fieldCount)
+            throw new IOException("RecordParser, records to output have inconsistent field counts");
+    }
+
+    /* Close the file. PrintWriter hides write errors, so check for them here,
+       where they can be reported */
+    public void close() throws IOException
+    {
+        _output.close();
+        if (_output.checkError())
+            throw new IOException("RecordParser, error writing records");
+    }
+}
@@ -0,0 +1,449 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class decides whether a record passes any filter group of a
+   collection, like FieldFilterCollection.passes(), without testing every
+   group. The groups are compiled into an inverted index: for every field, a
+   map from each value filtered on to the numbers of the groups with that
+   filter. Matching a record looks up each of its fields in turn and counts
+   the filters hit for every group found. A group passes once the count
+   reaches its number of filters, which works because a group has at most one
+   filter per field. The cost is one map lookup per field plus one count per
+   filter hit, no matter how many groups there are.
+
+   Counts are kept in arrays with one entry per group, stamped with the
+   record they belong to so they never need clearing. Each thread gets its
+   own, so one matcher can be used from several threads at once.
+
+   Matching stops at the first group that passes, so the order fields are
+   looked up in, and groups counted in, affects the time taken but never the
+   result. Optionally the matcher counts how often each group passes, and
+   every so many records reorders itself so the fields of groups that pass
+   most often, and the groups themselves, come first, with smaller groups
+   ahead of larger ones that pass as often. The new order is built separately
+   and swapped in whole, so threads matching at the time are unaffected */
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class RuleMatcher implements RecordMatcher
+{
+    private int[] _filterCounts; // Filters in each group
+    private int _groupCount;
+
+    // Fields with filters, with each one's map, in the order to look them up
+    private static final class Order
+    {
+        int[] fields;
+        ArrayList<HashMap<String, int[]> > groupsByValue;
+
+        Order(int[] newFields, ArrayList<HashMap<String, int[]> > newGroupsByValue)
+        {
+            fields = newFields;
+            groupsByValue = newGroupsByValue;
+        }
+    }
+    private volatile Order _order;
+
+    /* Times each group passed a record, NULL if not counted. The records
+       matched between reorders are counted per thread, to keep threads from
+       contending on a shared count */
+    private LongAdder[] _hits;
+    private long _reorderInterval;
+    private AtomicBoolean _reordering;
+
+    // Counts of filters hit, per thread
+    private ThreadLocal<Counts> _counts;
+
+    private static final class Counts
+    {
+        int[] hits;
+        int[] stamps;
+        int stamp;
+        long matched; // Records since this thread last checked for reorder
+
+        Counts(int groupCount)
+        {
+            hits = new int[groupCount];
+            stamps = new int[groupCount];
+            stamp = 0;
+            matched = 0;
+        }
+    }
+
+    // Compile the groups of a collection
+    public RuleMatcher(FieldFilterCollection filters)
+    {
+        this(filters, 0);
+    }
+
+    /* Compile the groups of a collection, counting how often each passes and
+       reordering after every given number of records. Zero or less disables
+       the counting */
+    public RuleMatcher(FieldFilterCollection filters, long reorderInterval)
+    {
+        if (filters == null)
+            throw new IllegalArgumentException("Filter groups to match passed null");
+        _groupCount = filters.size();
+        _filterCounts = new int[_groupCount];
+
+        /* Gather the group numbers for each field and value first, then
+           convert to arrays, which are much faster to walk */
+        ArrayList<HashMap<String, ArrayList<Integer> > > lists = new ArrayList<HashMap<String, ArrayList<Integer> > >();
+        Iterator<FieldFilterGroup> index = filters.iterator();
+        int group = 0;
+        while (index.hasNext()) {
+            FieldFilterGroup next = index.next();
+            _filterCounts[group] = next.filterCount();
+            int filterIndex;
+            for (filterIndex = 0; filterIndex < next.filterCount(); filterIndex++) {
+                FieldFilter filter = next.getFilter(filterIndex);
+                while (lists.size() <= filter.getField())
+                    lists.add(new HashMap<String, ArrayList<Integer> >());
+                HashMap<String, ArrayList<Integer> > values = lists.get(filter.getField());
+                ArrayList<Integer> groups = values.get(filter.getValue());
+                if (groups == null) {
+                    groups = new ArrayList<Integer>();
+                    values.put(filter.getValue(), groups);
+                }
+                groups.add(Integer.valueOf(group));
+            }
+            group++;
+        }
+
+        // Start with fields in record order, skipping those with no filters
+        int fieldCount = 0;
+        int field;
+        for (field = 0; field < lists.size(); field++)
+            if (lists.get(field).size() > 0)
+                fieldCount++;
+        int[] fields = new int[fieldCount];
+        ArrayList<HashMap<String, int[]> > groupsByValue = new ArrayList<HashMap<String, int[]> >(fieldCount);
+        fieldCount = 0;
+        for (field = 0; field < lists.size(); field++) {
+            HashMap<String, ArrayList<Integer> > values = lists.get(field);
+            if (values.size() == 0)
+                continue;
+            HashMap<String, int[]> compiled = new HashMap<String, int[]>(values.size() * 2);
+            Iterator<Map.Entry<String, ArrayList<Integer> > > valueIndex = values.entrySet().iterator();
+            while (valueIndex.hasNext()) {
+                Map.Entry<String, ArrayList<Integer> > entry = valueIndex.next();
+                int[] groups = new int[entry.getValue().size()];
+                int count;
+                for (count = 0; count < groups.length; count++)
+                    groups[count] = entry.getValue().get(count).intValue();
+                compiled.put(entry.getKey(), groups);
+            }
+            fields[fieldCount++] = field;
+            groupsByValue.add(compiled);
+        }
+        _order = new Order(fields, groupsByValue);
+
+        _reorderInterval = reorderInterval;
+        _reordering = new AtomicBoolean(false);
+        _hits = null;
+        if (reorderInterval > 0) {
+            _hits = new LongAdder[_groupCount];
+            for (group = 0; group < _groupCount; group++)
+                _hits[group] = new LongAdder();
+        }
+
+        final int groupCount = _groupCount;
+        _counts = new ThreadLocal<Counts>() {
+            protected Counts initialValue()
+            {
+                return new Counts(groupCount);
+            }
+        };
+    }
+
+    // Number of filter groups compiled
+    public int size()
+    {
+        return _groupCount;
+    }
+
+    /* Times a group has passed a record, counting from zero in the order of
+       the original collection. Always zero if not counted */
+    public long getHits(int group)
+    {
+        return (_hits == null) ? 0 : _hits[group].sum();
+    }
+
+    // Returns the fields in the order they are looked up
+    public int[] getFieldOrder()
+    {
+        return _order.fields.clone();
+    }
+
+    // Determine whether any filter group passes a record
+    public boolean passes(List<String> record)
+    {
+        if (record == null)
+            return false; // No record!
+        int group = findPassing(record);
+        if (_hits != null) {
+            if (group >= 0)
+                _hits[group].increment();
+            Counts counts = _counts.get();
+            counts.matched++;
+            if (counts.matched >= _reorderInterval) {
+                counts.matched = 0;
+                reorder();
+            }
+        }
+        return (group >= 0);
+    }
+
+    // Returns the first group found that passes a record, or -1 if none do
+    private int findPassing(List<String> record)
+    {
+        Order order = _order;
+        Counts counts = null;
+        int fieldIndex;
+        for (fieldIndex = 0; fieldIndex < order.fields.length; fieldIndex++) {
+            int field = order.fields[fieldIndex];
+            if (field >= record.size())
+                continue;
+            int[] groups = order.groupsByValue.get(fieldIndex).get(record.get(field));
+            if (groups == null)
+                continue;
+            int index;
+            for (index = 0; index < groups.length; index++) {
+                int group = groups[index];
+                if (_filterCounts[group] == 1)
+                    return group; // No need to count
+                if (counts == null) {
+                    // First group that needs counting for this record
+                    counts = _counts.get();
+                    counts.stamp++;
+                    if (counts.stamp == 0) {
+                        // Stamps wrapped, so old ones could match. Clear them
+                        Arrays.fill(counts.stamps, 0);
+                        counts.stamp = 1;
+                    }
+                }
+                if (counts.stamps[group] != counts.stamp) {
+                    counts.stamps[group] = counts.stamp;
+                    counts.hits[group] = 1;
+                }
+                else {
+                    counts.hits[group]++;
+                    if (counts.hits[group] == _filterCounts[group])
+                        return group;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /* Reorder the fields and groups from the counts of groups passing. A
+       field scores the passes of every group filtering on it, divided by the
+       group's size, since all of a group's fields must be looked up for it to
+       pass. Groups on each value go by passes, then size. If another thread
+       is already reordering, this does nothing */
+    public void reorder()
+    {
+        if ((_hits == null) || (!_reordering.compareAndSet(false, true)))
+            return;
+        try {
+            Order order = _order;
+            final long[] hits = new long[_groupCount];
+            int group;
+            for (group = 0; group < _groupCount; group++)
+                hits[group] = _hits[group].sum();
+
+            final double[] scores = new double[order.fields.length];
+            ArrayList<HashMap<String, int[]> > groupsByValue = new ArrayList<HashMap<String, int[]> >(order.fields.length);
+            Comparator<Integer> groupOrder = new Comparator<Integer>() {
+                public int compare(Integer first, Integer second)
+                {
+                    int firstGroup = first.intValue();
+                    int secondGroup = second.intValue();
+                    if (hits[firstGroup] != hits[secondGroup])
+                        return (hits[firstGroup] > hits[secondGroup]) ? -1 : 1;
+                    if (_filterCounts[firstGroup] != _filterCounts[secondGroup])
+                        return (_filterCounts[firstGroup] < _filterCounts[secondGroup]) ? -1 : 1;
+                    return firstGroup - secondGroup;
+                }
+            };
+            int fieldIndex;
+            for (fieldIndex = 0; fieldIndex < order.fields.length; fieldIndex++) {
+                HashMap<String, int[]> values = order.groupsByValue.get(fieldIndex);
+                HashMap<String, int[]> sorted = new HashMap<String, int[]>(values.size() * 2);
+                Iterator<Map.Entry<String, int[]> > valueIndex = values.entrySet().iterator();
+                while (valueIndex.hasNext()) {
+                    Map.Entry<String, int[]> entry = valueIndex.next();
+                    Integer[] groups = new Integer[entry.getValue().length];
+                    int index;
+                    for (index = 0; index < groups.length; index++) {
+                        groups[index] = Integer.valueOf(entry.getValue()[index]);
+                        scores[fieldIndex] += ((double)hits[entry.getValue()[index]]) /
+                            _filterCounts[entry.getValue()[index]];
+                    }
+                    Arrays.sort(groups, groupOrder);
+                    int[] newGroups = new int[groups.length];
+                    for (index = 0; index < groups.length; index++)
+                        newGroups[index] = groups[index].intValue();
+                    sorted.put(entry.getKey(), newGroups);
+                }
+                groupsByValue.add(sorted);
+            }
+
+            // Sort the fields by score, keeping each with its map
+            Integer[] positions = new Integer[order.fields.length];
+            for (fieldIndex = 0; fieldIndex < positions.length; fieldIndex++)
+                positions[fieldIndex] = Integer.valueOf(fieldIndex);
+            final int[] oldFields = order.fields;
+            Arrays.sort(positions, new Comparator<Integer>() {
+                    public int compare(Integer first, Integer second)
+                    {
+                        int firstIndex = first.intValue();
+                        int secondIndex = second.intValue();
+                        if (scores[firstIndex] != scores[secondIndex])
+                            return (scores[firstIndex] > scores[secondIndex]) ? -1 : 1;
+                        return oldFields[firstIndex] - oldFields[secondIndex];
+                    }
+                });
+            int[] fields = new int[positions.length];
+            ArrayList<HashMap<String, int[]> > sortedGroupsByValue = new ArrayList<HashMap<String, int[]> >(positions.length);
+            for (fieldIndex = 0; fieldIndex < positions.length; fieldIndex++) {
+                fields[fieldIndex] = oldFields[positions[fieldIndex].intValue()];
+                sortedGroupsByValue.add(groupsByValue.get(positions[fieldIndex].intValue()));
+            }
+            _order = new Order(fields, sortedGroupsByValue);
+        }
+        finally {
+            _reordering.set(false);
+        }
+    }
+
+    public String toString()
+    {
+        return "RuleMatcher: " + _groupCount + " filter groups on " + _order.fields.length + " fields";
+    }
+
+    // Code to test the class
+    public static void main(String[] args)
+    {
+        // Rules: field 1 is 'a', or field 0 is 'x' and field 2 is 'z'
+        FieldFilterCollection rules = new FieldFilterCollection(new FieldFilterGroup(new FieldFilter(1, "a")));
+        FieldFilterGroup pair = new FieldFilterGroup(new FieldFilter(0, "x"));
+        rules.add(new FieldFilterGroup(pair, new FieldFilter(2, "z")));
+        RuleMatcher test = new RuleMatcher(rules);
+        System.out.println("Matcher: " + test);
+
+        ArrayList<String> record = new ArrayList<String>();
+        record.add("x");
+        record.add("b");
+        record.add("z");
+        System.out.println("Record " + record + " matches both filters of a pair, expect pass");
+        if (test.passes(record))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        record.set(2, "y");
+        System.out.println("Record " + record + " matches one filter of a pair, expect fail");
+        if (!test.passes(record))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        record.remove(2);
+        record.set(1, "a");
+        System.out.println("Record " + record + " too short for the pair but matches single filter, expect pass");
+        if (test.passes(record))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        System.out.println("NULL record, expect fail");
+        if (!test.passes(null))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        /* Random rules and records must give the same result as testing
+           every group in the collection */
+        Random random = new Random(7);
+        FieldFilterCollection randomRules = new FieldFilterCollection();
+        int count;
+        for (count = 0; count < 200; count++) {
+            FieldFilterGroup group = new FieldFilterGroup(new FieldFilter(0, String.valueOf(random.nextInt(8))));
+            int field;
+            for (field = 1; field < 5; field++)
+                if (random.nextInt(3) == 0)
+                    group = new FieldFilterGroup(group, new FieldFilter(field, String.valueOf(random.nextInt(8))));
+            randomRules.add(group);
+        }
+        RuleMatcher randomTest = new RuleMatcher(randomRules);
+        System.out.println("Match random records against random rules, expect same results as collection");
+        boolean same = true;
+        for (count = 0; same && (count < 5000); count++) {
+            ArrayList<String> randomRecord = new ArrayList<String>();
+            int field;
+            for (field = 0; field < 5; field++)
+                randomRecord.add(String.valueOf(random.nextInt(8)));
+            same = (randomTest.passes(randomRecord) == randomRules.passes(randomRecord));
+        }
+        if (same)
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed after " + count + " records");
+
+        /* Count passes and reorder every 100 records. Records where only the
+           last field decides should move it to the front, without changing
+           any result */
+        RuleMatcher adaptive = new RuleMatcher(randomRules, 100);
+        System.out.println("Match with reordering, expect same results as collection");
+        same = true;
+        for (count = 0; same && (count < 5000); count++) {
+            ArrayList<String> randomRecord = new ArrayList<String>();
+            int field;
+            for (field = 0; field < 5; field++)
+                randomRecord.add(String.valueOf(random.nextInt(8)));
+            same = (adaptive.passes(randomRecord) == randomRules.passes(randomRecord));
+        }
+        if (same)
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed after " + count + " records");
+
+        FieldFilterCollection lastRules = new FieldFilterCollection(new FieldFilterGroup(new FieldFilter(0, "a")));
+        lastRules.add(new FieldFilterGroup(new FieldFilter(2, "c")));
+        RuleMatcher lastTest = new RuleMatcher(lastRules, 10);
+        ArrayList<String> lastRecord = new ArrayList<String>();
+        lastRecord.add("x");
+        lastRecord.add("y");
+        lastRecord.add("c");
+        for (count = 0; count < 10; count++)
+            lastTest.passes(lastRecord);
+        System.out.println("Pass records on last field only, expect it looked up first with hits counted");
+        if ((lastTest.getFieldOrder()[0] == 2) && (lastTest.getHits(1) == 10) &&
+            (lastTest.getHits(0) == 0))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, order " + Arrays.toString(lastTest.getFieldOrder()));
+    }
+}
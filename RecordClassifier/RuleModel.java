@@ -0,0 +1,247 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class saves learned classification rules to a binary model file and
+   loads them back, so records can be classified without training again. The
+   file is compact: every distinct value is stored once, and filters refer to
+   it by number. All numbers are big endian, as written by DataOutputStream.
+
+   Layout, version 1:
+   - Magic number 'RVMD' and format version, one int each
+   - Number of distinct values, then each as its length in bytes and its
+     UTF-8 bytes
+   - Number of filter groups, then for each its filter count, and for each
+     filter its field and the number of its value
+   Rules are stored in order, so the loaded collection is the same as the one
+   saved, down to the order rules are tested in.
+
+   Version 2 is the layout of MappedRuleModel, which is used in place. This
+   class reads either version */
+import java.util.*;
+import java.io.*;
+import java.nio.charset.*;
+
+public class RuleModel
+{
+    public static final int MAGIC = 0x52564D44; // 'RVMD'
+    public static final int VERSION = 1;
+
+    // Save rules to a model file, overwriting any existing file
+    public static void write(String fileName, FieldFilterCollection rules) throws IOException
+    {
+        if (fileName == null)
+            throw new IllegalArgumentException("Filename for model must be specified");
+        if (rules == null)
+            throw new IllegalArgumentException("Rules to save passed null");
+
+        // Number the distinct values in order of first use
+        HashMap<String, Integer> valueNumbers = new HashMap<String, Integer>();
+        ArrayList<String> values = new ArrayList<String>();
+        Iterator<FieldFilterGroup> index = rules.iterator();
+        while (index.hasNext()) {
+            FieldFilterGroup group = index.next();
+            int filter;
+            for (filter = 0; filter < group.filterCount(); filter++) {
+                String value = group.getFilter(filter).getValue();
+                if (!valueNumbers.containsKey(value)) {
+                    valueNumbers.put(value, Integer.valueOf(values.size()));
+                    values.add(value);
+                }
+            }
+        }
+
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(values.size());
+            Iterator<String> valueIndex = values.iterator();
+            while (valueIndex.hasNext()) {
+                byte[] bytes = valueIndex.next().getBytes(StandardCharsets.UTF_8);
+                output.writeInt(bytes.length);
+                output.write(bytes);
+            }
+            output.writeInt(rules.size());
+            index = rules.iterator();
+            while (index.hasNext()) {
+                FieldFilterGroup group = index.next();
+                output.writeInt(group.filterCount());
+                int filter;
+                for (filter = 0; filter < group.filterCount(); filter++) {
+                    FieldFilter next = group.getFilter(filter);
+                    output.writeInt(next.getField());
+                    output.writeInt(valueNumbers.get(next.getValue()).intValue());
+                }
+            }
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    /* Returns the format version of a model file. Throws if the file is not
+       a model */
+    public static int readVersion(String fileName) throws IOException
+    {
+        if (fileName == null)
+            throw new IllegalArgumentException("Filename for model must be specified");
+        DataInputStream input = new DataInputStream(new FileInputStream(fileName));
+        try {
+            if (input.readInt() != MAGIC)
+                throw new IOException("Model file " + fileName + " invalid; not a model file");
+            return input.readInt();
+        }
+        catch (EOFException e) {
+            throw new IOException("Model file " + fileName + " invalid; truncated");
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /* Load rules from a model file. Throws if the file is not a model, is
+       from a newer version, or is damaged */
+    public static FieldFilterCollection read(String fileName) throws IOException
+    {
+        if (fileName == null)
+            throw new IllegalArgumentException("Filename for model must be specified");
+        if (readVersion(fileName) == MappedRuleModel.VERSION)
+            return MappedRuleModel.open(fileName).toRules();
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+        try {
+            if (input.readInt() != MAGIC)
+                throw new IOException("Model file " + fileName + " invalid; not a model file");
+            int version = input.readInt();
+            if (version != VERSION)
+                throw new IOException("Model file " + fileName + " has version " + version + ", only versions " + VERSION + " and " + MappedRuleModel.VERSION + " supported");
+
+            int valueCount = checkCount(input.readInt(), fileName);
+            String[] values = new String[valueCount];
+            int index;
+            for (index = 0; index < valueCount; index++) {
+                byte[] bytes = new byte[checkCount(input.readInt(), fileName)];
+                input.readFully(bytes);
+                values[index] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            FieldFilterCollection result = new FieldFilterCollection();
+            int groupCount = checkCount(input.readInt(), fileName);
+            for (index = 0; index < groupCount; index++) {
+                int filterCount = checkCount(input.readInt(), fileName);
+                ArrayList<FieldFilter> filters = new ArrayList<FieldFilter>(filterCount);
+                int filter;
+                for (filter = 0; filter < filterCount; filter++) {
+                    int field = input.readInt();
+                    int value = input.readInt();
+                    if ((value < 0) || (value >= valueCount))
+                        throw new IOException("Model file " + fileName + " invalid; filter value " + value + " out of range");
+                    filters.add(new FieldFilter(field, values[value]));
+                }
+                result.add(new FieldFilterGroup(filters));
+            }
+            if (input.read() != -1)
+                throw new IOException("Model file " + fileName + " invalid; data after last rule");
+            return result;
+        }
+        catch (EOFException e) {
+            throw new IOException("Model file " + fileName + " invalid; truncated");
+        }
+        catch (IllegalArgumentException e) {
+            // Filters or groups that can't be created
+            throw new IOException("Model file " + fileName + " invalid; " + e.getMessage());
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    // Check a count read from a model file is possible
+    private static int checkCount(int count, String fileName) throws IOException
+    {
+        if (count < 0)
+            throw new IOException("Model file " + fileName + " invalid; negative count " + count);
+        return count;
+    }
+
+    // Code to test the class
+    public static void main(String[] args)
+    {
+        FieldFilterCollection rules = new FieldFilterCollection(new FieldFilterGroup(new FieldFilter(1, "a")));
+        FieldFilterGroup pair = new FieldFilterGroup(new FieldFilter(0, "x"));
+        rules.add(new FieldFilterGroup(pair, new FieldFilter(2, "a\u00e9")));
+        rules.add(new FieldFilterGroup(new FieldFilter(3, "")));
+
+        System.out.println("Save and load rules, expect same rules in same order");
+        try {
+            write("RuleModelTest.testtesttest", rules);
+            FieldFilterCollection loaded = read("RuleModelTest.testtesttest");
+            if (loaded.toString().equals(rules.toString()))
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed, got " + loaded);
+        }
+        catch (Exception e) {
+            System.out.println("Test failed, caught " + e);
+        }
+
+        System.out.println("Load rules saved in mapped layout, expect same rules in same order");
+        try {
+            MappedRuleModel.write("RuleModelTest.testtesttest", rules);
+            FieldFilterCollection loaded = read("RuleModelTest.testtesttest");
+            if (loaded.toString().equals(rules.toString()))
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed, got " + loaded);
+            write("RuleModelTest.testtesttest", rules);
+        }
+        catch (Exception e) {
+            System.out.println("Test failed, caught " + e);
+        }
+
+        System.out.println("Load truncated model, expect exception");
+        try {
+            RandomAccessFile file = new RandomAccessFile("RuleModelTest.testtesttest", "rw");
+            file.setLength(file.length() - 2);
+            file.close();
+            read("RuleModelTest.testtesttest");
+            System.out.println("Test failed, model loaded");
+        }
+        catch (IOException e) {
+            System.out.println("Test succeeded, caught " + e);
+        }
+
+        System.out.println("Load file that is not a model, expect exception");
+        try {
+            PrintWriter file = new PrintWriter(new FileOutputStream("RuleModelTest.testtesttest"));
+            file.println("test1,test2,test3");
+            file.close();
+            read("RuleModelTest.testtesttest");
+            System.out.println("Test failed, model loaded");
+        }
+        catch (IOException e) {
+            System.out.println("Test succeeded, caught " + e);
+        }
+        new File("RuleModelTest.testtesttest").delete();
+    }
+}
@@ -0,0 +1,223 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class limits how much of the heap the training indexes take. Every
+   index array sized by the number of records or filter groups is created
+   through it. While the arrays in use fit
+   within the budget they go on the heap; once an array would exceed it, that
+   array goes in a memory-mapped file in a scratch directory instead. Arrays
+   are created from several threads during parallel expansion, so the
+   accounting is atomic */
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+public class StorageBudget
+{
+    private long _heapBytes; // Bytes of arrays allowed on the heap
+    private File _scratchDirectory;
+
+    private AtomicLong _heapUsed;
+    private AtomicLong _mappedUsed;
+    private AtomicLong _mappedPeak;
+
+    // Create a budget with no limit, so everything stays on the heap
+    public StorageBudget()
+    {
+        this(Long.MAX_VALUE, null);
+    }
+
+    /* Create a budget allowing the given number of bytes on the heap, with
+       arrays beyond it mapped from files in the given directory. A NULL
+       directory uses the system temporary directory */
+    public StorageBudget(long heapBytes, File scratchDirectory)
+    {
+        if (heapBytes < 0)
+            throw new IllegalArgumentException("Heap budget for training index can't be negative, got " + heapBytes);
+        if ((scratchDirectory != null) && (!scratchDirectory.isDirectory()))
+            throw new IllegalArgumentException("Scratch directory for training index " + scratchDirectory + " does not exist");
+        _heapBytes = heapBytes;
+        _scratchDirectory = scratchDirectory;
+        _heapUsed = new AtomicLong(0);
+        _mappedUsed = new AtomicLong(0);
+        _mappedPeak = new AtomicLong(0);
+    }
+
+    // Create an array of the given length, all zero
+    public IntStore allocate(int length)
+    {
+        if (length < 0)
+            throw new IllegalArgumentException("Index array size can't be negative, got " + length);
+        long bytes = 4L * length;
+        if (reserveHeap(bytes))
+            return new IntStore.Heap(this, length);
+        IntStore result = new IntStore.Mapped(this, length, _scratchDirectory);
+        addMapped(bytes);
+        return result;
+    }
+
+    // Create an array of longs of the given length, all zero
+    public LongStore allocateLongs(int length)
+    {
+        if (length < 0)
+            throw new IllegalArgumentException("Index array size can't be negative, got " + length);
+        long bytes = 8L * length;
+        if (reserveHeap(bytes))
+            return new LongStore.Heap(this, length);
+        LongStore result = new LongStore.Mapped(this, length, _scratchDirectory);
+        addMapped(bytes);
+        return result;
+    }
+
+    // Take bytes from the heap budget, returning false if they don't fit
+    private boolean reserveHeap(long bytes)
+    {
+        long used = _heapUsed.get();
+        while ((used + bytes) <= _heapBytes) {
+            if (_heapUsed.compareAndSet(used, used + bytes))
+                return true;
+            used = _heapUsed.get();
+        }
+        return false;
+    }
+
+    // Count bytes put in a mapped file
+    private void addMapped(long bytes)
+    {
+        long mapped = _mappedUsed.addAndGet(bytes);
+        long peak = _mappedPeak.get();
+        while ((mapped > peak) && (!_mappedPeak.compareAndSet(peak, mapped)))
+            peak = _mappedPeak.get();
+    }
+
+    // Called by arrays when released
+    void release(long bytes, boolean mapped)
+    {
+        if (mapped)
+            _mappedUsed.addAndGet(-bytes);
+        else
+            _heapUsed.addAndGet(-bytes);
+    }
+
+    // Bytes of arrays currently on the heap
+    public long getHeapUsed()
+    {
+        return _heapUsed.get();
+    }
+
+    // Bytes of arrays currently in mapped files
+    public long getMappedUsed()
+    {
+        return _mappedUsed.get();
+    }
+
+    // Most bytes of arrays in mapped files at any one time
+    public long getMappedPeak()
+    {
+        return _mappedPeak.get();
+    }
+
+    public String toString()
+    {
+        return "StorageBudget: " + _heapUsed.get() + " of " + ((_heapBytes == Long.MAX_VALUE) ? "unlimited" : String.valueOf(_heapBytes)) + " heap bytes used, " + _mappedUsed.get() + " bytes mapped";
+    }
+
+    // Code to test the class
+    public static void main(String[] args)
+    {
+        StorageBudget test = new StorageBudget(64, null);
+        IntStore first = test.allocate(10);
+        System.out.println("Allocate 40 bytes of 64, expect heap array");
+        if ((!first.isMapped()) && (test.getHeapUsed() == 40))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, " + test);
+
+        IntStore second = test.allocate(10);
+        System.out.println("Allocate 40 more, expect mapped array");
+        if (second.isMapped() && (test.getMappedUsed() == 40))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, " + test);
+
+        System.out.println("Store and read back in both, expect same values");
+        int index;
+        for (index = 0; index < 10; index++) {
+            first.set(index, index * 3);
+            second.set(index, -index);
+        }
+        boolean same = true;
+        for (index = 0; index < 10; index++)
+            same = same && (first.get(index) == (index * 3)) && (second.get(index) == -index);
+        if (same)
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        System.out.println("Grow mapped array, expect contents kept and budget updated");
+        second = second.resize(12);
+        if ((second.length() == 12) && (second.get(9) == -9) && (second.get(11) == 0) &&
+            (test.getMappedUsed() == 48))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, " + test);
+
+        System.out.println("Copy heap array into mapped one, expect values moved");
+        first.copyTo(2, second, 0, 3);
+        if ((second.get(0) == 6) && (second.get(2) == 12) && (second.get(3) == -3))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        // Resizing holds both old and new arrays for a time, so they both count
+        System.out.println("Release both, expect nothing used and peak of 88 mapped");
+        first.release();
+        second.release();
+        if ((test.getHeapUsed() == 0) && (test.getMappedUsed() == 0) &&
+            (test.getMappedPeak() == 88))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, " + test);
+
+        System.out.println("Allocate longs past budget, expect mapped array holding full values");
+        test = new StorageBudget(16, null);
+        LongStore longs = test.allocateLongs(4);
+        longs.set(3, Long.MAX_VALUE - 1);
+        longs = longs.resize(5);
+        if (longs.isMapped() && (longs.get(3) == (Long.MAX_VALUE - 1)) &&
+            (test.getMappedUsed() == 40))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, " + test);
+        longs.release();
+
+        System.out.println("Budget with missing scratch directory, expect exception");
+        try {
+            new StorageBudget(0, new File("no/such/directory"));
+            System.out.println("Test failed, created");
+        }
+        catch (Exception e) {
+            System.out.println("Test succeeded, caught " + e);
+        }
+    }
+}
@@ -29,37 +29,89 @@
    stop when the class has no records or the filter groups are as specific as
    possible */
 import java.util.*;
+import java.util.concurrent.*;
 
 public class TrainingRecords
 {
+    /* How the next filter group to process is found. The scan is the
+       original approach, and is kept as a reference since it is simple enough
+       to be obviously correct. It also breaks ties between groups with equal
+       counts the way the original did, so it learns the same rules, while
+       the bucket queue breaks them by group number and can learn different
+       ones for training sets that need rules of more than one field */
+    public static enum CandidateSelection { SCAN, BUCKET_QUEUE }
+
     /* This class must efficiently generate the initial set of filter groups,
        generate more specific filter groups from less specific ones, and remove
        filter groups plus the records they filter. To avoid repeatedly scanning
        the set of training records to generate filters, the last two items
        require a mapping between the filter groups and the records they effect
        (remember a single record will get selected by multiple filter groups).
-       Its implemented as hashmap of FieldFilterGroups to RecordGroups, which
-       has efficiency on order of the average number of records selected by
-       each filter */
-    private HashMap<FieldFilterGroup, RecordGroup> _recordsByFilter;
+       Its implemented as an index of filter groups, each with a list of the
+       ordinals of the records it selects. Every training record is given an
+       ordinal when loaded, its position in _records, so removing a record
+       from a group is a binary search instead of a scan comparing fields.
+       The filter groups are stored by their dictionary codes, not the field
+       values, in flat arrays instead of objects; see FilterGroupIndex for
+       details. Filter groups are referred to by their number in the index */
+    private FilterGroupIndex _recordsByFilter;
+
+    /* The training records, indexed by ordinal. Only needed to output them
+       for debugging, everything else uses the codes below */
+    private ArrayList<ArrayList<String> > _records;
+
+    /* Dictionary codes for the fields used for classification of each record,
+       indexed by ordinal and then by position in _classifyFields */
+    private int[][] _codes;
+
+    /* The dictionary for the codes, and its size once the records were
+       encoded. It may be shared with other objects which add more values
+       later, so the size is saved to give every key a consistent radix */
+    private RecordDictionary _dictionary;
+    private int _radix;
 
     /* When removing a training record, it must be removed from all filter
        groups remaining that select it. Regenerating the groups is O(N^F)
        where N is the number of fields per record and F is the number of
        filters per filter group. This rapidly gets expensive, implying the
-       need for a reverse index of records to filter groups. Training records
-       do not change once inserted in the object, so the default hash on the
-       memory address is sufficient */
-    private HashMap<ArrayList<String>, FieldFilterCollection> _filtersByRecord;
+       need for a reverse index of records to filter groups. Every record
+       remaining has exactly one filter group for each combination of
+       classification fields of the current size, so the index is a single
+       array with that many entries per record ordinal. Entries for records
+       removed from the training set are left in place but never read. Like
+       the record lists of the filter groups, it is created from the storage
+       budget, since it is just as large */
+    private IntStore _filtersByRecord;
+    private int _filtersPerRecord;
+    private BitSet _removedRecords;
 
     /* Filters which are returned for processing should not be processed again.
        Can either mark them as they go or keep a set of them. Resetting the
-       state happens regularly and is easier with a set */
-    private HashSet<FieldFilterGroup> _ignoredFilters;
-
-    /* The last filter returned for processing. Cached mostly so delete works
-       properly */
-    private FieldFilterGroup _lastReturnedFilterGroup;
+       state happens regularly and is easier with a set, here a set of group
+       numbers */
+    private BitSet _ignoredFilters;
+
+    // How the next filter group to process is found
+    private CandidateSelection _selection;
+
+    /* Filter groups not yet returned for processing, ordered by record count.
+       Only used for bucket queue selection. It is rebuilt whenever the
+       processing state is reset, but only when actually needed, since the
+       valid records in a classifier never look for filter groups */
+    private FilterGroupQueue _candidates;
+    private boolean _candidatesStale;
+
+    /* The filter groups remaining in the order the original implementation
+       held them, for the scan. It kept them in a hash map keyed by the groups
+       themselves, and the scan returns the first group of the largest count
+       in iteration order, so this map is built with the same capacity and
+       the same insertions to iterate the same way. The values are the group
+       numbers. Only used for scan selection */
+    private HashMap<FieldFilterGroup, Integer> _scanOrder;
+
+    /* The last filter returned for processing, or -1 if none. Cached mostly
+       so delete works properly */
+    private int _lastReturnedFilterGroup;
 
     // The list of record fields that are used for classification
     private int[] _classifyFields;
@@ -69,88 +121,137 @@ public class TrainingRecords
        tracks the current size */
     private int _filterGroupSize;
 
-    /* Given a single record, returns an array of all single filter groups
-       that would select that record */
-    private static FieldFilterCollection getFilters(ArrayList<String> record,
-                                                    int[] classifyFields)
-    {
-        // The filters are one for each field in the record
-        FieldFilterCollection result = new FieldFilterCollection();
+    /* Threads for making filter groups more specific, NULL to do it on the
+       calling thread */
+    private ForkJoinPool _expansionPool;
 
-        /* Generate the filters so that the lowest numbered field is first in
-           the list. This optimizes operations elsewhere */
-        int index;
-        for (index = 0; index < classifyFields.length; index++)
-            result.add(new FieldFilterGroup(new FieldFilter(record, classifyFields[index])));
-        return result;
-    }
-    
-    /* Given a single record and an existing filter, returns an array of all
-       filter groups one size larger that would select that record */
-    private FieldFilterCollection getFilters(ArrayList<String> record,
-                                             FieldFilterGroup filter,
-                                             int[] classifyFields)
+    // Limits how much of the heap the indexes take
+    private StorageBudget _storage;
+
+    /* Build the reverse index of records to filter groups for the current
+       filter groups, which were generated from the given ones, or from the
+       records if NULL. Every record remaining is selected by exactly the same
+       number of groups, so the entries for each record fill its slice of the
+       array exactly */
+    private void indexRecords(FilterGroupIndex parents)
     {
-        /* SANITY CHECK: If the filter does not pass the record, have a huge
-           problem */
-        if (!filter.passes(record))
-            throw new IllegalStateException("Internal state inconsistent, attempt to generate further filters from one that does not pass record");
-
-        /* The filters are one for each field in the record beyond the last
-           already in the filter group. Remember that every field used for
-           classification must appear in the record somewhere */
-        int firstNewField = Arrays.binarySearch(classifyFields,
-                                                filter.getLastFilterField() + 1);
-        if (firstNewField < 0)
-            /* The next field is not part of those used for classification.
-               Thankfully, the method returns instead the index of the next
-               highest position, although it takes some manipulation to get
-               it */
-            firstNewField = -(firstNewField + 1);
-        
-        int filtersNeeded = classifyFields.length - firstNewField;
+        _filtersPerRecord = combinations(_classifyFields.length,
+                                         _recordsByFilter.getGroupSize());
+        long size = (long)_records.size() * _filtersPerRecord;
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalStateException("Too many filter groups per record to index, " + _filtersPerRecord + " for " + _records.size() + " records");
+        _filtersByRecord = _storage.allocate((int)size);
+        int[] filled = new int[_records.size()];
+        if (_selection == CandidateSelection.SCAN) {
+            indexForScan(parents, filled);
+            return;
+        }
+        int group;
+        for (group = 0; group < _recordsByFilter.getGroupCount(); group++) {
+            if (_recordsByFilter.getCount(group) == 0)
+                continue;
+            int slot;
+            for (slot = 0; slot < _recordsByFilter.getSlots(group); slot++) {
+                int ordinal = _recordsByFilter.getOrdinal(group, slot);
+                if (ordinal < 0)
+                    continue; // Removed
+                addToRecordIndex(ordinal, group, filled);
+            }
+        }
+    }
 
-        /* SANITY CHECK: If the number of filters needed is zero or less, this
-           implies the current filter group contains the last field of the
-           record */
-        if (filtersNeeded <= 0)
-            throw new IllegalStateException("Internal state inconsistent, attempt to generate further filters from one that matches last field of record " + classifyFields[classifyFields.length - 1]);
+    /* Build the reverse index and the scan order by generating the filter
+       groups the way the original implementation did. For the first level
+       that is every classification field of every record, in record order.
+       After that it is the groups of the level before in scan order, each
+       with its records in ordinal order and then the fields after its
+       highest field. The reverse index gets the groups of each record in the
+       same order, so groups are removed from the scan order in the same order
+       as well */
+    private void indexForScan(FilterGroupIndex parents, int[] filled)
+    {
+        HashMap<FieldFilterGroup, Integer> order;
+        BitSet ordered = new BitSet(_recordsByFilter.getGroupCount());
+        if (parents == null) {
+            order = new HashMap<FieldFilterGroup, Integer>(_records.get(0).size() * 10);
+            int ordinal;
+            for (ordinal = 0; ordinal < _records.size(); ordinal++) {
+                int position;
+                for (position = 0; position < _classifyFields.length; position++) {
+                    FilterGroupKey key = new FilterGroupKey(_codes[ordinal][position],
+                                                            _radix);
+                    addForScan(order, ordered, ordinal, key, filled);
+                }
+            }
+        }
+        else {
+            int needSize = _classifyFields.length - parents.getGroupSize();
+            needSize *= (_scanOrder.size() * 10);
+            order = new HashMap<FieldFilterGroup, Integer>(needSize);
+            Iterator<Integer> parentIndex = _scanOrder.values().iterator();
+            while (parentIndex.hasNext()) {
+                int parent = parentIndex.next().intValue();
+                int lastPosition = parents.getLastPosition(parent);
+                if (lastPosition >= (_classifyFields.length - 1))
+                    continue; // Can't be made more specific, dropped
+                FilterGroupKey parentKey = parents.getKey(parent);
+                int slot;
+                for (slot = 0; slot < parents.getSlots(parent); slot++) {
+                    int ordinal = parents.getOrdinal(parent, slot);
+                    if (ordinal < 0)
+                        continue; // Removed
+                    int position;
+                    for (position = lastPosition + 1;
+                         position < _classifyFields.length; position++) {
+                        FilterGroupKey key = new FilterGroupKey(parentKey,
+                                                                _codes[ordinal][position],
+                                                                _radix);
+                        addForScan(order, ordered, ordinal, key, filled);
+                    }
+                }
+            }
+        }
+        _scanOrder = order;
+    }
 
-        FieldFilterCollection result = new FieldFilterCollection();
+    /* Add a filter group selecting a record to the reverse index, and to the
+       scan order if not already there */
+    private void addForScan(HashMap<FieldFilterGroup, Integer> order,
+                            BitSet ordered, int ordinal, FilterGroupKey key,
+                            int[] filled)
+    {
+        int group = _recordsByFilter.find(key);
+        if (group < 0)
+            throw new IllegalStateException("Internal state inconsistent, filter group " + key + " for record " + ordinal + " missing from filter index");
+        addToRecordIndex(ordinal, group, filled);
+        if (!ordered.get(group)) {
+            order.put(toFilterGroup(group), Integer.valueOf(group));
+            ordered.set(group);
+        }
+    }
 
-        /* Generate the filters so that the lowest numbered field is first in
-           the list. This optimizes operations elsewhere */
-        int index;
-        for (index = 0; index < filtersNeeded; index++)
-            result.add(new FieldFilterGroup(filter, new FieldFilter(record, classifyFields[firstNewField + index])));
-        return result;
+    // Add a filter group to the reverse index entries of a record
+    private void addToRecordIndex(int ordinal, int group, int[] filled)
+    {
+        /* SANITY CHECK: A record can't be in more groups than field
+           combinations */
+        if (filled[ordinal] == _filtersPerRecord)
+            throw new IllegalStateException("Internal state inconsistent, record selected by more filter groups than field combinations");
+        _filtersByRecord.set((ordinal * _filtersPerRecord) + filled[ordinal], group);
+        filled[ordinal]++;
     }
-    
-    /* Given a single record and a list of filter groups, insert that record
-       into the hash under each of those filter groups. The hash must already
-       be initialized. WARNING: Does not verify that the filter groups
-       actually pass the record! */
-    private void insertRecord(ArrayList<String> record, FieldFilterCollection filters)
+
+    // Number of ways to choose a given number of items from a larger set
+    private static int combinations(int items, int chosen)
     {
-        /* SANITY CHECK: The filter array has positive size */
-        if (filters.size() == 0)
-            throw new IllegalStateException("Internal state inconsistent, set of filters generated from a record is empty");
-
-        Iterator<FieldFilterGroup> index = filters.iterator();
-        while (index.hasNext()) {
-            FieldFilterGroup nextFilter = index.next();
-            if (_recordsByFilter.containsKey(nextFilter))
-                // Add the record to the record group for this key
-                _recordsByFilter.get(nextFilter).getRecords().add(record);
-            else
-                // Create a new group and add it with this key
-                _recordsByFilter.put(nextFilter, new RecordGroup(record));
-        } // For each filter
-
-        // Insert the filters into the reverse index for the record
-        if (!_filtersByRecord.containsKey(record))
-            _filtersByRecord.put(record, new FieldFilterCollection());
-        _filtersByRecord.get(record).add(filters);
+        long result = 1;
+        int index;
+        for (index = 1; index <= chosen; index++)
+            // Exact at every step, since this is the count for index items
+            result = (result * (items - chosen + index)) / index;
+        if (result > Integer.MAX_VALUE)
+            throw new IllegalStateException("Too many field combinations, " + items + " fields choose " + chosen);
+        return (int)result;
     }
 
     /* Initialze the filter set. Generate one filter for every non-excluded 
@@ -158,6 +259,40 @@ public class TrainingRecords
        passed NULL, every field will be used */
     public TrainingRecords(RecordGroup records, int[] excludeFields)
     {
+        this(records, excludeFields, CandidateSelection.BUCKET_QUEUE);
+    }
+
+    /* Initialize the filter set, finding filter groups to process with the
+       given method */
+    public TrainingRecords(RecordGroup records, int[] excludeFields,
+                           CandidateSelection selection)
+    {
+        this(records, excludeFields, selection, new RecordDictionary());
+    }
+
+    /* Initialize the filter set, encoding field values with the given
+       dictionary. Sharing a dictionary between objects built from related
+       records avoids storing the same values twice */
+    public TrainingRecords(RecordGroup records, int[] excludeFields,
+                           CandidateSelection selection,
+                           RecordDictionary dictionary)
+    {
+        this(records, excludeFields, selection, dictionary, new StorageBudget());
+    }
+
+    /* Initialize the filter set, keeping the indexes within a storage budget.
+       Once they outgrow it they are moved to files on disk, which slows the
+       training down but lets it finish */
+    public TrainingRecords(RecordGroup records, int[] excludeFields,
+                           CandidateSelection selection,
+                           RecordDictionary dictionary, StorageBudget storage)
+    {
+        if (storage == null)
+            throw new IllegalArgumentException("Storage budget for training records passed null");
+        if (dictionary == null)
+            throw new IllegalArgumentException("Dictionary for training records passed null");
+        if (selection == null)
+            throw new IllegalArgumentException("Filter group selection method passed null");
         if (records == null)
             throw new IllegalArgumentException("Training records for filter generation passed null");
         if (records.getRecords().size() == 0)
@@ -218,35 +353,67 @@ public class TrainingRecords
                 _classifyFields[index] = temp.next().intValue();
         } // List of classification fields specified
             
-        /* The size of the hash needs to be the number of unique filters
-           generated by the training set. Its equal to the number of records
-           times the number of fields divided by the average number of records
-           that share a field value, raised to the power of the typical size
-           of the filter set needed to find uniqueness. The third value depends
-           on the number of valid values per field and varies significantly.
-           The fourth depends on the overlap of field values in each category
-           being classified. This code uses a conservative estimate to minimize
-           the risk of rehashing. */
-        int estSize = recordList.peekFirst().size() * 10;
-        _recordsByFilter = new HashMap<FieldFilterGroup, RecordGroup>(estSize); 
-        _filtersByRecord = new HashMap<ArrayList<String>, FieldFilterCollection>(recordList.size());
-        
-        /* Iterate through the list and insert */
-        recordIndex = recordList.listIterator(0);
-        while (recordIndex.hasNext()) {
-            ArrayList<String> procRecord = recordIndex.next();
-            insertRecord(procRecord, getFilters(procRecord, _classifyFields));
+        _records = new ArrayList<ArrayList<String> >(recordList);
+
+        /* Encode the records. The ordinal of each record is its position in
+           the list. All records must be encoded before any key is created,
+           since the dictionary size sets the radix for packing the keys */
+        _dictionary = dictionary;
+        _codes = new int[_records.size()][];
+        int ordinal;
+        for (ordinal = 0; ordinal < _records.size(); ordinal++) {
+            ArrayList<String> record = _records.get(ordinal);
+            _codes[ordinal] = new int[_classifyFields.length];
+            int index;
+            for (index = 0; index < _classifyFields.length; index++)
+                _codes[ordinal][index] = _dictionary.encode(_classifyFields[index],
+                                                            record.get(_classifyFields[index]));
         }
+        _radix = _dictionary.size();
+
+        // Generate one filter group for every classification field of every record
+        _storage = storage;
+        _recordsByFilter = FilterGroupIndex.firstLevel(_codes, _classifyFields.length,
+                                                       _radix, _storage);
+        _removedRecords = new BitSet(_records.size());
+        _selection = selection;
+        _scanOrder = null;
+        indexRecords(null);
         _filterGroupSize = 1;
 
-        _ignoredFilters = new HashSet<FieldFilterGroup>();
-        _lastReturnedFilterGroup = null;
+        _candidates = null;
+        _expansionPool = null;
+        resetProcessingState();
+    }
+
+    /* Clear the state of which filter groups were returned for processing.
+       The queue of candidates is rebuilt the next time it is used */
+    private void resetProcessingState()
+    {
+        _ignoredFilters = new BitSet();
+        _candidatesStale = true;
+        _lastReturnedFilterGroup = -1;
+    }
+
+    /* Fill the queue of candidate filter groups from the filters currently in
+       the object. Groups are added in number order, which makes the order of
+       groups with equal counts repeatable */
+    private void rebuildCandidates()
+    {
+        if (_candidates != null)
+            _candidates.release();
+        _candidates = new FilterGroupQueue(_recordsByFilter.getGroupCount(), _storage);
+        int group;
+        for (group = 0; group < _recordsByFilter.getGroupCount(); group++)
+            if (_recordsByFilter.getCount(group) > 0)
+                _candidates.add(group, _recordsByFilter.getCount(group));
+        _candidatesStale = false;
     }
         
     /* Returns true if there are no more records to process */
     public boolean isEmpty()
     {
-        return _recordsByFilter.isEmpty();
+        return (_recordsByFilter.getLiveGroups() == 0);
     }
     
     /* Returns true if any filter in the set is the same size of at least one
@@ -272,79 +439,87 @@ public class TrainingRecords
        filter all training records remaining. */
     public void incrFilterSpecificity()
     {
-        /* If the operation fails for any reason, restore the original state so
-           it remains consistent */
-        HashMap<FieldFilterGroup, RecordGroup> currentFilters = _recordsByFilter;
-        HashMap<ArrayList<String>, FieldFilterCollection> currentRecords = _filtersByRecord;
-        HashSet<FieldFilterGroup> ignoredFilters = _ignoredFilters;
-        
+        /* For every record, generate every possible filter one larger. Groups
+           whose highest field is the last field used for classification can't
+           be made any more specific and are dropped, which is an error if that
+           drops records. The new groups are built separately, so if this
+           fails for any reason the original state remains consistent */
+        FilterGroupIndex newFilters = _recordsByFilter.expand(_codes,
+                                                              _classifyFields.length,
+                                                              _expansionPool);
+
+        /* If the set of filters is empty at this point, all training records
+           were dropped which is a huge problem. It should have been caught by
+           the exception test in the expansion, indicating a code error */
+        if (newFilters.getLiveGroups() == 0) {
+            newFilters.release();
+            throw new IllegalStateException("Attempt to make filters more specific internal error, no filters generated");
+        }
+
+        FilterGroupIndex currentFilters = _recordsByFilter;
+        IntStore currentRecords = _filtersByRecord;
+        int currentFiltersPerRecord = _filtersPerRecord;
+        HashMap<FieldFilterGroup, Integer> currentOrder = _scanOrder;
         try {
-            /* The size of the new map will be equal the size of the number of
-               filter groups it contains times the number of fields in the
-               records used for classification beyond the current size of the
-               filter, times the average number of sets the next field will
-               divide those records into. The last item is equal to the number
-               of valid values per filter. This code takes a conservative
-               estimate to reduce the risk of rehashing. */
-            int needSize = _classifyFields.length - _filterGroupSize;
-            needSize *= (_recordsByFilter.size() * 10);
-            _recordsByFilter = new HashMap<FieldFilterGroup, RecordGroup>(needSize);
-            _filtersByRecord = new HashMap<ArrayList<String>, FieldFilterCollection>(currentRecords.keySet().size());
-            Iterator<Map.Entry<FieldFilterGroup, RecordGroup> > filterIndex = currentFilters.entrySet().iterator();
-            while (filterIndex.hasNext()) {
-                /* For every record, generate every possible filter one larger
-                   and insert into the map. Keep in mind that multiple records
-                   can generate the same filter; the insert routine handles
-                   collating them properly */
-                Map.Entry<FieldFilterGroup, RecordGroup> value = filterIndex.next();
-                ListIterator<ArrayList<String> > recordIndex = value.getValue().getRecords().listIterator(0);
-                while (recordIndex.hasNext()) {
-                    ArrayList<String> record = recordIndex.next();
-                    /* If the highest field of the filter equals the last field
-                       used for classification, the filter can't be made any
-                       more specific so ignore it. */
-                    if (value.getKey().getLastFilterField() < _classifyFields[_classifyFields.length - 1])
-                        insertRecord(record, getFilters(record, value.getKey(),
-                                                        _classifyFields));
-                    /* If the size of the curent filter group is equal to the
-                       number of fields used for classification, expanding the
-                       filter group is illegal because this record will be
-                       dropped from the training set unprocessed (Since every
-                       field in the record used for classification is filtered
-                       by this group, its the only one that currently
-                       filters it) */
-                    else if (value.getKey().filterCount() == _classifyFields.length)
-                        throw new IllegalStateException("Attempt to make filters more specific invalid, at least one training record dropped");
-                } // While records for the current key to process
-            } // While current filter groups to process
-
-            /* If the set of filters is empty at this point, all training
-               records were dropped which is a huge problem. It should have
-               been caught by the exception test above, indicating a code
-               error */
-            if (_recordsByFilter.isEmpty())
-                throw new IllegalStateException("Attempt to make filters more specific internal error, no filters generated");
-            _filterGroupSize++;
-
-            // Filter groups are now all new, so reset processing state
-            _ignoredFilters = new HashSet<FieldFilterGroup>();
-            _lastReturnedFilterGroup = null; // Must be last in try block
-        } // Try block
+            _recordsByFilter = newFilters;
+            indexRecords(currentFilters);
+        }
         catch (RuntimeException e) { // Interior method should only throw runtime exceptions
+            newFilters.release();
+            if (_filtersByRecord != currentRecords)
+                _filtersByRecord.release();
             _recordsByFilter = currentFilters;
             _filtersByRecord = currentRecords;
-            _ignoredFilters = ignoredFilters;
+            _filtersPerRecord = currentFiltersPerRecord;
+            _scanOrder = currentOrder;
             throw e;
         }
+        // The old indexes are no longer needed, so return their space
+        currentFilters.release();
+        currentRecords.release();
+        _filterGroupSize++;
+
+        // Filter groups are now all new, so reset processing state
+        resetProcessingState();
     }
     
+    /* Set the threads used to make filter groups more specific. Filter groups
+       are generated the same way in the same order regardless, so this has no
+       effect on results. Passing NULL does the work on the calling thread */
+    public void setExpansionPool(ForkJoinPool pool)
+    {
+        _expansionPool = pool;
+    }
+
     /* Returns true if a given filter exists within the set of filters in this
        object */
     public boolean hasFilterGroup(FieldFilterGroup filter)
+    {
+        return (findGroup(filter) >= 0);
+    }
+
+    /* Find the number of a filter group in the index. Returns -1 if the group
+       is NULL, is not in the index, or has a value never seen in the training
+       records */
+    private int findGroup(FieldFilterGroup filter)
     {
         if (filter == null)
-            return false;
-        return _recordsByFilter.containsKey(filter);
+            return -1;
+        int[] codes = new int[filter.filterCount()];
+        int index;
+        for (index = 0; index < codes.length; index++) {
+            FieldFilter next = filter.getFilter(index);
+            codes[index] = _dictionary.lookup(next.getField(), next.getValue());
+        }
+        return _recordsByFilter.find(FilterGroupKey.fromCodes(codes, _radix));
+    }
+
+    // Convert a group number to the filter group it represents
+    private FieldFilterGroup toFilterGroup(int group)
+    {
+        if (group < 0)
+            return null;
+        return _recordsByFilter.getKey(group).toFilterGroup(_dictionary);
     }
     
     /* Returns the filter group with the largest number of training records
@@ -352,14 +527,19 @@ public class TrainingRecords
     public FieldFilterGroup getLargestFilter()
     {
         // Clear filter processing state and find next largest
-        _ignoredFilters = new HashSet<FieldFilterGroup>();
-        _lastReturnedFilterGroup = null;
+        resetProcessingState();
         return getNextLargestFilter();
     }
 
     /* Returns the filter group with the largest number of training records
        smaller than the last filter returned. Returns NULL if none remain */
     public FieldFilterGroup getNextLargestFilter()
+    {
+        return toFilterGroup(nextLargestGroup());
+    }
+
+    // Implements getNextLargestFilter(), returning the number of the group
+    private int nextLargestGroup()
     {
         /* This method acts remarkably like an iterator over the filter groups.
            Its not implemented as an iterator because a delete causes changes
@@ -367,9 +547,9 @@ public class TrainingRecords
 
            This method needs to return the filter group NOT on the ignore list
            that has the largest number of records. Can handle this one of two
-           ways: scan for it every single time, or keep a sorted heap of
-           filters and update it as filters are deleted. The performance works
-           out as follows:
+           ways: scan for it every single time, or keep the filters ordered by
+           record count and update the order as filters are deleted. The
+           performance works out as follows:
            F = number of fields per record
            V = average number of valid values per field
            N = number of records
@@ -381,52 +561,76 @@ public class TrainingRecords
            time. That number is FV.
 
            Scan costs for processing all filters is (FV)^2, all on lookups.
-           The heap only costs on delete. It must be updated every time a
+           Ordering only costs on delete. It must be updated every time a
            record is removed from the list for any filter. Assuming an even
            distribution of possible values, each filter will have N/V records
-           Each of those must be removed from F filters, giving FN/V heap
-           updates. These happen DFV times when all filters are processed, and
-           each costs log(FV). The total cost is DF^2Nlog(FV).
-           (FV)^2 vs DF^2Nlog(FV). Multiply both sides by 1/NF and get
-           V^2/N vs Dlog(FV)
-           As the data set gets big, V and F will grow slowly while N grows
-           quickly. D is essentially constant. Scanning the records every time
-           will be cheaper than keeping a heap thanks to the number of updates
-           it would need */
-
-        /* If the last filter processed is not null, add it to the ignore set
-           so it doesn't get returned again */
-        if (_lastReturnedFilterGroup != null)
-            _ignoredFilters.add(_lastReturnedFilterGroup);
+           Each of those must be removed from F filters, giving FN/V updates.
+           These happen DFV times when all filters are processed. A heap
+           update costs log(FV), so a heap costs DF^2Nlog(FV) in total, which
+           is no better than the scan. Counts only ever drop by one, however,
+           so a bucket queue indexed by count does each update in constant
+           time, for a total of DF^2N. That is linear in the training data
+           while the scan is quadratic in the number of filters, which wins
+           easily once filters get more specific and their number explodes.
+           The scan remains available as a reference */
+
+        if (_selection == CandidateSelection.BUCKET_QUEUE) {
+            /* Anything already returned was polled off the queue, so the
+               queue itself acts as the ignore list */
+            if (_candidatesStale)
+                rebuildCandidates();
+            _lastReturnedFilterGroup = _candidates.poll();
+            return _lastReturnedFilterGroup;
+        }
+
+        /* If the last filter processed is valid, add it to the ignore set so
+           it doesn't get returned again */
+        if (_lastReturnedFilterGroup >= 0)
+            _ignoredFilters.set(_lastReturnedFilterGroup);
             
         if (isEmpty())
-            _lastReturnedFilterGroup = null; // No records!
-        // If every filter group should be ignored, can't return any
-        else if (_recordsByFilter.size() == _ignoredFilters.size())
-            _lastReturnedFilterGroup = null; // Everything should be ignored
+            _lastReturnedFilterGroup = -1; // No records!
         else {
-            /* Iterate through the hash map of filters looking for the one with
-               the largest number of records that should not be ignored. The
-               test above guarentees one exists, so not finding it equals a
-               consistency problem */
-            Iterator<Map.Entry<FieldFilterGroup, RecordGroup> > index = _recordsByFilter.entrySet().iterator();
+            /* Iterate through the filter groups looking for the one with the
+               largest number of records that should not be ignored. Only
+               groups with records remain in the scan order, so finding
+               nothing means every remaining group is on the ignore list */
             int maxEntryCount = 0;
-            _lastReturnedFilterGroup = null;
+            _lastReturnedFilterGroup = -1;
+            Iterator<Integer> index = _scanOrder.values().iterator();
             while (index.hasNext()) {
-                Map.Entry<FieldFilterGroup, RecordGroup> next = index.next();
-                if ((!_ignoredFilters.contains(next.getKey())) &&
-                    (next.getValue().size() > maxEntryCount)) {
-                    _lastReturnedFilterGroup = next.getKey();
-                    maxEntryCount = next.getValue().size();
+                int group = index.next().intValue();
+                if ((_recordsByFilter.getCount(group) > maxEntryCount) &&
+                    (!_ignoredFilters.get(group))) {
+                    _lastReturnedFilterGroup = group;
+                    maxEntryCount = _recordsByFilter.getCount(group);
                 }
             }
-            if (_lastReturnedFilterGroup == null)
-                // Nothing found
-                throw new IllegalStateException("Mismatch between filters to ignore for processing and training filters remaining");
-        } // Filter to return should exist
+        } // Filter to return may exist
         return _lastReturnedFilterGroup;
     }
 
+    /* Returns up to the given number of filter groups that would be returned
+       next if no group were deleted before then, in that order. Deleting a
+       group changes the counts of others, so this is only a prediction, which
+       is useful for doing work on groups before they are needed. Filter
+       groups are only predicted when found with the bucket queue; scanning
+       always returns an empty list */
+    public ArrayList<FieldFilterGroup> peekNextFilters(int count)
+    {
+        ArrayList<FieldFilterGroup> result = new ArrayList<FieldFilterGroup>();
+        if ((_selection != CandidateSelection.BUCKET_QUEUE) || (count <= 0))
+            return result;
+        if (_candidatesStale)
+            rebuildCandidates();
+        int[] groups = new int[Math.min(count, _candidates.size())];
+        int found = _candidates.peek(groups);
+        int index;
+        for (index = 0; index < found; index++)
+            result.add(toFilterGroup(groups[index]));
+        return result;
+    }
+
     /* Deletes the last filter group returned, and the training records it
        filters, from the training set. This may also remove other filter groups
        if they have no training records remaining afterward. It then returns
@@ -441,68 +645,64 @@ public class TrainingRecords
         /* Since this method retuns the next filter to process after a delete,
            having no filter at this point implies there are none left. Return
            NULL and quit */
-        if (_lastReturnedFilterGroup == null)
+        if (_lastReturnedFilterGroup < 0)
             return null;
         
         else {
-            /* Extract the list of current records for the entry, and then
-               delete it */
-            RecordGroup currRecords = _recordsByFilter.get(_lastReturnedFilterGroup);
-            if (currRecords == null)
+            int deleteGroup = _lastReturnedFilterGroup;
+            if (_recordsByFilter.getCount(deleteGroup) == 0)
                 /* Serious, unrecoverable problem. The object state is not
                    consistent */
                 throw new IllegalStateException("Filter group to delete does not exist in training data");
 
-            _recordsByFilter.remove(_lastReturnedFilterGroup);
-
             /* NOTE: Don't need to remove it from the ignore list, since the
                filter could only be set if it was not on that list */
-
-            /* Now remove the training records for the iterator. Find them in
-               the reverse index, remove the record from each of those filters
-               lists, and then delete the reverse index entry. This operation
-               can fail if the index data is not consistent, in which case it
-               will become even more inconsistent. */
-            Iterator<ArrayList<String> > recordIter = currRecords.getRecords().iterator();
-            FieldFilterCollection recordFilters = null;
-            while (recordIter.hasNext()) {
-                ArrayList<String> testRecord = recordIter.next();
-                /* Find it in the reverse index. Not finding it indicates the
-                   two indexes are not syncronized, a serious data corruption */
-                recordFilters = _filtersByRecord.get(testRecord);
-                if (recordFilters == null)
+            if (_scanOrder != null)
+                _scanOrder.remove(toFilterGroup(deleteGroup));
+
+            /* Now remove the training records for the group. Find them in the
+               reverse index, remove the record from each of those filters
+               lists, and then mark the record removed. This operation can fail
+               if the index data is not consistent, in which case it will
+               become even more inconsistent. */
+            int slot;
+            for (slot = 0; slot < _recordsByFilter.getSlots(deleteGroup); slot++) {
+                int testRecord = _recordsByFilter.getOrdinal(deleteGroup, slot);
+                if (testRecord < 0)
+                    continue; // Removed earlier
+                /* A record already removed indicates the two indexes are not
+                   syncronized, a serious data corruption */
+                if (_removedRecords.get(testRecord))
                     throw new IllegalStateException("Training data invalid; record in filter index missing from record index");
-                Iterator<FieldFilterGroup> filterIter = recordFilters.iterator();
-                while (filterIter.hasNext()) {
-                    FieldFilterGroup testFilter = filterIter.next();
-                    /* If this filter is the one being removed, it was already
-                       handled above */
-                    if (!testFilter.equals(_lastReturnedFilterGroup)) {
-                        RecordGroup testRecordGroup = _recordsByFilter.get(testFilter);
-                        /* Not finding the record group indicates the two
-                           indexes are not in sync and the class is corrupted */
-                        if (testRecordGroup == null)
-                            throw new IllegalStateException("Training data invalid; filter in record index missing from filter index");
-                        if (testRecordGroup.size() > 1)
-                            /* Remove the record from the list for this group.
-                               Record pointers are duplicated between groups in
-                               the filter group map, so just search for it
-                               instead of comparing the values */
-                            testRecordGroup.getRecords().remove(testRecord);
+                int filterIndex;
+                int first = testRecord * _filtersPerRecord;
+                for (filterIndex = first; filterIndex < (first + _filtersPerRecord); filterIndex++) {
+                    int testFilter = _filtersByRecord.get(filterIndex);
+                    /* If this filter is the one being removed, it gets handled
+                       below. Removing the record from any other filter will
+                       throw if the indexes are not in sync */
+                    if (testFilter != deleteGroup) {
+                        if (_recordsByFilter.removeRecord(testFilter, testRecord) > 0) {
+                            if (!_candidatesStale)
+                                _candidates.decrement(testFilter);
+                        }
                         else {
-                            // Remove the filter group, last record removed
-                            _recordsByFilter.remove(testFilter);
-                            // Remove it from the filters to ignore if present
-                            _ignoredFilters.remove(testFilter);
+                            // The filter group lost its last record
+                            _ignoredFilters.clear(testFilter);
+                            if (!_candidatesStale)
+                                _candidates.remove(testFilter);
+                            if (_scanOrder != null)
+                                _scanOrder.remove(toFilterGroup(testFilter));
                         }
                     } // Test filter group for record is not one being removed
                 } // For all possible filter groups for current record to remove
-                // Record removed from all filters, delete from record index
-                _filtersByRecord.remove(testRecord);
+                // Record removed from all filters, mark it removed
+                _removedRecords.set(testRecord);
             } // For each training reocrd for filter group to remove
+            _recordsByFilter.removeGroup(deleteGroup);
 
             // Entry deleted, so clear cached value
-            _lastReturnedFilterGroup = null;
+            _lastReturnedFilterGroup = -1;
 
             // Find the next filter group to process
             return getNextLargestFilter();
@@ -517,14 +717,14 @@ public class TrainingRecords
     {
         StringBuffer buffer = new StringBuffer();
         buffer.append("[");
-        Iterator<Map.Entry<FieldFilterGroup, RecordGroup> > index = _recordsByFilter.entrySet().iterator();
-        while (index.hasNext()) {
-            Map.Entry<FieldFilterGroup, RecordGroup> value = index.next();
-            buffer.append(value.getKey());
-            buffer.append(":");
-            buffer.append(value.getValue().getRecords().size());
-            buffer.append(" records ");
-        }
+        int group;
+        for (group = 0; group < _recordsByFilter.getGroupCount(); group++)
+            if (_recordsByFilter.getCount(group) > 0) {
+                buffer.append(toFilterGroup(group));
+                buffer.append(":");
+                buffer.append(_recordsByFilter.getCount(group));
+                buffer.append(" records ");
+            }
         buffer.append("]");
         return buffer.toString();
     }
@@ -541,11 +741,18 @@ public class TrainingRecords
             // Force a newline
             buffer.append(System.getProperty("line.separator"));
             buffer.append(" Records: ");
-            RecordGroup records = _recordsByFilter.get(filter);
-            if (records == null)
+            int group = findGroup(filter);
+            if (group < 0)
                 buffer.append("None");
-            else
-                buffer.append(records);
+            else {
+                // Convert the ordinals back to the records they represent
+                LinkedList<ArrayList<String> > recordList = new LinkedList<ArrayList<String> >();
+                int slot;
+                for (slot = 0; slot < _recordsByFilter.getSlots(group); slot++)
+                    if (_recordsByFilter.getOrdinal(group, slot) >= 0)
+                        recordList.add(_records.get(_recordsByFilter.getOrdinal(group, slot)));
+                buffer.append(new RecordGroup(recordList));
+            }
         } // Filter passed
         return buffer.toString();
     } 
@@ -553,7 +760,7 @@ public class TrainingRecords
     // Print the records for the last filter retuned to process
     public String debugLastReturnedFilterRecords()
     {
-        return debugRecordsForFilter(_lastReturnedFilterGroup);
+        return debugRecordsForFilter(toFilterGroup(_lastReturnedFilterGroup));
     }
 
     // Utility method to create a record with four fields in it, in order
@@ -937,6 +1144,77 @@ public class TrainingRecords
         else
             System.out.println("Test failed");
         
+        /* The reference scan must return filters in the same count order as
+           the bucket queue. Ties may come back in a different order, so only
+           compare the record counts */
+        System.out.println("Compare filter order of scan and bucket queue selection, expect same counts");
+        TrainingRecords scanTest = new TrainingRecords(testData2, null,
+                                                       CandidateSelection.SCAN);
+        TrainingRecords queueTest = new TrainingRecords(testData2, null,
+                                                        CandidateSelection.BUCKET_QUEUE);
+        scanTest.incrFilterSpecificity();
+        queueTest.incrFilterSpecificity();
+        FieldFilterGroup scanFilter = scanTest.getLargestFilter();
+        FieldFilterGroup queueFilter = queueTest.getLargestFilter();
+        boolean sameOrder = true;
+        while (sameOrder && (scanFilter != null) && (queueFilter != null)) {
+            sameOrder = scanTest._recordsByFilter.getCount(scanTest.findGroup(scanFilter)) == queueTest._recordsByFilter.getCount(queueTest.findGroup(queueFilter));
+            scanFilter = scanTest.getNextLargestFilter();
+            queueFilter = queueTest.getNextLargestFilter();
+        }
+        if (sameOrder && (scanFilter == null) && (queueFilter == null))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        /* With no heap allowed, every index goes to disk. The filters must be
+           the same as when held in memory, and deleting must work on them */
+        System.out.println("Training records spilled to disk, expect same filters as on heap");
+        StorageBudget spill = new StorageBudget(0, null);
+        TrainingRecords spillTest = new TrainingRecords(testData2, null,
+                                                        CandidateSelection.BUCKET_QUEUE,
+                                                        new RecordDictionary(), spill);
+        TrainingRecords heapTest = new TrainingRecords(testData2, null);
+        spillTest.incrFilterSpecificity();
+        heapTest.incrFilterSpecificity();
+        spillTest.getLargestFilter();
+        heapTest.getLargestFilter();
+        spillTest.deleteLastFilterGroup();
+        heapTest.deleteLastFilterGroup();
+        if (spillTest.toString().equals(heapTest.toString()) &&
+            (spill.getHeapUsed() == 0) && (spill.getMappedUsed() > 0))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, got " + spillTest + " expected " + heapTest);
+
+        /* At three filters most groups select a single record, so the per
+           group arrays outweigh the record lists. Train that far with no
+           limit to measure every array, then with a quarter of that, which
+           the per group arrays alone exceed. The filters must be the same,
+           the budget kept, and every array counted against it */
+        System.out.println("Training records at three filters under budget smaller than group arrays, expect same filters within budget");
+        StorageBudget unlimited = new StorageBudget();
+        TrainingRecords fullTest = new TrainingRecords(testData2, null,
+                                                       CandidateSelection.BUCKET_QUEUE,
+                                                       new RecordDictionary(), unlimited);
+        fullTest.incrFilterSpecificity();
+        fullTest.incrFilterSpecificity();
+        fullTest.getLargestFilter();
+        long needed = unlimited.getHeapUsed();
+        StorageBudget small = new StorageBudget(needed / 4, null);
+        TrainingRecords smallTest = new TrainingRecords(testData2, null,
+                                                        CandidateSelection.BUCKET_QUEUE,
+                                                        new RecordDictionary(), small);
+        smallTest.incrFilterSpecificity();
+        smallTest.incrFilterSpecificity();
+        smallTest.getLargestFilter();
+        if (smallTest.toString().equals(fullTest.toString()) &&
+            (small.getHeapUsed() <= (needed / 4)) &&
+            ((small.getHeapUsed() + small.getMappedUsed()) == needed))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, got " + smallTest + " with " + small + " expected " + fullTest + " with " + unlimited);
+
         /* Create a record filters with uneven record sizes. It should throw
            an exception */
         System.out.println("record filter group with uneven records, expect exception");
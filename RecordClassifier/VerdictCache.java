@@ -0,0 +1,256 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class remembers whether records passed the rules, so records that
+   repeat the values the rules look at are not matched again. The key is the
+   values of only the fields some rule filters on: other fields, like
+   tracking numbers, can't change the result and would make every key
+   unique. The number of keys kept is limited, dropping those least
+   recently used first, and the hits and misses are counted so the value of
+   caching can be judged.
+
+   The keys are spread over several independently locked parts, so threads
+   rarely wait for each other */
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class VerdictCache implements RecordMatcher
+{
+    private static final int PARTS = 16;
+
+    /* One part of the cache, in least recently used order, which drops the
+       eldest key once it holds more than its share */
+    private static final class CachePart extends LinkedHashMap<List<String>, Boolean>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private int _maxEntries;
+
+        CachePart(int maxEntries)
+        {
+            super(16, 0.75f, true);
+            _maxEntries = maxEntries;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<List<String>, Boolean> eldest)
+        {
+            return size() > _maxEntries;
+        }
+    }
+
+    private RecordMatcher _matcher;
+    private int[] _fields; // Fields some rule filters on, in order
+    private int _maxEntries;
+    private ArrayList<CachePart> _parts;
+    private LongAdder _hits;
+    private LongAdder _misses;
+
+    /* Cache the results of a matcher for the given rules, keeping at most
+       the given number */
+    public VerdictCache(RecordMatcher matcher, FieldFilterCollection rules, int maxEntries)
+    {
+        if (matcher == null)
+            throw new IllegalArgumentException("Matcher to cache passed null");
+        if (rules == null)
+            throw new IllegalArgumentException("Rules to cache passed null");
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("Verdict cache size " + maxEntries + " invalid");
+        _matcher = matcher;
+        _maxEntries = maxEntries;
+
+        TreeSet<Integer> fields = new TreeSet<Integer>();
+        Iterator<FieldFilterGroup> index = rules.iterator();
+        while (index.hasNext()) {
+            FieldFilterGroup group = index.next();
+            int filter;
+            for (filter = 0; filter < group.filterCount(); filter++)
+                fields.add(Integer.valueOf(group.getFilter(filter).getField()));
+        }
+        _fields = new int[fields.size()];
+        int field = 0;
+        Iterator<Integer> fieldIndex = fields.iterator();
+        while (fieldIndex.hasNext())
+            _fields[field++] = fieldIndex.next().intValue();
+
+        /* Each part holds an even share. Below one entry per part, each part
+           holds one anyway */
+        int partEntries = Math.max(maxEntries / PARTS, 1);
+        _parts = new ArrayList<CachePart>(PARTS);
+        int part;
+        for (part = 0; part < PARTS; part++)
+            _parts.add(new CachePart(partEntries));
+        _hits = new LongAdder();
+        _misses = new LongAdder();
+    }
+
+    // Determine whether any rule passes a record, using a cached result if any
+    public boolean passes(List<String> record)
+    {
+        if (record == null)
+            return false; // No record!
+
+        /* Fields past the end of the record are NULL in the key, which
+           can't be confused with any value read from a file */
+        ArrayList<String> key = new ArrayList<String>(_fields.length);
+        int index;
+        for (index = 0; index < _fields.length; index++)
+            key.add((_fields[index] < record.size()) ? record.get(_fields[index]) : null);
+        CachePart part = _parts.get((key.hashCode() & 0x7fffffff) % PARTS);
+        Boolean result = null;
+        synchronized (part) {
+            result = part.get(key);
+        }
+        if (result != null) {
+            _hits.increment();
+            return result.booleanValue();
+        }
+        _misses.increment();
+        boolean passes = _matcher.passes(record);
+        synchronized (part) {
+            part.put(key, Boolean.valueOf(passes));
+        }
+        return passes;
+    }
+
+    // Returns the matcher whose results are cached
+    public RecordMatcher getMatcher()
+    {
+        return _matcher;
+    }
+
+    // Returns the fields the key is made from
+    public int[] getKeyFields()
+    {
+        return _fields.clone();
+    }
+
+    // Returns the number of records found in the cache
+    public long getHits()
+    {
+        return _hits.sum();
+    }
+
+    // Returns the number of records not found in the cache
+    public long getMisses()
+    {
+        return _misses.sum();
+    }
+
+    // Returns the number of results held
+    public int size()
+    {
+        int result = 0;
+        int part;
+        for (part = 0; part < PARTS; part++)
+            synchronized (_parts.get(part)) {
+                result += _parts.get(part).size();
+            }
+        return result;
+    }
+
+    // Returns the most results that can be held
+    public int getMaxEntries()
+    {
+        return _maxEntries;
+    }
+
+    public String toString()
+    {
+        long hits = getHits();
+        long misses = getMisses();
+        long total = hits + misses;
+        return "Verdict cache: " + hits + " hits, " + misses + " misses (" +
+            ((total == 0) ? 0 : (hits * 100 / total)) + "% hit), " + size() +
+            " of " + _maxEntries + " entries used";
+    }
+
+    public static void main(String[] args)
+    {
+        // Rules: field 1 is 'a', or field 0 is 'x' and field 3 is 'z'
+        FieldFilterCollection rules = new FieldFilterCollection(new FieldFilterGroup(new FieldFilter(1, "a")));
+        FieldFilterGroup pair = new FieldFilterGroup(new FieldFilter(0, "x"));
+        rules.add(new FieldFilterGroup(pair, new FieldFilter(3, "z")));
+        VerdictCache test = new VerdictCache(new RuleMatcher(rules), rules, 100);
+
+        System.out.println("Key fields " + Arrays.toString(test.getKeyFields()) + ", expect [0, 1, 3]");
+        if (Arrays.equals(test.getKeyFields(), new int[] {0, 1, 3}))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        /* Records differing only in field 2, which no rule uses, share a
+           result. The second must be a hit */
+        ArrayList<String> record = new ArrayList<String>(Arrays.asList("x", "b", "id1", "z"));
+        boolean first = test.passes(record);
+        record.set(2, "id2");
+        boolean second = test.passes(record);
+        System.out.println("Records differing in unused field, expect both pass, one hit and one miss");
+        if (first && second && (test.getHits() == 1) && (test.getMisses() == 1))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, " + test);
+
+        // A short record must not share a key with one holding the value
+        ArrayList<String> shortRecord = new ArrayList<String>(Arrays.asList("x", "b", "id3"));
+        System.out.println("Record missing a key field, expect fail and a miss");
+        if ((!test.passes(shortRecord)) && (test.getMisses() == 2))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed, " + test);
+
+        System.out.println("NULL record, expect fail");
+        if (!test.passes(null))
+            System.out.println("Test succeeded");
+        else
+            System.out.println("Test failed");
+
+        /* Many distinct records must keep the size bounded, and must all get
+           the same results as the rules themselves */
+        Random random = new Random(5);
+        System.out.println("Random records past the cache size, expect same results and size bounded");
+        boolean same = true;
+        int count;
+        for (count = 0; same && (count < 5000); count++) {
+            ArrayList<String> randomRecord = new ArrayList<String>();
+            int field;
+            for (field = 0; field < 4; field++)
+                randomRecord.add((field == 1) ? String.valueOf(random.nextInt(60)) : "x");
+            randomRecord.set(3, (random.nextInt(2) == 0) ? "z" : "y");
+            same = (test.passes(randomRecord) == rules.passes(randomRecord));
+        }
+        if (same && (test.size() <= 100) && (test.getHits() > 0))
+            System.out.println("Test succeeded, " + test);
+        else
+            System.out.println("Test failed, " + test);
+
+        System.out.println("Cache size 0, expect exception");
+        try {
+            new VerdictCache(new RuleMatcher(rules), rules, 0);
+            System.out.println("Test failed");
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("Test passed, caught exception: " + e);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class writes classified records to a CSV file as the bytes of the
+   lines they were read from with the validity added as a new last field.
+   Since classifying changes nothing else about a record, there is no need
+   to rebuild the line from its fields, as RecordWriter would. The output is
+   the same as RecordWriter's for the same records. Lines are gathered in a
+   large direct buffer and written in one call per buffer full.
+
+   Lines must be in an encoding ByteLineReader.canRead() accepts. Every
+   record must have the same number of fields, but since earlier records are
+   already written, a record that breaks this is only detected when it is
+   reached. Lines can also be formatted elsewhere with format() and written
+   later with writeFormatted(). Files named .gz are written gzip compressed */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class VerdictWriter implements Closeable
+{
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    // The field added to a line, with its separator, and the line break
+    private static final byte[] VALID = ",true".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] INVALID = ",false".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LINE_END = System.getProperty("line.separator").getBytes(StandardCharsets.US_ASCII);
+
+    private WritableByteChannel _output;
+    private ByteBuffer _buffer;
+    private int _fieldCount; // Of the first record, with the validity, -1 until written
+
+    /* Create the file to write. Any existing file with the same name is
+       overwritten */
+    public VerdictWriter(String fileName) throws IOException, FileNotFoundException
+    {
+        if (fileName == null)
+            throw new IllegalArgumentException("Filename for output records must be specified");
+        OutputStream output = CompressedFiles.openOutput(fileName);
+        if (output instanceof FileOutputStream)
+            _output = ((FileOutputStream)output).getChannel();
+        else
+            _output = Channels.newChannel(output);
+        _buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        _fieldCount = -1;
+    }
+
+    /* Returns the most bytes a line can take once formatted, so buffers for
+       formatting can be sized */
+    public static int maxFormattedLength(int lineLength)
+    {
+        return lineLength + INVALID.length + LINE_END.length;
+    }
+
+    /* Append a line to a buffer with its validity added. The line is the
+       text of the record's fields from start to end, not including any
+       empty fields at the end, which are dropped on reading */
+    public static void format(ByteBuffer line, int start, int end, int fieldCount,
+                              boolean valid, ByteBuffer output)
+    {
+        ByteBuffer source = line.duplicate();
+        source.limit(end);
+        source.position(start);
+        output.put(source);
+        byte[] verdict = valid ? VALID : INVALID;
+        // A record with no fields gets no separator before the validity
+        output.put(verdict, (fieldCount > 0) ? 0 : 1, (fieldCount > 0) ? verdict.length : verdict.length - 1);
+        output.put(LINE_END);
+    }
+
+    /* Write a line with its validity added, as format() gives. Throws if the
+       record has a different field count from the first */
+    public void write(ByteBuffer line, int start, int end, int fieldCount,
+                      boolean valid) throws IOException
+    {
+        if (line == null)
+            throw new IllegalArgumentException("Line to output passed null");
+        checkFieldCount(fieldCount + 1);
+        int length = maxFormattedLength(end - start);
+        if (_buffer.remaining() < length) {
+            flush();
+            if (_buffer.capacity() < length)
+                _buffer = ByteBuffer.allocateDirect(length);
+        }
+        format(line, start, end, fieldCount, valid, _buffer);
+    }
+
+    /* Write lines already formatted with format(), from the buffer's position
+       to its limit, all with the given field count before the validity.
+       Throws if it differs from the first record written */
+    public void writeFormatted(ByteBuffer lines, int fieldCount) throws IOException
+    {
+        if (lines == null)
+            throw new IllegalArgumentException("Lines to output passed null");
+        checkFieldCount(fieldCount + 1);
+        if (_buffer.remaining() < lines.remaining()) {
+            flush();
+            // Too big to be worth copying
+            if (_buffer.capacity() < lines.remaining()) {
+                while (lines.hasRemaining())
+                    _output.write(lines);
+                return;
+            }
+        }
+        _buffer.put(lines);
+    }
+
+    // Check the field count of a record against the first one written
+    private void checkFieldCount(int fieldCount) throws IOException
+    {
+        if (_fieldCount < 0)
+            _fieldCount = fieldCount;
+        else if (fieldCount != _fieldCount)
+            throw new IOException("RecordParser, records to output have inconsistent field counts");
+    }
+
+    // Write out the buffer
+    private void flush() throws IOException
+    {
+        _buffer.flip();
+        while (_buffer.hasRemaining())
+            _output.write(_buffer);
+        _buffer.clear();
+    }
+
+    // Write out anything still buffered and close the file
+    public void close() throws IOException
+    {
+        try {
+            flush();
+        }
+        finally {
+            _output.close();
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        /* Lines written with their validity must match writing the parsed
+           records with the validity added, including lines with empty
+           fields and lines too long for the buffer */
+        System.out.println("Write lines with validity, expect same file as RecordWriter");
+        try {
+            StringBuilder longLine = new StringBuilder("x,");
+            while (longLine.length() <= BUFFER_BYTES)
+                longLine.append("long");
+            longLine.append(",y");
+            String[] lines = {"a,b,c", "a,,c", "a,b,c,,", ",,", longLine.toString(), "d,e,f"};
+            RecordWriter expected = new RecordWriter("VerdictWriter1.testtesttest");
+            VerdictWriter test = new VerdictWriter("VerdictWriter2.testtesttest");
+            ByteTokenizer tokens = new ByteTokenizer();
+            int index;
+            for (index = 0; index < lines.length; index++) {
+                boolean valid = (index % 2) == 0;
+                ArrayList<String> record = RecordReader.parse(lines[index]);
+                record.add(String.valueOf(valid));
+                ByteBuffer line = ByteBuffer.wrap(lines[index].getBytes(StandardCharsets.US_ASCII));
+                int count = tokens.tokenize(line, 0, line.limit());
+                int end = (count > 0) ? tokens.getStart(count - 1) + tokens.getLength(count - 1) : 0;
+                if (index == 3)
+                    // Records with no fields are written after the others
+                    continue;
+                expected.write(record);
+                if (index == 5) {
+                    // Format the last one separately
+                    ByteBuffer formatted = ByteBuffer.allocate(maxFormattedLength(line.limit()));
+                    format(line, 0, end, count, valid, formatted);
+                    formatted.flip();
+                    test.writeFormatted(formatted, count);
+                }
+                else
+                    test.write(line, 0, end, count, valid);
+            }
+            expected.close();
+            test.close();
+            byte[] expectedBytes = Files.readAllBytes(new File("VerdictWriter1.testtesttest").toPath());
+            byte[] testBytes = Files.readAllBytes(new File("VerdictWriter2.testtesttest").toPath());
+            if (Arrays.equals(expectedBytes, testBytes))
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed, files differ");
+
+            // A record with no fields is just the validity
+            System.out.println("Write line with no fields, expect only validity");
+            test = new VerdictWriter("VerdictWriter2.testtesttest");
+            test.write(ByteBuffer.wrap(",,".getBytes(StandardCharsets.US_ASCII)), 0, 0, 0, true);
+            test.close();
+            String written = new String(Files.readAllBytes(new File("VerdictWriter2.testtesttest").toPath()),
+                                        StandardCharsets.US_ASCII);
+            if (written.equals("true" + System.getProperty("line.separator")))
+                System.out.println("Test succeeded");
+            else
+                System.out.println("Test failed, wrote '" + written + "'");
+        }
+        catch (Exception e) {
+            System.out.println("Test failed, caught " + e);
+        }
+
+        System.out.println("Write lines with inconsistent field counts, expect exception");
+        try {
+            VerdictWriter test = new VerdictWriter("VerdictWriter2.testtesttest");
+            ByteBuffer line = ByteBuffer.wrap("a,b".getBytes(StandardCharsets.US_ASCII));
+            test.write(line, 0, 3, 2, true);
+            try {
+                test.write(line, 0, 1, 1, true);
+                System.out.println("Test failed");
+            }
+            finally {
+                test.close();
+            }
+        }
+        catch (IOException e) {
+            System.out.println("Test succeeded, caught " + e);
+        }
+        new File("VerdictWriter1.testtesttest").delete();
+        new File("VerdictWriter2.testtesttest").delete();
+    }
+}
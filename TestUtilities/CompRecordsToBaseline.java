@@ -40,9 +40,9 @@ class CompRecordsToBaseline
         BufferedReader result = null;
         PrintWriter output = null;
         try {
-            baseline = new BufferedReader(new FileReader(args[0]));
-            result = new BufferedReader(new FileReader(args[1]));
-            output = new PrintWriter(new FileWriter(args[2]));
+            baseline = CompressedFiles.openReader(args[0]);
+            result = CompressedFiles.openReader(args[1]);
+            output = CompressedFiles.openWriter(args[2]);
         }
         catch (Exception e) {
             System.out.println("Error: Specified files invalid, caught exception " + e + " opening files");
@@ -0,0 +1,218 @@
+/* This file is part of RecordValidator, a progam for learning rules for
+   validating reccrds based on a training set. It also includes utilities to
+   generate synthetic record data, validate it based on a set of fixed rules,
+   generate testing data fom validated record data, and comparing classified
+   records to a baseline.
+
+   Copyright (C) 2014   Ezra Erb
+
+   This program is free software: you can redistribute it and/or modify
+   it under the terms of the GNU General Public License version 3 as published
+   by the Free Software Foundation.
+
+   This program is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+   I'd appreciate a note if you find this program useful or make updates.
+   Please contact me through LinkedIn or github 
+*/
+
+/* This class opens record files for the utilities, handling gzip compressed
+   files transparently. A file is read as compressed if its name ends in .gz
+   or it starts with the gzip magic number, and written compressed if its
+   name ends in .gz. Reading a compressed file inflates it on a thread of its
+   own a block at a time, a few blocks ahead, so processing the records and
+   inflating them run at the same time. The utilities are built on their
+   own, so this copies the class of the same name in the classifier, adding
+   readers and writers for working a line at a time */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+public class CompressedFiles
+{
+    // Size of the blocks inflated ahead of reading, and how many
+    private static final int BLOCK_BYTES = 1 << 16;
+    private static final int BLOCKS_AHEAD = 16;
+
+    /* Returns true if a file is gzip compressed, by name or contents. Throws
+       if it can't be read */
+    public static boolean isCompressed(String fileName) throws IOException, FileNotFoundException
+    {
+        if (fileName == null)
+            throw new IllegalArgumentException("Filename for input records must be specified");
+        if (fileName.toLowerCase().endsWith(".gz"))
+            return true;
+        InputStream input = new FileInputStream(fileName);
+        try {
+            int first = input.read();
+            int second = input.read();
+            return (first | (second << 8)) == GZIPInputStream.GZIP_MAGIC;
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    // Open a file to read a line at a time, inflating it if compressed
+    public static BufferedReader openReader(String fileName) throws IOException, FileNotFoundException
+    {
+        // Same encoding as FileReader
+        return new BufferedReader(new InputStreamReader(openInput(fileName)));
+    }
+
+    /* Create a file to write a line at a time, compressing it if the name
+       ends in .gz */
+    public static PrintWriter openWriter(String fileName) throws IOException, FileNotFoundException
+    {
+        // Same encoding as FileWriter
+        return new PrintWriter(new OutputStreamWriter(openOutput(fileName)));
+    }
+
+    // Open a file to read, inflating it if compressed
+    public static InputStream openInput(String fileName) throws IOException, FileNotFoundException
+    {
+        if (!isCompressed(fileName))
+            return new FileInputStream(fileName);
+        return new InflatingInputStream(new GZIPInputStream(new FileInputStream(fileName), BLOCK_BYTES));
+    }
+
+    /* Create a file to write, compressing it if the name ends in .gz. Any
+       existing file with the same name is overwritten */
+    public static OutputStream openOutput(String fileName) throws IOException, FileNotFoundException
+    {
+        if (fileName == null)
+            throw new IllegalArgumentException("Filename for output records must be specified");
+        if (fileName.toLowerCase().endsWith(".gz"))
+            return new GZIPOutputStream(new FileOutputStream(fileName), BLOCK_BYTES);
+        return new FileOutputStream(fileName);
+    }
+
+    /* Reads a stream on a thread of its own, passing the data through a
+       queue of blocks. Errors reading it are thrown by the read that reaches
+       the point they happened */
+    private static final class InflatingInputStream extends InputStream
+    {
+        private static final byte[] END = new byte[0]; // Marks the end of the data
+
+        private ArrayBlockingQueue<byte[]> _blocks;
+        private volatile IOException _error;
+        private volatile boolean _closed;
+        private Thread _reader;
+        private byte[] _block; // Being read, NULL if none
+        private int _position;
+        private boolean _ended;
+
+        InflatingInputStream(final InputStream source)
+        {
+            _blocks = new ArrayBlockingQueue<byte[]>(BLOCKS_AHEAD);
+            _error = null;
+            _closed = false;
+            _block = null;
+            _position = 0;
+            _ended = false;
+            _reader = new Thread(new Runnable() {
+                    public void run()
+                    {
+                        try {
+                            try {
+                                while (!_closed) {
+                                    byte[] block = new byte[BLOCK_BYTES];
+                                    int length = 0;
+                                    int read = 0;
+                                    while ((length < block.length) &&
+                                           ((read = source.read(block, length, block.length - length)) >= 0))
+                                        length += read;
+                                    if (length > 0)
+                                        _blocks.put((length < block.length) ? Arrays.copyOf(block, length) : block);
+                                    if (read < 0)
+                                        break;
+                                }
+                            }
+                            finally {
+                                source.close();
+                            }
+                        }
+                        catch (IOException e) {
+                            _error = e;
+                        }
+                        catch (InterruptedException e) {
+                            return; // Closed while waiting for room
+                        }
+                        try {
+                            _blocks.put(END);
+                        }
+                        catch (InterruptedException e) {
+                            // Closed, so nothing will read it
+                        }
+                    }
+                }, "Record file decompression");
+            _reader.setDaemon(true);
+            _reader.start();
+        }
+
+        // Make sure there is data in the current block. Returns false at the end
+        private boolean nextBlock() throws IOException
+        {
+            while ((_block == null) || (_position == _block.length)) {
+                if (_ended)
+                    return false;
+                if (_closed)
+                    throw new IOException("Stream closed");
+                try {
+                    _block = _blocks.take();
+                }
+                catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted waiting for decompressed data");
+                }
+                _position = 0;
+                if (_block == END) {
+                    _ended = true;
+                    _block = null;
+                    if (_error != null)
+                        throw _error;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public int read() throws IOException
+        {
+            if (!nextBlock())
+                return -1;
+            return _block[_position++] & 0xff;
+        }
+
+        public int read(byte[] buffer, int offset, int length) throws IOException
+        {
+            if ((offset < 0) || (length < 0) || (length > buffer.length - offset))
+                throw new IndexOutOfBoundsException();
+            if (length == 0)
+                return 0;
+            if (!nextBlock())
+                return -1;
+            int count = Math.min(length, _block.length - _position);
+            System.arraycopy(_block, _position, buffer, offset, count);
+            _position += count;
+            return count;
+        }
+
+        /* Stop the reading thread. It closes the source once it sees this,
+           or right away if it is waiting for room in the queue */
+        public void close() throws IOException
+        {
+            if (!_closed) {
+                _closed = true;
+                _reader.interrupt();
+            }
+        }
+    }
+
+}
@@ -59,9 +59,9 @@ class SliceDataSet
         PrintWriter slice = null;
         PrintWriter other = null;
         try {
-            input = new BufferedReader(new FileReader(args[0]));
-            slice = new PrintWriter(new FileWriter(args[1]));
-            other = new PrintWriter(new FileWriter(args[2]));
+            input = CompressedFiles.openReader(args[0]);
+            slice = CompressedFiles.openWriter(args[1]);
+            other = CompressedFiles.openWriter(args[2]);
         }
         catch (Exception e) {
             System.out.println("Error: Specified files invalid, caught exception " + e + " opening files");
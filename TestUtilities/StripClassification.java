@@ -41,8 +41,8 @@ class StripClassification
         BufferedReader input = null;
         PrintWriter output = null;
         try {
-            input = new BufferedReader(new FileReader(args[0]));
-            output = new PrintWriter(new FileWriter(args[1]));
+            input = CompressedFiles.openReader(args[0]);
+            output = CompressedFiles.openWriter(args[1]);
         }
         catch (Exception e) {
             System.out.println("Error: Specified files invalid, caught exception " + e + " opening files");